@@ -1,280 +1,7759 @@
 import java.awt.event.MouseAdapter;
 import java.awt.event.MouseEvent;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
 import java.sql.*;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
 import javax.swing.*;
-import javax.swing.table.DefaultTableModel;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.table.AbstractTableModel;
+import javax.swing.table.TableColumn;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
 import java.awt.*;
+import java.awt.image.BufferedImage;
 
 // this class is responsible for managing the connection with our database
 class DBConnection
 {
     // storing/initializing URL, USER, PASS as constant variables
-    private static final String URL = "jdbc:mysql://localhost:3306/DiarySystem?serverTimezone=UTC";
+    static final String URL = "jdbc:mysql://localhost:3306/DiarySystem?serverTimezone=UTC&rewriteBatchedStatements=true";
 
-    private static final String USER = "root";
-    private static final String PASS = "";
+    static final String USER = "root";
+    static final String PASS = "";
+
+    // one shared pool for the whole program, sizes can be changed with -Ddiary.pool.* when starting the app
+    private static final ConnectionPool POOL = new ConnectionPool(URL, USER, PASS,
+            Integer.getInteger("diary.pool.minSize", 2),
+            Integer.getInteger("diary.pool.maxSize", 10),
+            Long.getLong("diary.pool.idleTimeoutMs", 5 * 60 * 1000L),
+            Long.getLong("diary.pool.maxWaitMs", 30 * 1000L),
+            Integer.getInteger("diary.pool.statementCacheSize", 32));
     
     // returning a database connection object so that we can use in our program where we need data from the database
-    
+    // the connection is borrowed from the pool, calling close() on it gives it back instead of disconnecting
     public static Connection getConnection() throws SQLException
     {
-        return DriverManager.getConnection(URL, USER, PASS);
+        return POOL.getConnection();
     }
-}
 
-// this class is responsible for managing passwords, where it holds, updates passwords
-class PasswordManager
-{
-    private String password;
-    // class constructor for initializing attributes
-    public PasswordManager(String password) { this.password = password; }
-    // getter for the password attribute
-    public String getPassword() { return password; }
-    // setter for setting the password for the user
-    public void setPassword(String password) { this.password = password; }
+    // the pool itself, for the first shard when the diaries are not sharded (see Shards)
+    static ConnectionPool getPool() { return POOL; }
+
+    // returning the current pool numbers (active/idle connections, wait time, statement cache hits)
+    public static PoolStats getPoolStats() { return POOL.getStats(); }
+
+    // opening the pool's first connections now, so the first real query does not pay for connecting
+    public static void warmUp() { POOL.warmUp(); }
+
+    // closing every open connection, used when the program is shutting down
+    public static void shutdown() { POOL.close(); }
 }
 
-// User class will be responsible for managing, holding user's data
-class User
+// Shards spreads the diaries over several MySQL databases ("shards") by user, so one database is not the limit. The
+// `user` table and the shard map (user_shard) stay in the DBConnection database, the directory; every shard has the
+// diary table (shard.sql) and its own connection pool. Configured with
+//   -Ddiary.shards=N   -Ddiary.shard.<i>.url=jdbc:mysql://...   (.user, .pass, .name; i = 0..N-1)
+// where shard 0 defaults to the directory database. Without -Ddiary.shards there is one shard using DBConnection's pool
+// and nothing below costs anything.
+//
+// A new user is placed on the shard a consistent hash ring gives for their id (every shard has VNODES points on the ring,
+// so adding a shard takes about 1/N of the users from each of the others) and the placement is written to user_shard.
+// Routing always follows user_shard, so changing the shards never sends a user to a shard their diaries are not on yet;
+// ShardRebalancer then moves the users whose placement differs from the ring. Users without an entry (registered
+// before the diaries were sharded) are on shard 0.
+//
+// Diary ids must stay unique over all shards because diaries keep their id when they move: every shard connection sets
+// auto_increment_increment=ID_STRIDE and auto_increment_offset=<shard number + 1>, so shards never hand out the same id.
+class Shards
 {
-    // we assign attributes as "final" to prevent accidental modification of values after initializing them
-    private final int id;
-    private final String username;
-    private final PasswordManager passwordManager;
+    static final int ID_STRIDE = 64;            // the most shards there can ever be
+    private static final int VNODES = 128;
+    private static final int LOCK_STRIPES = 256;
 
-    // class constructor for initializing attributes
-    public User(int id, String username, String password)
+    // one database holding diaries
+    static class Shard
     {
-        this.id = id;
-        this.username = username;
-        this.passwordManager = new PasswordManager(password);
+        final int index;
+        final String name;
+        final ConnectionPool pool;
+
+        Shard(int index, String name, ConnectionPool pool)
+        {
+            this.index = index;
+            this.name = name;
+            this.pool = pool;
+        }
+
+        @Override
+        public String toString() { return name; }
     }
 
-    // getters and setters for class attributes
-    public int getId() { return id; }
-    public String getUsername() { return username; }
-    public String getPassword() { return passwordManager.getPassword(); }
-    public void setPassword(String password) { this.passwordManager.setPassword(password); }
-}
+    // the shard of one user, held while a DatabaseHandler call uses it: ShardRebalancer cannot switch the user to another
+    // shard in the middle of the call (it waits for the user's lock stripe)
+    static class Route implements AutoCloseable
+    {
+        private final Shard shard;
+        private final Lock lock;            // null when not sharded
 
-// Diary class will be responsible for managing user's diaries
-class Diary
-{
-    // defining class attributes
-    private final int id;
-    private String name;
-    private String duration;
-    private String address;
-    private String date;
-    private String time;
-    private String details;
-    private final int userId;
+        Route(Shard shard, Lock lock)
+        {
+            this.shard = shard;
+            this.lock = lock;
+        }
 
-    // using the class constructor for initializing attributes
-    public Diary(int id, String name, String duration, String address, String date, String time, String details, int userId)
+        Shard shard() { return shard; }
+        ConnectionPool pool() { return shard.pool; }
+
+        @Override
+        public void close() { if (lock != null) lock.unlock(); }
+    }
+
+    private static final List<Shard> SHARDS = new ArrayList<>();
+    private static final TreeMap<Long, Shard> RING = new TreeMap<>();
+    private static final ReentrantReadWriteLock[] LOCKS = new ReentrantReadWriteLock[LOCK_STRIPES];
+    private static final Map<Integer, Shard> placements = new ConcurrentHashMap<>();     // user_shard, as far as it was read
+    private static final int COUNT = Integer.getInteger("diary.shards", 0);
+    private static final Route DIRECT;
+    private static volatile boolean idsReady;
+
+    static
     {
-        this.id = id;
-        this.name = name;
-        this.duration = duration;
-        this.address = address;
-        this.date = date;
-        this.time = time;
-        this.details = details;
-        this.userId = userId;
+        int count = COUNT;
+        if (count > ID_STRIDE)
+            throw new IllegalArgumentException("at most " + ID_STRIDE + " shards are supported, not " + count);
+        if (count <= 0)
+            SHARDS.add(new Shard(0, "shard0", DBConnection.getPool()));
+        for (int i = 0; i < count; i++)
+        {
+            String prefix = "diary.shard." + i + ".";
+            String url = System.getProperty(prefix + "url", i == 0 ? DBConnection.URL : null);
+            if (url == null) throw new IllegalArgumentException("-D" + prefix + "url is missing");
+            url += (url.contains("?") ? "&" : "?") + "sessionVariables=auto_increment_increment=" + ID_STRIDE + ",auto_increment_offset=" + (i + 1);
+            ConnectionPool pool = new ConnectionPool(url, System.getProperty(prefix + "user", DBConnection.USER),
+                    System.getProperty(prefix + "pass", DBConnection.PASS),
+                    Integer.getInteger("diary.pool.minSize", 2),
+                    Integer.getInteger("diary.pool.maxSize", 10),
+                    Long.getLong("diary.pool.idleTimeoutMs", 5 * 60 * 1000L),
+                    Long.getLong("diary.pool.maxWaitMs", 30 * 1000L),
+                    Integer.getInteger("diary.pool.statementCacheSize", 32));
+            SHARDS.add(new Shard(i, System.getProperty(prefix + "name", "shard" + i), pool));
+        }
+        for (Shard shard : SHARDS)
+            for (int v = 0; v < VNODES; v++)
+                RING.put(hash(shard.name + "#" + v), shard);
+        for (int i = 0; i < LOCKS.length; i++) LOCKS[i] = new ReentrantReadWriteLock();
+        DIRECT = new Route(SHARDS.get(0), null);
     }
 
-    // getters for class attributes
-    public int getId() { return id; }
-    public String getName() { return name; }
-    public String getDuration() { return duration; }
-    public String getAddress() { return address; }
-    public String getDate() { return date; }
-    public String getTime() { return time; }
-    public String getDetails() { return details; }
-    public int getUserId() { return userId; }
+    public static boolean isSharded() { return COUNT > 0; }
 
-    // setters for class attributes
-    public void setName(String name) { this.name = name; }
-    public void setDuration(String duration) { this.duration = duration; }
-    public void setAddress(String address) { this.address = address; }
-    public void setDate(String date) { this.date = date; }
-    public void setTime(String time) { this.time = time; }
-    public void setDetails(String details) { this.details = details; }
-}
+    public static List<Shard> all() { return Collections.unmodifiableList(SHARDS); }
 
-// DatabaseHandler class is responsible for: - performing queries on database to retrieve data
-//                                           - handling SQLExceptions and connections
-//                                           - performing the CRUD operations:
-//                                              - Create
-//                                              - Read
-//                                              - Update
-//                                              - Delete
-class DatabaseHandler
-{
+    public static Shard byName(String name)
+    {
+        for (Shard shard : SHARDS)
+            if (shard.name.equals(name)) return shard;
+        return null;
+    }
 
-    public User getUserByUsername(String username) throws SQLException
+    // the shard the ring chooses for a user (where new users go, and where ShardRebalancer moves users to)
+    public static Shard ringShard(int userId)
     {
-        String sql = "SELECT * FROM user WHERE username=?";         // sql query to handle user login 
-        try (Connection conn = DBConnection.getConnection();
+        Map.Entry<Long, Shard> e = RING.ceilingEntry(mix(userId));
+        return (e != null ? e : RING.firstEntry()).getValue();
+    }
+
+    // the shard a user's diaries are on now
+    public static Shard of(int userId) throws SQLException
+    {
+        if (!isSharded()) return SHARDS.get(0);
+        Shard shard = placements.get(userId);
+        if (shard != null) return shard;
+        String sql = "SELECT shard FROM user_shard WHERE user_id=?";
+        try (QueryTimer timer = QueryMetrics.start("shardOf");
+             Connection conn = timer.connect();
              PreparedStatement stmt = conn.prepareStatement(sql))
         {
-            stmt.setString(1, username);
-            ResultSet rs = stmt.executeQuery();
+            stmt.setInt(1, userId);
+            ResultSet rs = timer.query(stmt);
             if (rs.next())
-                return new User(rs.getInt("id"), rs.getString("username"), rs.getString("password"));
+            {
+                shard = byName(rs.getString(1));
+                if (shard == null) throw new SQLException("User " + userId + " is on shard " + rs.getString(1) + ", which is not configured");
+            }
+            else
+                shard = SHARDS.get(0);
         }
-        return null;
+        placements.put(userId, shard);
+        return shard;
     }
 
-    public void addUser(String username, String password) throws SQLException
+    // locking the user's stripe for reading and finding their shard; close() the route when the call is done
+    public static Route route(int userId) throws SQLException
     {
-        String sql = "INSERT INTO user (username, password) VALUES (?, ?)";     //sql query handle user registeration
-        try (Connection conn = DBConnection.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql))
+        if (!isSharded()) return DIRECT;
+        Lock lock = lock(userId).readLock();
+        lock.lock();
+        try { return new Route(of(userId), lock); }
+        catch (SQLException | RuntimeException e)
         {
-            stmt.setString(1, username);
-            stmt.setString(2, password);
-            stmt.executeUpdate();
+            lock.unlock();
+            throw e;
         }
     }
 
-    public void updatePassword(String username, String password) throws SQLException {
-        String sql = "UPDATE user SET password=? WHERE username=?";         // sql query handle updating password
-        try (Connection conn = DBConnection.getConnection();
+    // writing where a user's diaries are (a new user, or a user moved by ShardRebalancer)
+    public static void place(int userId, Shard shard) throws SQLException
+    {
+        if (!isSharded()) return;
+        String sql = "INSERT INTO user_shard (user_id, shard) VALUES (?, ?) ON DUPLICATE KEY UPDATE shard=VALUES(shard)";
+        try (QueryTimer timer = QueryMetrics.start("placeUser");
+             Connection conn = timer.connect();
              PreparedStatement stmt = conn.prepareStatement(sql))
         {
-            stmt.setString(1, password);
-            stmt.setString(2, username);
-            stmt.executeUpdate();
+            stmt.setInt(1, userId);
+            stmt.setString(2, shard.name);
+            timer.update(stmt);
         }
+        placements.put(userId, shard);
     }
 
-  
-    public List<Diary> getUserDiaries(int userId) throws SQLException
+    static ReentrantReadWriteLock lock(int userId) { return LOCKS[Math.floorMod(userId, LOCKS.length)]; }
+
+    // before the first diary is added: a new shard's diary table is empty, so its ids would start at 1 and could meet the
+    // ids diaries got before the diaries were sharded (they were not spread by ID_STRIDE). Every shard's next id is
+    // raised above the highest id on any shard.
+    public static void prepareIds() throws SQLException
     {
-        List<Diary> list = new ArrayList<>();
-        String sql = "SELECT * FROM diary WHERE user_id=?";         // sql query retrive all added diaries
+        if (!isSharded() || idsReady) return;
+        synchronized (Shards.class)
+        {
+            if (idsReady) return;
+            long max = 0;
+            for (Shard shard : SHARDS)
+            {
+                try (Connection conn = shard.pool.getConnection();
+                     PreparedStatement stmt = conn.prepareStatement("SELECT COALESCE(MAX(id), 0) FROM diary"))
+                {
+                    ResultSet rs = stmt.executeQuery();
+                    if (rs.next()) max = Math.max(max, rs.getLong(1));
+                }
+            }
+            for (Shard shard : SHARDS)
+            {
+                try (Connection conn = shard.pool.getConnection();
+                     Statement stmt = conn.createStatement())
+                {
+                    stmt.executeUpdate("ALTER TABLE diary AUTO_INCREMENT = " + (max + 1));     // never lowers it
+                }
+            }
+            idsReady = true;
+        }
+    }
+
+    public static void warmUp()
+    {
+        for (Shard shard : SHARDS)
+            if (shard.pool != DBConnection.getPool()) shard.pool.warmUp();
+    }
+
+    private static long hash(String s)
+    {
+        long h = 1125899906842597L;
+        for (int i = 0; i < s.length(); i++) h = 31 * h + s.charAt(i);
+        return mix(h);
+    }
+
+    // spreading close numbers (user ids 1, 2, 3...) all over the ring (the SplitMix64 finalizer)
+    private static long mix(long x)
+    {
+        x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+        x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+        return x ^ (x >>> 31);
+    }
+}
+
+// ShardRebalancer moves users' diaries from one shard to another while the program keeps running (see Shards):
+//   1. copy:    the user's rows are copied to the new shard in batches, with their ids and versions; the user's reads
+//               and writes go on as usual on the old shard meanwhile
+//   2. switch:  with the user's lock stripe held (their calls wait, usually for milliseconds) the rows changed, added or
+//               deleted since the copy are brought over (compared by id and version) and user_shard is changed
+//   3. cleanup: the rows are deleted from the old shard, a batch at a time
+// A move that fails before the switch leaves the user on the old shard (the partial copy is removed). The switch only
+// waits for this program's DatabaseHandler calls, so moves must run in the program doing all the writes (the diary
+// server with -Ddiary.shard.rebalance=true), or while nothing else uses the databases (java Main --rebalance).
+class ShardRebalancer
+{
+    private static final int BATCH = 500;
+    private static final String COLUMNS = "id, name, duration, address, date, time, details, details_z, user_id, version";
+    private static final String UPSERT = "INSERT INTO diary (" + COLUMNS + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"
+            + " ON DUPLICATE KEY UPDATE name=VALUES(name), duration=VALUES(duration), address=VALUES(address), date=VALUES(date),"
+            + " time=VALUES(time), details=VALUES(details), details_z=VALUES(details_z), version=VALUES(version)";
+
+    // moving every user who is not on the shard the ring gives them; returns how many users were moved
+    public int rebalance(Consumer<String> log) throws SQLException
+    {
+        List<Integer> users = new ArrayList<>();
         try (Connection conn = DBConnection.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql))
+             PreparedStatement stmt = conn.prepareStatement("SELECT id FROM user ORDER BY id"))
         {
-            stmt.setInt(1, userId);
             ResultSet rs = stmt.executeQuery();
-            while (rs.next())
+            while (rs.next()) users.add(rs.getInt(1));
+        }
+        int moved = 0;
+        for (int userId : users)
+        {
+            Shards.Shard from = Shards.of(userId), to = Shards.ringShard(userId);
+            if (from == to) continue;
+            long start = System.nanoTime();
+            int rows = move(userId, to);
+            log.accept(String.format("user %d: %s -> %s, %d diaries (%.0f ms)", userId, from, to, rows, (System.nanoTime() - start) / 1e6));
+            moved++;
+        }
+        return moved;
+    }
+
+    // moving one user's diaries to another shard; returns how many diaries were moved
+    public int move(int userId, Shards.Shard to) throws SQLException
+    {
+        Shards.prepareIds();
+        Shards.Shard from = Shards.of(userId);
+        if (from == to) return 0;
+        int rows;
+        try
+        {
+            copy(userId, from, to, null);
+            ReentrantReadWriteLock.WriteLock lock = Shards.lock(userId).writeLock();
+            lock.lock();
+            try
             {
-                list.add(new Diary (
-                        rs.getInt("id"),
-                        rs.getString("name"),
-                        rs.getString("duration"),
-                        rs.getString("address"),
-                        rs.getString("date"),
-                        rs.getString("time"),
-                        rs.getString("details"),
-                        rs.getInt("user_id")
-                ));
+                if (Shards.of(userId) != from) throw new SQLException("User " + userId + " was moved by someone else");
+                rows = catchUp(userId, from, to);
+                Shards.place(userId, to);
             }
+            finally { lock.unlock(); }
         }
-        return list;
+        catch (SQLException e)
+        {
+            try { if (Shards.of(userId) == from) deleteAll(userId, to); }      // the user stays on the old shard, the partial copy is garbage
+            catch (SQLException cleanup) { e.addSuppressed(cleanup); }
+            throw e;
+        }
+        deleteAll(userId, from);
+        return rows;
     }
 
-    public void addDiary(Diary d) throws SQLException
+    // copying the user's rows (or only the given ids) from one shard to another, BATCH rows at a time in id order
+    private void copy(int userId, Shards.Shard from, Shards.Shard to, Set<Integer> only) throws SQLException
     {
-        String sql = "INSERT INTO diary (name, duration, address, date, time, details, user_id) VALUES (?, ?, ?, ?, ?, ?, ?)";
-        try (Connection conn = DBConnection.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql))
+        if (only != null && only.isEmpty()) return;
+        String sql = "SELECT " + COLUMNS + " FROM diary WHERE user_id=? AND id>? ORDER BY id LIMIT " + BATCH;
+        int last = 0;
+        while (true)
+        {
+            List<Object[]> rows = new ArrayList<>();
+            int scanned = 0;
+            try (Connection conn = from.pool.getConnection();
+                 PreparedStatement stmt = conn.prepareStatement(sql))
+            {
+                stmt.setInt(1, userId);
+                stmt.setInt(2, last);
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next())
+                {
+                    last = rs.getInt(1);
+                    scanned++;
+                    if (only != null && !only.contains(last)) continue;
+                    Object[] row = new Object[10];
+                    for (int i = 0; i < row.length; i++) row[i] = rs.getObject(i + 1);
+                    rows.add(row);
+                }
+            }
+            if (!rows.isEmpty())
+            {
+                try (Connection conn = to.pool.getConnection();
+                     PreparedStatement stmt = conn.prepareStatement(UPSERT))
+                {
+                    conn.setAutoCommit(false);          // the pool puts autocommit back when the connection is returned
+                    for (Object[] row : rows)
+                    {
+                        for (int i = 0; i < row.length; i++) stmt.setObject(i + 1, row[i]);
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
+                    conn.commit();
+                }
+            }
+            if (scanned < BATCH) return;
+        }
+    }
+
+    // bringing over what changed since the copy; returns the number of diaries the user has
+    private int catchUp(int userId, Shards.Shard from, Shards.Shard to) throws SQLException
+    {
+        Map<Integer, Integer> source = versions(userId, from), target = versions(userId, to);
+        Set<Integer> changed = new HashSet<>();
+        for (Map.Entry<Integer, Integer> e : source.entrySet())
+            if (!e.getValue().equals(target.get(e.getKey()))) changed.add(e.getKey());
+        copy(userId, from, to, changed);
+        target.keySet().removeAll(source.keySet());         // deleted on the old shard since they were copied
+        try (Connection conn = to.pool.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("DELETE FROM diary WHERE id=? AND user_id=?"))
         {
-            stmt.setString(1, d.getName());
-            stmt.setString(2, d.getDuration());
-            stmt.setString(3, d.getAddress());
-            stmt.setString(4, d.getDate());
-            stmt.setString(5, d.getTime());
-            stmt.setString(6, d.getDetails());
-            stmt.setInt(7, d.getUserId());
-            stmt.executeUpdate();
+            for (int id : target.keySet())
+            {
+                stmt.setInt(1, id);
+                stmt.setInt(2, userId);
+                stmt.executeUpdate();
+            }
         }
+        return source.size();
     }
 
-    public void updateDiary(Diary d) throws SQLException
+    private Map<Integer, Integer> versions(int userId, Shards.Shard shard) throws SQLException
     {
-        String sql = "UPDATE diary SET name=?, duration=?, address=?, date=?, time=?, details=? WHERE id=?";
-        try (Connection conn = DBConnection.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql))
+        Map<Integer, Integer> versions = new HashMap<>();
+        try (Connection conn = shard.pool.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("SELECT id, version FROM diary WHERE user_id=?"))
         {
-            stmt.setString(1, d.getName());
-            stmt.setString(2, d.getDuration());
-            stmt.setString(3, d.getAddress());
-            stmt.setString(4, d.getDate());
-            stmt.setString(5, d.getTime());
-            stmt.setString(6, d.getDetails());
-            stmt.setInt(7, d.getId());
-            stmt.executeUpdate();
+            stmt.setInt(1, userId);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) versions.put(rs.getInt(1), rs.getInt(2));
         }
+        return versions;
     }
 
-    public void deleteDiary(int id) throws SQLException
+    // deleting a user's rows from a shard in small pieces, so no long lock is held on the table
+    private void deleteAll(int userId, Shards.Shard shard) throws SQLException
     {
-        String sql = "DELETE FROM diary WHERE id=?";
-        try (Connection conn = DBConnection.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql))
+        try (Connection conn = shard.pool.getConnection();
+             PreparedStatement stmt = conn.prepareStatement("DELETE FROM diary WHERE user_id=? LIMIT " + BATCH))
         {
-            stmt.setInt(1, id);
-            stmt.executeUpdate();
+            stmt.setInt(1, userId);
+            while (stmt.executeUpdate() > 0) { }
         }
     }
 }
 
-class LoginManager {// the relation between "LoginManager"& "DatabaseHandler" -> aggregation
-    private final DatabaseHandler dbHandler = new DatabaseHandler();                         // creating an instance from class DatabaseHandler to do database operation to manage users account :
+// PoolStats class holds a snapshot of the connection pool numbers at one moment
+class PoolStats
+{
+    private final int total;
+    private final int active;
+    private final int idle;
+    private final int waiting;
+    private final long borrowCount;
+    private final long totalWaitNanos;
+    private final long maxWaitNanos;
+    private final long created;
+    private final long evicted;
+    private final long statementHits;
+    private final long statementMisses;
 
-    public User login(String username, String password) throws Exception                     // 1- login()-> handle user login process
+    public PoolStats(int total, int active, int idle, int waiting, long borrowCount, long totalWaitNanos,
+                     long maxWaitNanos, long created, long evicted, long statementHits, long statementMisses)
     {
-        User user = dbHandler.getUserByUsername(username);
-        if (user != null && user.getPassword().equals(password))
-            return user;
-        else 
-            return null;
+        this.total = total;
+        this.active = active;
+        this.idle = idle;
+        this.waiting = waiting;
+        this.borrowCount = borrowCount;
+        this.totalWaitNanos = totalWaitNanos;
+        this.maxWaitNanos = maxWaitNanos;
+        this.created = created;
+        this.evicted = evicted;
+        this.statementHits = statementHits;
+        this.statementMisses = statementMisses;
+    }
+
+    // getters for class attributes
+    public int getTotal() { return total; }
+    public int getActive() { return active; }
+    public int getIdle() { return idle; }
+    public int getWaiting() { return waiting; }
+    public long getBorrowCount() { return borrowCount; }
+    public long getCreated() { return created; }
+    public long getEvicted() { return evicted; }
+    public long getStatementHits() { return statementHits; }
+    public long getStatementMisses() { return statementMisses; }
+    public double getAverageWaitMillis() { return borrowCount == 0 ? 0 : totalWaitNanos / 1e6 / borrowCount; }
+    public double getMaxWaitMillis() { return maxWaitNanos / 1e6; }
+
+    @Override
+    public String toString()
+    {
+        return String.format("connections total=%d active=%d idle=%d waiting=%d | borrows=%d avgWait=%.3fms maxWait=%.3fms"
+                        + " | created=%d evicted=%d | statements hit=%d miss=%d",
+                total, active, idle, waiting, borrowCount, getAverageWaitMillis(), getMaxWaitMillis(),
+                created, evicted, statementHits, statementMisses);
+    }
+}
+
+// ConnectionPool class is responsible for: - keeping between minSize and maxSize connections open to the database
+//                                          - handing them out and taking them back (borrow / close)
+//                                          - checking that a connection still works before handing it out
+//                                          - closing connections that were idle for too long
+//                                          - caching prepared statements per connection
+class ConnectionPool
+{
+    // connections used in the last VALIDATION_SKIP_MS are trusted without asking the server again
+    private static final long VALIDATION_SKIP_MS = 1000;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private final String url;
+    private final String user;
+    private final String pass;
+    private final int minSize;
+    private final int maxSize;
+    private final long idleTimeoutMillis;
+    private final long maxWaitMillis;
+    private final int statementCacheSize;
+
+    private final Deque<PooledConnection> idle = new ArrayDeque<>();     // most recently returned first
+    private final ScheduledExecutorService evictor;
+    private int total;              // physical connections, idle + borrowed
+    private int waiting;            // threads waiting for a free connection
+    private boolean closed;
+
+    // numbers reported by getStats()
+    private long borrowCount;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+    private long created;
+    private long evicted;
+    private long statementHits;
+    private long statementMisses;
+
+    public ConnectionPool(String url, String user, String pass, int minSize, int maxSize,
+                          long idleTimeoutMillis, long maxWaitMillis, int statementCacheSize)
+    {
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize)
+            throw new IllegalArgumentException("invalid pool size: min=" + minSize + " max=" + maxSize);
+        this.url = url;
+        this.user = user;
+        this.pass = pass;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.maxWaitMillis = maxWaitMillis;
+        this.statementCacheSize = statementCacheSize;
+
+        // a single background thread that closes idle connections and tops the pool back up to minSize
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "diary-pool-evictor");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(1000, idleTimeoutMillis / 2);
+        evictor.scheduleWithFixedDelay(this::maintain, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public Connection getConnection() throws SQLException
+    {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        while (true)
+        {
+            PooledConnection pc;
+            synchronized (this)
+            {
+                waiting++;
+                try
+                {
+                    while (!closed && idle.isEmpty() && total >= maxSize)
+                    {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0)
+                            throw new SQLTimeoutException("Timed out after " + maxWaitMillis + "ms waiting for a database connection");
+                        try { TimeUnit.NANOSECONDS.timedWait(this, remaining); }
+                        catch (InterruptedException e)
+                        {
+                            Thread.currentThread().interrupt();
+                            throw new SQLException("Interrupted while waiting for a database connection", e);
+                        }
+                    }
+                }
+                finally { waiting--; }
+                if (closed) throw new SQLException("Connection pool is closed");
+                pc = idle.pollFirst();
+                if (pc == null) total++;        // reserve a slot, the connection itself is opened outside the lock
+            }
+
+            if (pc == null)
+            {
+                try { pc = open(); }
+                catch (SQLException e)
+                {
+                    synchronized (this) { total--; notifyAll(); }
+                    throw e;
+                }
+            }
+            else if (!pc.validate())
+            {
+                discard(pc);
+                continue;           // try the next idle connection (or open a new one)
+            }
+
+            long waited = System.nanoTime() - start;
+            synchronized (this)
+            {
+                borrowCount++;
+                totalWaitNanos += waited;
+                maxWaitNanos = Math.max(maxWaitNanos, waited);
+            }
+            return pc.lease();
+        }
+    }
+
+    // opening connections until minSize are open (at least one), used at startup before the first query
+    public void warmUp()
+    {
+        maintain();
+        synchronized (this)
+        {
+            if (closed || total > 0) return;
+            total++;
+        }
+        try { release(open()); }
+        catch (SQLException e)
+        {
+            synchronized (this) { total--; notifyAll(); }
+        }
+    }
+
+    public synchronized PoolStats getStats()
+    {
+        return new PoolStats(total, total - idle.size(), idle.size(), waiting, borrowCount, totalWaitNanos,
+                maxWaitNanos, created, evicted, statementHits, statementMisses);
+    }
+
+    public void close()
+    {
+        List<PooledConnection> toClose;
+        synchronized (this)
+        {
+            closed = true;
+            toClose = new ArrayList<>(idle);
+            idle.clear();
+            notifyAll();
+        }
+        evictor.shutdownNow();
+        for (PooledConnection pc : toClose) discard(pc);
+    }
+
+    private PooledConnection open() throws SQLException
+    {
+        PooledConnection pc = new PooledConnection(DriverManager.getConnection(url, user, pass));
+        synchronized (this) { created++; }
+        return pc;
+    }
+
+    // called by PooledConnection when the borrower closes its connection
+    private void release(PooledConnection pc)
+    {
+        if (!pc.reset())
+        {
+            discard(pc);
+            return;
+        }
+        boolean closeIt;
+        synchronized (this)
+        {
+            closeIt = closed;
+            if (!closed)
+            {
+                pc.lastUsed = System.currentTimeMillis();
+                idle.addFirst(pc);
+                notifyAll();
+            }
+        }
+        if (closeIt) discard(pc);
+    }
+
+    private void discard(PooledConnection pc)
+    {
+        pc.closePhysical();
+        synchronized (this)
+        {
+            total--;
+            notifyAll();
+        }
+    }
+
+    // runs on the evictor thread: closes connections idle longer than idleTimeoutMillis (keeping minSize) and refills to minSize
+    private void maintain()
+    {
+        List<PooledConnection> expired = new ArrayList<>();
+        int missing;
+        synchronized (this)
+        {
+            if (closed) return;
+            long now = System.currentTimeMillis();
+            Iterator<PooledConnection> it = idle.descendingIterator();     // oldest first
+            while (it.hasNext() && total - expired.size() > minSize)
+            {
+                PooledConnection pc = it.next();
+                if (now - pc.lastUsed < idleTimeoutMillis) break;
+                it.remove();
+                expired.add(pc);
+            }
+            evicted += expired.size();
+            missing = minSize - (total - expired.size());
+        }
+        for (PooledConnection pc : expired) discard(pc);
+        for (int i = 0; i < missing; i++)
+        {
+            synchronized (this)
+            {
+                if (closed || total >= minSize) return;
+                total++;
+            }
+            try { release(open()); }
+            catch (SQLException e)
+            {
+                synchronized (this) { total--; }
+                return;             // database not reachable right now, we try again on the next run
+            }
+        }
+    }
+
+    // PooledConnection wraps one real connection: borrowers get a proxy of it so that close() returns it to the pool
+    // and prepareStatement() reuses statements that were already prepared on this connection
+    private class PooledConnection
+    {
+        private final Connection real;
+        private final LinkedHashMap<String, CachedStatement> statements;
+        private long lastUsed = System.currentTimeMillis();
+
+        PooledConnection(Connection real)
+        {
+            this.real = real;
+            // access-ordered so that the least recently used statement is the one we close when the cache is full
+            this.statements = new LinkedHashMap<String, CachedStatement>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest)
+                {
+                    if (size() <= statementCacheSize) return false;
+                    eldest.getValue().evicted = true;
+                    if (!eldest.getValue().inUse) eldest.getValue().closePhysical();
+                    return true;
+                }
+            };
+        }
+
+        boolean validate()
+        {
+            if (System.currentTimeMillis() - lastUsed < VALIDATION_SKIP_MS) return true;
+            try { return real.isValid(VALIDATION_TIMEOUT_SECONDS); }
+            catch (SQLException e) { return false; }
+        }
+
+        Connection lease()
+        {
+            Lease lease = new Lease();
+            lease.proxy = (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+                    new Class<?>[]{Connection.class}, lease);
+            return lease.proxy;
+        }
+
+        // putting the connection back into its default state before another borrower gets it
+        boolean reset()
+        {
+            try
+            {
+                if (real.isClosed()) return false;
+                if (!real.getAutoCommit())
+                {
+                    real.rollback();            // anything not committed by the borrower is thrown away
+                    real.setAutoCommit(true);
+                }
+                if (real.isReadOnly()) real.setReadOnly(false);
+                return true;
+            }
+            catch (SQLException e) { return false; }
+        }
+
+        void closePhysical()
+        {
+            for (CachedStatement cs : statements.values()) cs.closePhysical();
+            statements.clear();
+            try { real.close(); }
+            catch (SQLException ignored) {}
+        }
+
+        PreparedStatement prepare(Connection proxy, Method method, Object[] args) throws Throwable
+        {
+            // the key is the sql plus the extra prepareStatement arguments (generated keys, result set type, ...)
+            String key = args.length == 1 ? (String) args[0] : args[0] + "\u0000" + Arrays.deepToString(Arrays.copyOfRange(args, 1, args.length));
+            CachedStatement cs = statementCacheSize > 0 ? statements.get(key) : null;
+            if (cs != null && !cs.inUse)
+            {
+                synchronized (ConnectionPool.this) { statementHits++; }
+                cs.inUse = true;
+                return cs.proxy(proxy);
+            }
+            synchronized (ConnectionPool.this) { statementMisses++; }
+            PreparedStatement stmt = (PreparedStatement) invoke(real, method, args);
+            if (cs != null || statementCacheSize <= 0)
+                return stmt;            // same sql already open on this connection, this one is not cached
+            cs = new CachedStatement(stmt, statements, key);
+            cs.inUse = true;
+            statements.put(key, cs);
+            return cs.proxy(proxy);
+        }
+
+        // one Lease per borrow, once it is closed every call on the old proxy fails
+        private class Lease implements InvocationHandler
+        {
+            private Connection proxy;
+            private boolean returned;
+
+            @Override
+            public Object invoke(Object p, Method method, Object[] args) throws Throwable
+            {
+                switch (method.getName())
+                {
+                    case "close":
+                        if (!returned)
+                        {
+                            returned = true;
+                            release(PooledConnection.this);
+                        }
+                        return null;
+                    case "isClosed":
+                        return returned || real.isClosed();
+                    case "equals":
+                        return p == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(p);
+                    case "toString":
+                        return "Pooled" + real;
+                }
+                if (returned) throw new SQLException("Connection was already returned to the pool");
+                if (method.getName().equals("prepareStatement"))
+                    return prepare(proxy, method, args);
+                return ConnectionPool.invoke(real, method, args);
+            }
+        }
+    }
+
+    // CachedStatement keeps a prepared statement open between borrows, close() from the borrower only clears it
+    private static class CachedStatement implements InvocationHandler
+    {
+        private final PreparedStatement real;
+        private final Map<String, CachedStatement> cache;       // the statements of the connection, to drop this one from
+        private final String key;
+        private Connection owner;
+        private boolean inUse;
+        private boolean evicted;
+
+        CachedStatement(PreparedStatement real, Map<String, CachedStatement> cache, String key)
+        {
+            this.real = real;
+            this.cache = cache;
+            this.key = key;
+        }
+
+        PreparedStatement proxy(Connection owner)
+        {
+            this.owner = owner;
+            return (PreparedStatement) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+                    new Class<?>[]{PreparedStatement.class}, this);
+        }
+
+        @Override
+        public Object invoke(Object p, Method method, Object[] args) throws Throwable
+        {
+            switch (method.getName())
+            {
+                case "close":
+                    if (inUse)
+                    {
+                        inUse = false;
+                        if (evicted) closePhysical();
+                        else clear();
+                    }
+                    return null;
+                case "isClosed":
+                    return !inUse;
+                case "getConnection":
+                    return owner;
+                case "equals":
+                    return p == args[0];
+                case "hashCode":
+                    return System.identityHashCode(p);
+            }
+            if (!inUse) throw new SQLException("Statement is closed");
+            return ConnectionPool.invoke(real, method, args);
+        }
+
+        private void clear()
+        {
+            try
+            {
+                ResultSet rs = real.getResultSet();
+                if (rs != null) rs.close();
+                real.clearParameters();
+                real.clearBatch();
+            }
+            catch (SQLException e)
+            {
+                evicted = true;         // a statement we cannot reset is not used again
+                closePhysical();
+                cache.remove(key, this);        // the next prepare() of this sql opens a new one
+            }
+        }
+
+        void closePhysical()
+        {
+            try { real.close(); }
+            catch (SQLException ignored) {}
+        }
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable
+    {
+        try { return method.invoke(target, args); }
+        catch (InvocationTargetException e) { throw e.getCause(); }
+    }
+}
+
+// this class is responsible for managing passwords, where it holds, updates passwords
+class PasswordManager
+{
+    private String password;
+    // class constructor for initializing attributes
+    public PasswordManager(String password) { this.password = password; }
+    // getter for the password attribute
+    public String getPassword() { return password; }
+    // setter for setting the password for the user
+    public void setPassword(String password) { this.password = password; }
+}
+
+// User class will be responsible for managing, holding user's data
+class User
+{
+    // we assign attributes as "final" to prevent accidental modification of values after initializing them
+    private final int id;
+    private final String username;
+    private final PasswordManager passwordManager;
+
+    // class constructor for initializing attributes
+    public User(int id, String username, String password)
+    {
+        this.id = id;
+        this.username = username;
+        this.passwordManager = new PasswordManager(password);
+    }
+
+    // getters and setters for class attributes
+    public int getId() { return id; }
+    public String getUsername() { return username; }
+    public String getPassword() { return passwordManager.getPassword(); }
+    public void setPassword(String password) { this.passwordManager.setPassword(password); }
+}
+
+// Diary class will be responsible for managing user's diaries
+class Diary
+{
+    // defining class attributes
+    private final int id;
+    private String name;
+    private String duration;
+    private String address;
+    private LocalDate date;
+    private LocalTime time;
+    private String details;
+    private final int userId;
+    private int version;            // the row's version when it was read, the database adds 1 on every update
+    private int dirty;              // the fields changed by the setters since the diary was read or saved
+    private boolean summary;        // details is only the first PREVIEW_LENGTH characters, the whole text is read when needed
+
+    // how much of the details the lists read and keep, the table cell only shows the start of it anyway
+    static final int PREVIEW_LENGTH = 100;
+
+    // the fields, used as bits of getDirtyFields()
+    static final int NAME = 1, DURATION = 2, ADDRESS = 4, DATE = 8, TIME = 16, DETAILS = 32, ALL_FIELDS = 63;
+
+    // using the class constructor for initializing attributes
+    public Diary(int id, String name, String duration, String address, LocalDate date, LocalTime time, String details, int userId)
+    {
+        this(id, name, duration, address, date, time, details, userId, 0);
+    }
+
+    public Diary(int id, String name, String duration, String address, LocalDate date, LocalTime time, String details, int userId, int version)
+    {
+        this.id = id;
+        this.name = name;
+        this.duration = duration;
+        this.address = address;
+        this.date = date;
+        this.time = time;
+        this.details = details;
+        this.userId = userId;
+        this.version = version;
+    }
+
+    // getters for class attributes
+    public int getId() { return id; }
+    public String getName() { return name; }
+    public String getDuration() { return duration; }
+    public String getAddress() { return address; }
+    public LocalDate getDate() { return date; }
+    public LocalTime getTime() { return time; }
+    public String getDetails() { return details; }
+    public int getUserId() { return userId; }
+    public int getVersion() { return version; }
+    public int getDirtyFields() { return dirty; }
+    public boolean isSummary() { return summary; }
+
+    // setters for class attributes, a field only becomes dirty when its value really changes
+    public void setName(String name) { if (!Objects.equals(this.name, name)) dirty |= NAME; this.name = name; }
+    public void setDuration(String duration) { if (!Objects.equals(this.duration, duration)) dirty |= DURATION; this.duration = duration; }
+    public void setAddress(String address) { if (!Objects.equals(this.address, address)) dirty |= ADDRESS; this.address = address; }
+    public void setDate(LocalDate date) { if (!Objects.equals(this.date, date)) dirty |= DATE; this.date = date; }
+    public void setTime(LocalTime time) { if (!Objects.equals(this.time, time)) dirty |= TIME; this.time = time; }
+    public void setDetails(String details) { if (!Objects.equals(this.details, details)) { dirty |= DETAILS; summary = false; } this.details = details; }
+
+    // for diaries built from only the changed fields (the HTTP API sends just those)
+    public void markDirty(int fields) { dirty |= fields; }
+
+    // called by the storage after the changes were written: the row has the next version and nothing is dirty anymore
+    public void markSaved() { version++; dirty = 0; }
+
+    // the same diary with another id, used when the database gives a new diary its AUTO INCREMENT id
+    public Diary withId(int id)
+    {
+        Diary d = new Diary(id, name, duration, address, date, time, details, userId, version);
+        d.summary = summary;
+        return d;
+    }
+    public Diary copy() { return withId(id); }
+
+    // the diary as the lists keep it: long details cut to a preview
+    public Diary summary()
+    {
+        return details != null && details.length() > PREVIEW_LENGTH ? withPreview(details.substring(0, PREVIEW_LENGTH)) : copy();
+    }
+
+    // the same diary whose details are only the given start of the text
+    public Diary withPreview(String preview)
+    {
+        Diary d = copy();
+        d.details = preview;
+        d.summary = true;
+        return d;
+    }
+
+    // the same diary with its whole details (read after the list gave only a preview)
+    public Diary withDetails(String details)
+    {
+        Diary d = copy();
+        d.details = details;
+        d.summary = false;
+        return d;
+    }
+
+    // this diary with the given fields (and the version) taken from another one, used to apply a partial update
+    public Diary withChanges(Diary changes, int fields)
+    {
+        Diary d = new Diary(id,
+                (fields & NAME) != 0 ? changes.name : name,
+                (fields & DURATION) != 0 ? changes.duration : duration,
+                (fields & ADDRESS) != 0 ? changes.address : address,
+                (fields & DATE) != 0 ? changes.date : date,
+                (fields & TIME) != 0 ? changes.time : time,
+                (fields & DETAILS) != 0 ? changes.details : details,
+                userId, changes.version);
+        d.summary = (fields & DETAILS) != 0 ? changes.summary : summary;
+        return d;
+    }
+}
+
+// thrown when a diary is saved but someone else saved it after it was read (its version in the database is newer)
+class DiaryConflictException extends SQLException
+{
+    private static final long serialVersionUID = 1L;
+
+    public DiaryConflictException(String message) { super(message); }
+}
+
+// DiaryStorage is everything the program needs from the place users and diaries are kept. DatabaseHandler keeps them in
+// MySQL, MappedLogStorage keeps them in a local file; Storage.get() decides which one the program uses.
+interface DiaryStorage
+{
+    // receives the rows of a streamed query one at a time
+    interface RowHandler { void row(Diary d) throws IOException; }
+
+    User getUserByUsername(String username) throws SQLException;
+    void addUser(String username, String password) throws SQLException;
+    void updatePassword(String username, String password) throws SQLException;
+
+    // every list of diaries is in (date, time, id) order. The lists hold summaries: long details are cut to a preview
+    // (Diary.isSummary()) and getDiaryDetails() reads the whole text of one diary; only the stream and getDiary() (one
+    // row of the user, null when there is none) have whole diaries
+    List<Diary> getUserDiaries(int userId) throws SQLException;
+    void streamUserDiaries(int userId, RowHandler handler) throws SQLException, IOException;
+    String getDiaryDetails(int userId, int id) throws SQLException;
+    Diary getDiary(int userId, int id) throws SQLException;
+    List<Diary> getFirstDiariesByUsername(String username, int pageSize) throws SQLException;
+    int countDiariesByUsername(String username) throws SQLException;
+    int countUserDiaries(int userId) throws SQLException;
+    List<Diary> getUserDiariesAfter(int userId, Diary after, int pageSize) throws SQLException;
+    List<Diary> getUserDiariesBefore(int userId, Diary before, int pageSize) throws SQLException;
+    List<Diary> getUserDiariesAt(int userId, int offset, int pageSize) throws SQLException;
+    int countDiariesBefore(Diary d) throws SQLException;
+    List<Diary> getUserDiariesBetween(int userId, LocalDate from, LocalDate to) throws SQLException;
+    List<Diary> getUpcomingDiaries(int userId, LocalDateTime from, int limit) throws SQLException;
+
+    // the same pages in the order and with the filters of a DiaryQuery
+    List<Diary> queryDiariesAfter(int userId, DiaryQuery query, Diary after, int pageSize) throws SQLException;
+    List<Diary> queryDiariesBefore(int userId, DiaryQuery query, Diary before, int pageSize) throws SQLException;
+    List<Diary> queryDiariesAt(int userId, DiaryQuery query, int offset, int pageSize) throws SQLException;
+    int countDiaries(int userId, DiaryQuery query) throws SQLException;
+
+    int addDiary(Diary d) throws SQLException;
+    Map<Integer, SQLException> addDiaries(List<Diary> diaries) throws SQLException;
+    void updateDiary(Diary d) throws SQLException;
+    void deleteUserDiary(int userId, int id) throws SQLException;
+    void deleteDiary(int id) throws SQLException;
+
+    // getting ready before the first real call (opening connections or the file)
+    void warmUp() throws SQLException;
+}
+
+// Storage picks the storage of the program once: -Ddiary.storage=mysql (the default) or -Ddiary.storage=local, which keeps
+// everything in the file -Ddiary.storage.path (default ~/.diary/diary.log) and needs no database server. With MySQL,
+// -Ddiary.journal=true puts a JournaledStorage in front of it, so diary writes go on while the database is away
+class Storage
+{
+    private static DiaryStorage storage;
+
+    public static synchronized DiaryStorage get()
+    {
+        if (storage == null)
+        {
+            if (System.getProperty("diary.storage", "mysql").equalsIgnoreCase("local"))
+            {
+                String path = System.getProperty("diary.storage.path",
+                        Paths.get(System.getProperty("user.home"), ".diary", "diary.log").toString());
+                storage = new MappedLogStorage(Paths.get(path));
+            }
+            else if (Boolean.getBoolean("diary.journal"))
+            {
+                String path = System.getProperty("diary.journal.path",
+                        Paths.get(System.getProperty("user.home"), ".diary", "journal.log").toString());
+                storage = new JournaledStorage(new DatabaseHandler(), Paths.get(path));
+            }
+            else
+                storage = new DatabaseHandler();
+        }
+        return storage;
+    }
+}
+
+// DetailsCodec compresses long diary details for DatabaseHandler. Details of at least -Ddiary.compress.minBytes (default
+// 1024) bytes of UTF-8 are deflated into the details_z column and `details` keeps only the preview the lists read, so a
+// row with pasted meeting notes takes a fraction of the space in the table, the buffer pool and on the wire. Shorter
+// details, details that do not shrink by at least 1/8, and rows written before details_z existed are plain text in
+// `details` with details_z NULL; both kinds are read back the same way.
+//   details_z = format(byte, 1 = Deflate) length(int, bytes of UTF-8) data
+class DetailsCodec
+{
+    static final byte DEFLATE = 1;
+    private static final int HEADER = 5;
+    private static final int MAX_LENGTH = 16 * 1024 * 1024 - 1;       // the most a MEDIUMTEXT holds, no details are longer
+    private static final int MAX_RATIO = 1032;                        // Deflate cannot shrink data more than this
+    private static final int MIN_BYTES = Integer.getInteger("diary.compress.minBytes", 1024);
+
+    // what was written compressed since the start (or the last reset), for the ratio in QueryMetrics
+    private static final LongAdder rows = new LongAdder();
+    private static final LongAdder rawBytes = new LongAdder();
+    private static final LongAdder storedBytes = new LongAdder();
+
+    // the details_z value for these details, or null when they are stored as plain text
+    static byte[] compress(String details)
+    {
+        if (details == null || details.length() * 3L < MIN_BYTES) return null;        // a char is at most 3 bytes of UTF-8
+        byte[] raw = details.getBytes(StandardCharsets.UTF_8);
+        if (raw.length < MIN_BYTES) return null;
+        byte[] out = new byte[HEADER + raw.length - raw.length / 8];        // not worth it if it does not fit in here
+        Deflater deflater = new Deflater();
+        try
+        {
+            deflater.setInput(raw);
+            deflater.finish();
+            int size = deflater.deflate(out, HEADER, out.length - HEADER);
+            if (!deflater.finished()) return null;
+            out[0] = DEFLATE;
+            ByteBuffer.wrap(out, 1, 4).putInt(raw.length);
+            rows.increment();
+            rawBytes.add(raw.length);
+            storedBytes.add(HEADER + size);
+            return Arrays.copyOf(out, HEADER + size);
+        }
+        finally { deflater.end(); }
+    }
+
+    static String decompress(byte[] data) throws SQLException
+    {
+        if (data.length < HEADER || data[0] != DEFLATE)
+            throw new SQLException("Unknown format of compressed details: " + (data.length == 0 ? "empty" : "format " + data[0]));
+        int length = ByteBuffer.wrap(data, 1, 4).getInt();
+        if (length < 0 || length > MAX_LENGTH || length > (long) (data.length - HEADER) * MAX_RATIO)
+            throw new SQLException("Compressed details are broken (length " + length + " for " + (data.length - HEADER) + " bytes)");
+        byte[] raw = new byte[length];
+        Inflater inflater = new Inflater();
+        try
+        {
+            inflater.setInput(data, HEADER, data.length - HEADER);
+            int size = 0;
+            while (size < length)
+            {
+                int n = inflater.inflate(raw, size, length - size);
+                if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) break;
+                size += n;
+            }
+            if (size != length) throw new SQLException("Compressed details are broken (" + size + " of " + length + " bytes)");
+            return new String(raw, StandardCharsets.UTF_8);
+        }
+        catch (DataFormatException e) { throw new SQLException("Compressed details are broken: " + e.getMessage(), e); }
+        finally { inflater.end(); }
+    }
+
+    // what is written to `details` next to the compressed value: the start of the text, for the lists
+    static String preview(String details)
+    {
+        return details.length() <= Diary.PREVIEW_LENGTH ? details : details.substring(0, Diary.PREVIEW_LENGTH);
+    }
+
+    static long getRows() { return rows.sum(); }
+    static long getRawBytes() { return rawBytes.sum(); }
+    static long getStoredBytes() { return storedBytes.sum(); }
+
+    // how many times smaller the compressed details are (1 when nothing was compressed)
+    static double getRatio()
+    {
+        long stored = storedBytes.sum();
+        return stored == 0 ? 1 : (double) rawBytes.sum() / stored;
+    }
+
+    static void reset()
+    {
+        rows.reset();
+        rawBytes.reset();
+        storedBytes.reset();
+    }
+}
+
+// DatabaseHandler class is responsible for: - performing queries on database to retrieve data
+//                                           - handling SQLExceptions and connections
+//                                           - performing the CRUD operations:
+//                                              - Create
+//                                              - Read
+//                                              - Update
+//                                              - Delete
+class DatabaseHandler implements DiaryStorage
+{
+    // the columns read for lists: the details only up to the preview (details_cut tells that there is more), so loading
+    // a list does not move every diary's whole text; getDiaryDetails() reads the rest of one diary when it is opened
+    private static final String SUMMARY_COLUMNS = summaryColumns("");
+    private static final String SUMMARY_COLUMNS_D = summaryColumns("d.");
+
+    private static String summaryColumns(String table)
+    {
+        return table + "id, " + table + "name, " + table + "duration, " + table + "address, " + table + "date, " + table + "time, "
+                + "LEFT(" + table + "details, " + Diary.PREVIEW_LENGTH + ") AS details, "
+                + "(CHAR_LENGTH(" + table + "details) > " + Diary.PREVIEW_LENGTH + " OR " + table + "details_z IS NOT NULL) AS details_cut, "
+                + table + "user_id, " + table + "version";
+    }
+
+    @Override
+    public User getUserByUsername(String username) throws SQLException
+    {
+        String sql = "SELECT * FROM user WHERE username=?";         // sql query to handle user login 
+        try (QueryTimer timer = QueryMetrics.start("getUserByUsername");
+             Connection conn = timer.connect();
+             PreparedStatement stmt = conn.prepareStatement(sql))
+        {
+            stmt.setString(1, username);
+            ResultSet rs = timer.query(stmt);
+            if (rs.next())
+            {
+                timer.rows(1);
+                return new User(rs.getInt("id"), rs.getString("username"), rs.getString("password"));
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void addUser(String username, String password) throws SQLException
+    {
+        String sql = "INSERT INTO user (username, password) VALUES (?, ?)";     //sql query handle user registeration
+        int id;
+        try (QueryTimer timer = QueryMetrics.start("addUser");
+             Connection conn = timer.connect();
+             PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS))
+        {
+            stmt.setString(1, username);
+            stmt.setString(2, password);
+            timer.update(stmt);
+            try (ResultSet keys = stmt.getGeneratedKeys())
+            {
+                if (!keys.next()) return;
+                id = keys.getInt(1);
+            }
+        }
+        Shards.place(id, Shards.ringShard(id));        // a new user's diaries go to the shard the ring gives (when sharded)
+    }
+
+    @Override
+    public void updatePassword(String username, String password) throws SQLException {
+        String sql = "UPDATE user SET password=? WHERE username=?";         // sql query handle updating password
+        try (QueryTimer timer = QueryMetrics.start("updatePassword");
+             Connection conn = timer.connect();
+             PreparedStatement stmt = conn.prepareStatement(sql))
+        {
+            stmt.setString(1, password);
+            stmt.setString(2, username);
+            timer.update(stmt);
+        }
+    }
+
+  
+    @Override
+    public List<Diary> getUserDiaries(int userId) throws SQLException
+    {
+        List<Diary> list = new ArrayList<>();
+        String sql = "SELECT " + SUMMARY_COLUMNS + " FROM diary WHERE user_id=? ORDER BY date, time, id";         // sql query retrive all added diaries
+        try (QueryTimer timer = QueryMetrics.start("getUserDiaries");
+             Shards.Route route = Shards.route(userId);
+             Connection conn = timer.connect(route.pool());
+             PreparedStatement stmt = conn.prepareStatement(sql))
+        {
+            stmt.setInt(1, userId);
+            ResultSet rs = timer.query(stmt);
+            while (rs.next())
+                list.add(readSummary(rs));
+            timer.rows(list.size());
+        }
+        return list;
+    }
+
+    // reading all diaries of a user without keeping them: the driver streams the rows (fetch size Integer.MIN_VALUE is
+    // MySQL's row-by-row streaming mode) and each one is handed to the handler and forgotten
+    @Override
+    public void streamUserDiaries(int userId, RowHandler handler) throws SQLException, IOException
+    {
+        String sql = "SELECT * FROM diary WHERE user_id=? ORDER BY date, time, id";
+        try (QueryTimer timer = QueryMetrics.start("streamUserDiaries");
+             Shards.Route route = Shards.route(userId);
+             Connection conn = timer.connect(route.pool());
+             PreparedStatement stmt = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY))
+        {
+            stmt.setFetchSize(Integer.MIN_VALUE);
+            stmt.setInt(1, userId);
+            try (ResultSet rs = timer.query(stmt))
+            {
+                while (rs.next())
+                {
+                    Diary d = readDiary(rs);
+                    handler.row(rs.getBytes("details_z") == null ? d : d.withDetails(details(rs)));
+                    timer.rows(1);
+                }
+            }
+        }
+    }
+
+    // the whole details of one diary of this user, read when the list only has its preview
+    @Override
+    public String getDiaryDetails(int userId, int id) throws SQLException
+    {
+        String sql = "SELECT details, details_z FROM diary WHERE id=? AND user_id=?";
+        try (QueryTimer timer = QueryMetrics.start("getDiaryDetails");
+             Shards.Route route = Shards.route(userId);
+             Connection conn = timer.connect(route.pool());
+             PreparedStatement stmt = conn.prepareStatement(sql))
+        {
+            stmt.setInt(1, id);
+            stmt.setInt(2, userId);
+            ResultSet rs = timer.query(stmt);
+            if (!rs.next())
+                throw new SQLException("Diary " + id + " was not found");
+            timer.rows(1);
+            return details(rs);
+        }
+    }
+
+    // one whole diary of this user by its primary key, null when the user has no such diary
+    @Override
+    public Diary getDiary(int userId, int id) throws SQLException
+    {
+        String sql = "SELECT * FROM diary WHERE id=? AND user_id=?";
+        try (QueryTimer timer = QueryMetrics.start("getDiary");
+             Shards.Route route = Shards.route(userId);
+             Connection conn = timer.connect(route.pool());
+             PreparedStatement stmt = conn.prepareStatement(sql))
+        {
+            stmt.setInt(1, id);
+            stmt.setInt(2, userId);
+            ResultSet rs = timer.query(stmt);
+            if (!rs.next())
+                return null;
+            timer.rows(1);
+            Diary d = readDiary(rs);
+            return rs.getBytes("details_z") == null ? d : d.withDetails(details(rs));
+        }
+    }
+
+    // the first page of a user's diaries found by username, so it can be read before the login check has finished
+    @Override
+    public List<Diary> getFirstDiariesByUsername(String username, int pageSize) throws SQLException
+    {
+        if (Shards.isSharded())     // the user table is in the directory and the diaries on the user's shard: no join
+        {
+            User user = getUserByUsername(username);
+            return user == null ? new ArrayList<>() : getUserDiariesAt(user.getId(), 0, pageSize);
+        }
+        List<Diary> list = new ArrayList<>();
+        String sql = "SELECT " + SUMMARY_COLUMNS_D + " FROM diary d JOIN user u ON u.id = d.user_id WHERE u.username=? ORDER BY d.date, d.time, d.id LIMIT ?";
+        try (QueryTimer timer = QueryMetrics.start("getFirstDiariesByUsername");
+             Connection conn = timer.connect();
+             PreparedStatement stmt = conn.prepareStatement(sql))
+        {
+            stmt.setString(1, username);
+            stmt.setInt(2, pageSize);
+            ResultSet rs = timer.query(stmt);
+            while (rs.next())
+                list.add(readSummary(rs));
+            timer.rows(list.size());
+        }
+        return list;
+    }
+
+    @Override
+    public int countDiariesByUsername(String username) throws SQLException
+    {
+        if (Shards.isSharded())
+        {
+            User user = getUserByUsername(username);
+            return user == null ? 0 : countUserDiaries(user.getId());
+        }
+        String sql = "SELECT COUNT(*) FROM diary d JOIN user u ON u.id = d.user_id WHERE u.username=?";
+        try (QueryTimer timer = QueryMetrics.start("countDiariesByUsername");
+             Connection conn = timer.connect();
+             PreparedStatement stmt = conn.prepareStatement(sql))
+        {
+            stmt.setString(1, username);
+            ResultSet rs = timer.query(stmt);
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    @Override
+    public int countUserDiaries(int userId) throws SQLException
+    {
+        String sql = "SELECT COUNT(*) FROM diary WHERE user_id=?";
+        try (QueryTimer timer = QueryMetrics.start("countUserDiaries");
+             Shards.Route route = Shards.route(userId);
+             Connection conn = timer.connect(route.pool());
+             PreparedStatement stmt = conn.prepareStatement(sql))
+        {
+            stmt.setInt(1, userId);
+            ResultSet rs = timer.query(stmt);
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    // paging uses the (date, time, id) of the last row already shown ("keyset") instead of OFFSET, so every page is one
+    // range read on the (user_id, date, time, id) index no matter how deep in the list it is
+    @Override
+    public List<Diary> getUserDiariesAfter(int userId, Diary after, int pageSize) throws SQLException
+    {
+        if (after == null)
+            return getUserDiariesAt(userId, 0, pageSize);
+        String sql = "SELECT " + SUMMARY_COLUMNS + " FROM diary WHERE user_id=? AND (date > ? OR (date = ? AND (time > ? OR (time = ? AND id > ?))))"
+                + " ORDER BY date, time, id LIMIT ?";
+        return queryPage("getUserDiariesAfter", sql, userId, after, pageSize, false);
+    }
+
+    // the page just before the given row, returned in the normal (oldest first) order
+    @Override
+    public List<Diary> getUserDiariesBefore(int userId, Diary before, int pageSize) throws SQLException
+    {
+        String sql = "SELECT " + SUMMARY_COLUMNS + " FROM diary WHERE user_id=? AND (date < ? OR (date = ? AND (time < ? OR (time = ? AND id < ?))))"
+                + " ORDER BY date DESC, time DESC, id DESC LIMIT ?";
+        return queryPage("getUserDiariesBefore", sql, userId, before, pageSize, true);
+    }
+
+    // only used when the user drags the scrollbar far away from the rows already loaded, every other page is read by keyset
+    @Override
+    public List<Diary> getUserDiariesAt(int userId, int offset, int pageSize) throws SQLException
+    {
+        List<Diary> list = new ArrayList<>();
+        String sql = "SELECT " + SUMMARY_COLUMNS + " FROM diary WHERE user_id=? ORDER BY date, time, id LIMIT ? OFFSET ?";
+        try (QueryTimer timer = QueryMetrics.start("getUserDiariesAt");
+             Shards.Route route = Shards.route(userId);
+             Connection conn = timer.connect(route.pool());
+             PreparedStatement stmt = conn.prepareStatement(sql))
+        {
+            stmt.setInt(1, userId);
+            stmt.setInt(2, pageSize);
+            stmt.setInt(3, offset);
+            ResultSet rs = timer.query(stmt);
+            while (rs.next())
+                list.add(readSummary(rs));
+            timer.rows(list.size());
+        }
+        return list;
+    }
+
+    // the row number of a diary in the (date, time, id) order = how many of the user's diaries come before it
+    @Override
+    public int countDiariesBefore(Diary d) throws SQLException
+    {
+        String sql = "SELECT COUNT(*) FROM diary WHERE user_id=? AND (date < ? OR (date = ? AND (time < ? OR (time = ? AND id < ?))))";
+        try (QueryTimer timer = QueryMetrics.start("countDiariesBefore");
+             Shards.Route route = Shards.route(d.getUserId());
+             Connection conn = timer.connect(route.pool());
+             PreparedStatement stmt = conn.prepareStatement(sql))
+        {
+            stmt.setInt(1, d.getUserId());
+            stmt.setObject(2, d.getDate());
+            stmt.setObject(3, d.getDate());
+            stmt.setObject(4, d.getTime());
+            stmt.setObject(5, d.getTime());
+            stmt.setInt(6, d.getId());
+            ResultSet rs = timer.query(stmt);
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    private List<Diary> queryPage(String operation, String sql, int userId, Diary key, int pageSize, boolean reverse) throws SQLException
+    {
+        List<Diary> list = new ArrayList<>();
+        try (QueryTimer timer = QueryMetrics.start(operation);
+             Shards.Route route = Shards.route(userId);
+             Connection conn = timer.connect(route.pool());
+             PreparedStatement stmt = conn.prepareStatement(sql))
+        {
+            stmt.setInt(1, userId);
+            stmt.setObject(2, key.getDate());
+            stmt.setObject(3, key.getDate());
+            stmt.setObject(4, key.getTime());
+            stmt.setObject(5, key.getTime());
+            stmt.setInt(6, key.getId());
+            stmt.setInt(7, pageSize);
+            ResultSet rs = timer.query(stmt);
+            while (rs.next())
+                list.add(readSummary(rs));
+            timer.rows(list.size());
+        }
+        if (reverse) Collections.reverse(list);
+        return list;
+    }
+
+    // sorted and filtered pages: keyset paging like above but on (sort columns, id) of the DiaryQuery
+    @Override
+    public List<Diary> queryDiariesAfter(int userId, DiaryQuery query, Diary after, int pageSize) throws SQLException
+    {
+        List<Object> params = new ArrayList<>();
+        StringBuilder sql = new StringBuilder("SELECT " + SUMMARY_COLUMNS + " FROM diary WHERE ").append(where(userId, query, params));
+        if (after != null)
+            sql.append(" AND ").append(keyset(query.getSort(), query.getSort().values(after), 0, after.getId(), !query.isDescending(), params));
+        sql.append(" ORDER BY ").append(orderBy(query.getSort(), query.isDescending())).append(" LIMIT ?");
+        params.add(pageSize);
+        return queryList("queryDiariesAfter", userId, sql.toString(), params);
+    }
+
+    @Override
+    public List<Diary> queryDiariesBefore(int userId, DiaryQuery query, Diary before, int pageSize) throws SQLException
+    {
+        List<Object> params = new ArrayList<>();
+        String sql = "SELECT " + SUMMARY_COLUMNS + " FROM diary WHERE " + where(userId, query, params)
+                + " AND " + keyset(query.getSort(), query.getSort().values(before), 0, before.getId(), query.isDescending(), params)
+                + " ORDER BY " + orderBy(query.getSort(), !query.isDescending()) + " LIMIT ?";
+        params.add(pageSize);
+        List<Diary> list = queryList("queryDiariesBefore", userId, sql, params);
+        Collections.reverse(list);
+        return list;
+    }
+
+    @Override
+    public List<Diary> queryDiariesAt(int userId, DiaryQuery query, int offset, int pageSize) throws SQLException
+    {
+        List<Object> params = new ArrayList<>();
+        String sql = "SELECT " + SUMMARY_COLUMNS + " FROM diary WHERE " + where(userId, query, params)
+                + " ORDER BY " + orderBy(query.getSort(), query.isDescending()) + " LIMIT ? OFFSET ?";
+        params.add(pageSize);
+        params.add(offset);
+        return queryList("queryDiariesAt", userId, sql, params);
+    }
+
+    @Override
+    public int countDiaries(int userId, DiaryQuery query) throws SQLException
+    {
+        List<Object> params = new ArrayList<>();
+        String sql = "SELECT COUNT(*) FROM diary WHERE " + where(userId, query, params);
+        try (QueryTimer timer = QueryMetrics.start("countDiaries");
+             Shards.Route route = Shards.route(userId);
+             Connection conn = timer.connect(route.pool());
+             PreparedStatement stmt = conn.prepareStatement(sql))
+        {
+            for (int i = 0; i < params.size(); i++) stmt.setObject(i + 1, params.get(i));
+            ResultSet rs = timer.query(stmt);
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    private List<Diary> queryList(String operation, int userId, String sql, List<Object> params) throws SQLException
+    {
+        List<Diary> list = new ArrayList<>();
+        try (QueryTimer timer = QueryMetrics.start(operation);
+             Shards.Route route = Shards.route(userId);
+             Connection conn = timer.connect(route.pool());
+             PreparedStatement stmt = conn.prepareStatement(sql))
+        {
+            for (int i = 0; i < params.size(); i++) stmt.setObject(i + 1, params.get(i));
+            ResultSet rs = timer.query(stmt);
+            while (rs.next())
+                list.add(readSummary(rs));
+            timer.rows(list.size());
+        }
+        return list;
+    }
+
+    private static String where(int userId, DiaryQuery query, List<Object> params)
+    {
+        StringBuilder sql = new StringBuilder("user_id=?");
+        params.add(userId);
+        if (query.getNameContains() != null)
+        {
+            sql.append(" AND name LIKE ?");
+            params.add(likeContains(query.getNameContains()));
+        }
+        if (query.getAddressContains() != null)
+        {
+            sql.append(" AND address LIKE ?");
+            params.add(likeContains(query.getAddressContains()));
+        }
+        if (query.getFrom() != null)
+        {
+            sql.append(" AND date >= ?");
+            params.add(query.getFrom());
+        }
+        if (query.getTo() != null)
+        {
+            sql.append(" AND date <= ?");
+            params.add(query.getTo());
+        }
+        return sql.toString();
+    }
+
+    // '%' and '_' typed by the user are searched for, not used as wildcards
+    private static String likeContains(String text)
+    {
+        return "%" + text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_") + "%";
+    }
+
+    private static String orderBy(DiaryQuery.Sort sort, boolean descending)
+    {
+        String direction = descending ? " DESC" : "";
+        StringBuilder sql = new StringBuilder();
+        for (String column : sort.columns) sql.append(column).append(direction).append(", ");
+        return sql.append("id").append(direction).toString();
+    }
+
+    // the rows after (greater = true) or before the key in the ascending (sort columns, id) order. NULL sorts first in
+    // MySQL, so a nullable column needs its own cases.
+    private static String keyset(DiaryQuery.Sort sort, Object[] values, int i, int id, boolean greater, List<Object> params)
+    {
+        if (i == sort.columns.length)
+        {
+            params.add(id);
+            return greater ? "id > ?" : "id < ?";
+        }
+        String column = sort.columns[i];
+        if (values[i] == null)
+        {
+            String rest = keyset(sort, values, i + 1, id, greater, params);
+            return greater ? "(" + column + " IS NOT NULL OR (" + column + " IS NULL AND " + rest + "))"
+                    : "(" + column + " IS NULL AND " + rest + ")";
+        }
+        params.add(values[i]);
+        params.add(values[i]);
+        String rest = keyset(sort, values, i + 1, id, greater, params);
+        return "(" + column + (greater ? " > ?" : " < ?") + " OR (" + column + " = ? AND " + rest + ")"
+                + (!greater && sort.nullable ? " OR " + column + " IS NULL" : "") + ")";
+    }
+
+    // a row read with SUMMARY_COLUMNS: details is only the start of the text when it was cut
+    private Diary readSummary(ResultSet rs) throws SQLException
+    {
+        Diary d = readDiary(rs);
+        return rs.getBoolean("details_cut") ? d.withPreview(d.getDetails()) : d;
+    }
+
+    // the whole details of a row: decompressed from details_z, or the plain text of `details`
+    private static String details(ResultSet rs) throws SQLException
+    {
+        byte[] compressed = rs.getBytes("details_z");
+        return compressed == null ? rs.getString("details") : DetailsCodec.decompress(compressed);
+    }
+
+    private Diary readDiary(ResultSet rs) throws SQLException
+    {
+        return new Diary (
+                rs.getInt("id"),
+                rs.getString("name"),
+                rs.getString("duration"),
+                rs.getString("address"),
+                rs.getObject("date", LocalDate.class),
+                rs.getObject("time", LocalTime.class),
+                rs.getString("details"),
+                rs.getInt("user_id"),
+                rs.getInt("version")
+        );
+    }
+
+    // diaries between two days (both included), a range read on the (user_id, date, time) index
+    @Override
+    public List<Diary> getUserDiariesBetween(int userId, LocalDate from, LocalDate to) throws SQLException
+    {
+        List<Diary> list = new ArrayList<>();
+        String sql = "SELECT " + SUMMARY_COLUMNS + " FROM diary WHERE user_id=? AND date BETWEEN ? AND ? ORDER BY date, time, id";
+        try (QueryTimer timer = QueryMetrics.start("getUserDiariesBetween");
+             Shards.Route route = Shards.route(userId);
+             Connection conn = timer.connect(route.pool());
+             PreparedStatement stmt = conn.prepareStatement(sql))
+        {
+            stmt.setInt(1, userId);
+            stmt.setObject(2, from);
+            stmt.setObject(3, to);
+            ResultSet rs = timer.query(stmt);
+            while (rs.next())
+                list.add(readSummary(rs));
+            timer.rows(list.size());
+        }
+        return list;
+    }
+
+    // the next `limit` diaries starting at the given moment, also read from the (user_id, date, time) index
+    @Override
+    public List<Diary> getUpcomingDiaries(int userId, LocalDateTime from, int limit) throws SQLException
+    {
+        List<Diary> list = new ArrayList<>();
+        String sql = "SELECT " + SUMMARY_COLUMNS + " FROM diary WHERE user_id=? AND (date > ? OR (date = ? AND time >= ?)) ORDER BY date, time, id LIMIT ?";
+        try (QueryTimer timer = QueryMetrics.start("getUpcomingDiaries");
+             Shards.Route route = Shards.route(userId);
+             Connection conn = timer.connect(route.pool());
+             PreparedStatement stmt = conn.prepareStatement(sql))
+        {
+            stmt.setInt(1, userId);
+            stmt.setObject(2, from.toLocalDate());
+            stmt.setObject(3, from.toLocalDate());
+            stmt.setObject(4, from.toLocalTime());
+            stmt.setInt(5, limit);
+            ResultSet rs = timer.query(stmt);
+            while (rs.next())
+                list.add(readSummary(rs));
+            timer.rows(list.size());
+        }
+        return list;
+    }
+
+    // returning the id the database generated for the new diary
+    @Override
+    public int addDiary(Diary d) throws SQLException
+    {
+        String sql = "INSERT INTO diary (name, duration, address, date, time, details, details_z, user_id) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+        Shards.prepareIds();
+        try (QueryTimer timer = QueryMetrics.start("addDiary");
+             Shards.Route route = Shards.route(d.getUserId());
+             Connection conn = timer.connect(route.pool());
+             PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS))
+        {
+            bindNewDiary(stmt, d);
+            timer.update(stmt);
+            try (ResultSet keys = stmt.getGeneratedKeys())
+            {
+                if (keys.next()) return keys.getInt(1);
+            }
+            throw new SQLException("No id was generated for the new diary");
+        }
+    }
+
+    // inserting many diaries in one transaction using JDBC batching (one round trip per batch instead of per row).
+    // A row the database refuses does not stop the others: it is returned in the map (index in the list -> error).
+    @Override
+    public Map<Integer, SQLException> addDiaries(List<Diary> diaries) throws SQLException
+    {
+        if (!Shards.isSharded())
+        {
+            try (Shards.Route route = Shards.route(0)) { return addDiaries(route, diaries); }
+        }
+        // each user's diaries go to that user's shard, one batch per user
+        Shards.prepareIds();
+        Map<Integer, List<Integer>> byUser = new LinkedHashMap<>();      // user -> indexes in diaries
+        for (int i = 0; i < diaries.size(); i++)
+            byUser.computeIfAbsent(diaries.get(i).getUserId(), k -> new ArrayList<>()).add(i);
+        Map<Integer, SQLException> failed = new TreeMap<>();
+        for (Map.Entry<Integer, List<Integer>> user : byUser.entrySet())
+        {
+            List<Integer> indexes = user.getValue();
+            List<Diary> rows = new ArrayList<>(indexes.size());
+            for (int i : indexes) rows.add(diaries.get(i));
+            try (Shards.Route route = Shards.route(user.getKey()))
+            {
+                for (Map.Entry<Integer, SQLException> f : addDiaries(route, rows).entrySet())
+                    failed.put(indexes.get(f.getKey()), f.getValue());
+            }
+        }
+        return failed;
+    }
+
+    private Map<Integer, SQLException> addDiaries(Shards.Route route, List<Diary> diaries) throws SQLException
+    {
+        Map<Integer, SQLException> failed = new LinkedHashMap<>();
+        String sql = "INSERT INTO diary (name, duration, address, date, time, details, details_z, user_id) VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+        try (QueryTimer timer = QueryMetrics.start("addDiaries");
+             Connection conn = timer.connect(route.pool());
+             PreparedStatement stmt = conn.prepareStatement(sql))
+        {
+            conn.setAutoCommit(false);          // the pool puts autocommit back when the connection is returned
+            try
+            {
+                for (Diary d : diaries)
+                {
+                    bindNewDiary(stmt, d);
+                    stmt.addBatch();
+                }
+                timer.batch(stmt);
+            }
+            catch (BatchUpdateException e)
+            {
+                // some row was refused: undo the batch and insert the rows one by one to find out which ones
+                conn.rollback();
+                stmt.clearBatch();
+                for (int i = 0; i < diaries.size(); i++)
+                {
+                    bindNewDiary(stmt, diaries.get(i));
+                    try { timer.update(stmt); }
+                    catch (SQLException rowError)
+                    {
+                        if (rowError instanceof SQLTransientConnectionException || rowError instanceof SQLNonTransientConnectionException)
+                            throw rowError;         // the database went away, this is not a problem of this row
+                        failed.put(i, rowError);
+                    }
+                }
+            }
+            conn.commit();
+        }
+        return failed;
+    }
+
+    private void bindNewDiary(PreparedStatement stmt, Diary d) throws SQLException
+    {
+        stmt.setString(1, d.getName());
+        stmt.setString(2, d.getDuration());
+        stmt.setString(3, d.getAddress());
+        stmt.setObject(4, d.getDate());
+        stmt.setObject(5, d.getTime());
+        byte[] compressed = DetailsCodec.compress(d.getDetails());
+        stmt.setString(6, compressed == null ? d.getDetails() : DetailsCodec.preview(d.getDetails()));
+        stmt.setBytes(7, compressed);
+        stmt.setInt(8, d.getUserId());
+    }
+
+    // only the changed (dirty) columns are written, and only if the row still has the version the diary was read with;
+    // otherwise someone saved it meanwhile and a DiaryConflictException is thrown instead of overwriting their change.
+    // Only the owner's diary is changed; a diary that does not exist (or belongs to someone else) is an error.
+    @Override
+    public void updateDiary(Diary d) throws SQLException
+    {
+        int fields = d.getDirtyFields();
+        if (fields == 0) return;
+        String sql = updateSql(fields, "version=version+1");
+        try (QueryTimer timer = QueryMetrics.start("updateDiary");
+             Shards.Route route = Shards.route(d.getUserId());
+             Connection conn = timer.connect(route.pool());
+             PreparedStatement stmt = conn.prepareStatement(sql))
+        {
+            int i = bindChanges(stmt, d, fields);
+            stmt.setInt(i++, d.getId());
+            stmt.setInt(i++, d.getUserId());
+            stmt.setInt(i, d.getVersion());
+            if (timer.update(stmt) == 0)
+                throw notUpdated(conn, d);
+        }
+        d.markSaved();
+    }
+
+    // UPDATE of the given fields of one diary of one user at one version; `version` sets the new version
+    private static String updateSql(int fields, String version)
+    {
+        StringBuilder sql = new StringBuilder("UPDATE diary SET ");
+        if ((fields & Diary.NAME) != 0) sql.append("name=?, ");
+        if ((fields & Diary.DURATION) != 0) sql.append("duration=?, ");
+        if ((fields & Diary.ADDRESS) != 0) sql.append("address=?, ");
+        if ((fields & Diary.DATE) != 0) sql.append("date=?, ");
+        if ((fields & Diary.TIME) != 0) sql.append("time=?, ");
+        if ((fields & Diary.DETAILS) != 0) sql.append("details=?, details_z=?, ");
+        return sql.append(version).append(" WHERE id=? AND user_id=? AND version=?").toString();
+    }
+
+    // binding the changed values for updateSql(), returning the index of the next parameter
+    private int bindChanges(PreparedStatement stmt, Diary d, int fields) throws SQLException
+    {
+        int i = 1;
+        if ((fields & Diary.NAME) != 0) stmt.setString(i++, d.getName());
+        if ((fields & Diary.DURATION) != 0) stmt.setString(i++, d.getDuration());
+        if ((fields & Diary.ADDRESS) != 0) stmt.setString(i++, d.getAddress());
+        if ((fields & Diary.DATE) != 0) stmt.setObject(i++, d.getDate());
+        if ((fields & Diary.TIME) != 0) stmt.setObject(i++, d.getTime());
+        if ((fields & Diary.DETAILS) != 0)
+        {
+            byte[] compressed = DetailsCodec.compress(d.getDetails());
+            stmt.setString(i++, compressed == null ? d.getDetails() : DetailsCodec.preview(d.getDetails()));
+            stmt.setBytes(i++, compressed);
+        }
+        return i;
+    }
+
+    // telling a diary that is gone from one that was saved by someone else meanwhile
+    private SQLException notUpdated(Connection conn, Diary d) throws SQLException
+    {
+        try (PreparedStatement stmt = conn.prepareStatement("SELECT version FROM diary WHERE id=? AND user_id=?"))
+        {
+            stmt.setInt(1, d.getId());
+            stmt.setInt(2, d.getUserId());
+            ResultSet rs = stmt.executeQuery();
+            if (rs.next())
+                return new DiaryConflictException("Diary " + d.getId() + " was changed by someone else (version " + rs.getInt(1) + ")");
+        }
+        return new SQLException("Diary " + d.getId() + " was not found");
+    }
+
+    // deleting a diary of this user only
+    @Override
+    public void deleteUserDiary(int userId, int id) throws SQLException
+    {
+        String sql = "DELETE FROM diary WHERE id=? AND user_id=?";
+        try (QueryTimer timer = QueryMetrics.start("deleteUserDiary");
+             Shards.Route route = Shards.route(userId);
+             Connection conn = timer.connect(route.pool());
+             PreparedStatement stmt = conn.prepareStatement(sql))
+        {
+            stmt.setInt(1, id);
+            stmt.setInt(2, userId);
+            if (timer.update(stmt) == 0)
+                throw new SQLException("Diary " + id + " was not found");
+        }
+    }
+
+    // only the id is known, so every shard is asked (ids are unique over all shards, one of them has it)
+    @Override
+    public void deleteDiary(int id) throws SQLException
+    {
+        // sharded: the owner is looked up first and the row deleted under their route, like deleteUserDiary. While
+        // ShardRebalancer moves the user the row is on two shards, deleting the first copy found would leave the other
+        int userId = 0;
+        if (Shards.isSharded())
+        {
+            for (Shards.Shard shard : Shards.all())
+            {
+                try (QueryTimer timer = QueryMetrics.start("diaryOwner");
+                     Connection conn = timer.connect(shard.pool);
+                     PreparedStatement stmt = conn.prepareStatement("SELECT user_id FROM diary WHERE id=?"))
+                {
+                    stmt.setInt(1, id);
+                    ResultSet rs = timer.query(stmt);
+                    if (rs.next())
+                    {
+                        userId = rs.getInt(1);
+                        break;
+                    }
+                }
+            }
+            if (userId == 0) return;            // no such diary
+        }
+        String sql = "DELETE FROM diary WHERE id=?" + (userId == 0 ? "" : " AND user_id=?");
+        try (QueryTimer timer = QueryMetrics.start("deleteDiary");
+             Shards.Route route = Shards.route(userId);
+             Connection conn = timer.connect(route.pool());
+             PreparedStatement stmt = conn.prepareStatement(sql))
+        {
+            stmt.setInt(1, id);
+            if (userId != 0) stmt.setInt(2, userId);
+            timer.update(stmt);
+        }
+    }
+
+    // writing one user's journaled changes (JournaledStorage) in one transaction: the inserts, the updates and the
+    // deletes, each kind in batches. A new diary's id is kept in diary_journal under the journal's client id and its
+    // temporary id, so after a crash the replayed journal finds the diaries it inserted before instead of adding them
+    // again. Updates only apply to the version they were made on, the temporary or real ids of those that did not are
+    // put in `refused`; the ids given to new diaries are put in `newIds`.
+    void applyJournal(long client, int userId, List<JournaledStorage.Change> changes, Map<Integer, Integer> newIds, Set<Integer> refused) throws SQLException
+    {
+        List<JournaledStorage.Change> adds = new ArrayList<>(), updates = new ArrayList<>(), deletes = new ArrayList<>();
+        List<Integer> temporary = new ArrayList<>();
+        for (JournaledStorage.Change c : changes)
+        {
+            if (c.id < 0) temporary.add(c.id);
+            (c.type == JournaledStorage.ADD ? adds : c.type == JournaledStorage.UPDATE ? updates : deletes).add(c);
+        }
+        if (!adds.isEmpty()) Shards.prepareIds();
+        try (QueryTimer timer = QueryMetrics.start("applyJournal");
+             Shards.Route route = Shards.route(userId);
+             Connection conn = timer.connect(route.pool()))
+        {
+            conn.setAutoCommit(false);          // the pool puts autocommit back (and rolls back) when the connection is returned
+            Map<Integer, Integer> insertedVersions = new HashMap<>();        // temporary id -> version, inserted before
+            if (!temporary.isEmpty())
+            {
+                String sql = "SELECT temp_id, id, version FROM diary_journal WHERE client=? AND temp_id IN ("
+                        + String.join(", ", Collections.nCopies(temporary.size(), "?")) + ")";
+                try (PreparedStatement stmt = conn.prepareStatement(sql))
+                {
+                    stmt.setLong(1, client);
+                    for (int i = 0; i < temporary.size(); i++) stmt.setInt(i + 2, temporary.get(i));
+                    ResultSet rs = timer.query(stmt);
+                    while (rs.next())
+                    {
+                        newIds.put(rs.getInt(1), rs.getInt(2));
+                        insertedVersions.put(rs.getInt(1), rs.getInt(3));
+                    }
+                }
+            }
+
+            List<JournaledStorage.Change> inserts = new ArrayList<>();
+            for (JournaledStorage.Change c : adds)
+            {
+                Integer version = insertedVersions.get(c.id);
+                if (version == null)
+                    inserts.add(c);
+                else if (version != c.version)      // inserted before the crash, edited after it was
+                    updates.add(c.asUpdateFrom(version));
+            }
+            if (!inserts.isEmpty())
+            {
+                String sql = "INSERT INTO diary (name, duration, address, date, time, details, details_z, user_id, version) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+                try (PreparedStatement stmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS))
+                {
+                    for (JournaledStorage.Change c : inserts)
+                    {
+                        bindNewDiary(stmt, c.diary);
+                        stmt.setInt(9, c.version);      // edits merged into the insert count as versions, like in the program
+                        stmt.addBatch();
+                    }
+                    timer.batch(stmt);
+                    try (ResultSet keys = stmt.getGeneratedKeys())
+                    {
+                        for (JournaledStorage.Change c : inserts)
+                        {
+                            if (!keys.next()) throw new SQLException("No id was generated for a journaled diary");
+                            newIds.put(c.id, keys.getInt(1));
+                        }
+                    }
+                }
+                try (PreparedStatement stmt = conn.prepareStatement("INSERT INTO diary_journal (client, temp_id, id, version) VALUES (?, ?, ?, ?)"))
+                {
+                    for (JournaledStorage.Change c : inserts)
+                    {
+                        stmt.setLong(1, client);
+                        stmt.setInt(2, c.id);
+                        stmt.setInt(3, newIds.get(c.id));
+                        stmt.setInt(4, c.version);
+                        stmt.addBatch();
+                    }
+                    timer.batch(stmt);
+                }
+            }
+
+            Map<Integer, List<JournaledStorage.Change>> byFields = new LinkedHashMap<>();      // one statement per set of changed columns
+            for (JournaledStorage.Change c : updates)
+                byFields.computeIfAbsent(c.fields, k -> new ArrayList<>()).add(c);
+            for (Map.Entry<Integer, List<JournaledStorage.Change>> e : byFields.entrySet())
+            {
+                List<JournaledStorage.Change> list = e.getValue();
+                try (PreparedStatement stmt = conn.prepareStatement(updateSql(e.getKey(), "version=?")))
+                {
+                    for (JournaledStorage.Change c : list)
+                    {
+                        int i = bindChanges(stmt, c.diary, e.getKey());
+                        stmt.setInt(i++, c.version);
+                        stmt.setInt(i++, newIds.getOrDefault(c.id, c.id));
+                        stmt.setInt(i++, userId);
+                        stmt.setInt(i, c.expected);
+                        stmt.addBatch();
+                    }
+                    int[] counts = timer.batch(stmt);
+                    for (int i = 0; i < counts.length; i++)
+                        if (counts[i] == 0) refused.add(list.get(i).id);
+                }
+            }
+
+            if (!deletes.isEmpty())
+            {
+                try (PreparedStatement stmt = conn.prepareStatement("DELETE FROM diary WHERE id=? AND user_id=?"))
+                {
+                    int count = 0;
+                    for (JournaledStorage.Change c : deletes)
+                    {
+                        Integer id = c.id < 0 ? newIds.get(c.id) : Integer.valueOf(c.id);
+                        if (id == null) continue;           // a new diary deleted before it was ever inserted
+                        stmt.setInt(1, id);
+                        stmt.setInt(2, userId);
+                        stmt.addBatch();
+                        count++;
+                    }
+                    if (count > 0) timer.batch(stmt);       // a diary that is already gone is not an error here
+                }
+            }
+            conn.commit();
+        }
+    }
+
+    // the journal was emptied: its temporary ids are never used again
+    void forgetJournal(long client) throws SQLException
+    {
+        for (Shards.Shard shard : Shards.all())
+        {
+            try (QueryTimer timer = QueryMetrics.start("forgetJournal");
+                 Connection conn = timer.connect(shard.pool);
+                 PreparedStatement stmt = conn.prepareStatement("DELETE FROM diary_journal WHERE client=?"))
+            {
+                stmt.setLong(1, client);
+                timer.update(stmt);
+            }
+        }
+    }
+
+    // opening the pools' first connections
+    @Override
+    public void warmUp()
+    {
+        DBConnection.warmUp();
+        Shards.warmUp();
+    }
+}
+
+// RefusedChange is a journaled edit the database refused when it was written, because the diary had been changed
+// somewhere else since it was read (see JournaledStorage). The user was told it was saved, so it is kept with the values
+// they saved (those of `fields` in getValues()) to be shown and offered again.
+class RefusedChange
+{
+    private final int userId;
+    private final int id;
+    private final Diary values;
+    private final int fields;
+
+    public RefusedChange(int userId, int id, Diary values, int fields)
+    {
+        this.userId = userId;
+        this.id = id;
+        this.values = values;
+        this.fields = fields;
+    }
+
+    public int getUserId() { return userId; }
+    public int getId() { return id; }
+    public Diary getValues() { return values; }
+    public int getFields() { return fields; }
+}
+
+// JournaledStorage keeps diary writes working while MySQL is slow or down (-Ddiary.journal=true, see Storage). Adding,
+// changing or deleting a diary appends a record to a local journal file (-Ddiary.journal.path, default
+// ~/.diary/journal.log) and returns once the record is on disk, so a write costs a local fsync instead of a database
+// round trip. Writers that come while one fsync runs are all covered by the next one (group commit).
+// The changes not in the database yet are kept in memory by diary and merged as they come: edits of one diary become one
+// update of every field any of them changed, edits of a new diary go into its insert, and a new diary deleted before it
+// was written is never written at all. A background thread writes them every -Ddiary.journal.syncMs (default 500), or
+// as soon as -Ddiary.journal.batch (default 200) diaries are waiting, one transaction per user with the inserts, updates
+// and deletes batched (DatabaseHandler.applyJournal). While the database cannot be reached it tries again next time.
+// When everything is written the journal file is emptied.
+//
+// A new diary gets a temporary negative id until it is inserted, calls with that id afterwards go to the real one. The
+// database remembers which temporary ids it inserted (diary_journal) and updates only apply on the version they were
+// made on, so replaying the journal after a crash never writes a change twice. A user's reads that go to the database
+// first write that user's changes, so they see them. After a user's changes are written the sync listeners are told
+// the real ids of the new diaries, and the updates the database refused (someone else changed the diary meanwhile).
+// A refused update is not written, but it is kept as a RefusedChange until takeRefused() is called for its user, so the
+// program can show it and offer the values again. The numbers (synced, refused, failed syncs) are in QueryMetrics.
+//
+//   file   = "DIARYJNL" version(int) client(long) record*
+//   record = type(byte) length(int) crc32(int) payload[length]         (as in MappedLogStorage)
+//   ADD, UPDATE payload = fields(int) id(int) userId(int) version(int) date(long) time(long) name duration address details
+//   DELETE payload      = id(int) userId(int)
+class JournaledStorage implements DiaryStorage
+{
+    private static final byte[] MAGIC = "DIARYJNL".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int HEADER = 20;
+    private static final int RECORD_HEADER = 9;
+    static final byte ADD = 1, UPDATE = 2, DELETE = 3;
+
+    // the pending change of one diary: everything journaled for it since it was last written, merged
+    static class Change
+    {
+        byte type;
+        int id;                 // temporary (negative) id of a new diary, else the real one
+        final int userId;
+        Diary diary;            // ADD: the whole diary, UPDATE: the new values of `fields`
+        int fields;
+        int expected;           // UPDATE: the version in the database the change was made on
+        int version;            // the version after the change
+        long revision;          // +1 on every merge, to see whether it changed while it was written
+        Change live;            // on the copies the syncer writes: the pending change it was copied from
+
+        Change(byte type, int id, int userId)
+        {
+            this.type = type;
+            this.id = id;
+            this.userId = userId;
+        }
+
+        Change copy()
+        {
+            Change c = new Change(type, id, userId);
+            c.diary = diary;
+            c.fields = fields;
+            c.expected = expected;
+            c.version = version;
+            c.revision = revision;
+            c.live = this;
+            return c;
+        }
+
+        // a new diary that was inserted (at `inserted`) and edited since: now an update of every field
+        Change asUpdateFrom(int inserted)
+        {
+            Change c = copy();
+            c.type = UPDATE;
+            c.fields = Diary.ALL_FIELDS;
+            c.expected = inserted;
+            return c;
+        }
+    }
+
+    // told on the syncing thread after a user's changes were written: the ids the database gave the new diaries
+    // (temporary -> real, may be empty) and the updates it refused (may be empty)
+    interface SyncListener { void synced(int userId, Map<Integer, Integer> newIds, List<RefusedChange> refused); }
+
+    // for QueryMetrics, like DetailsCodec's numbers: there is one journal in a program
+    private static final LongAdder syncedChanges = new LongAdder(), refusedChanges = new LongAdder(), failedSyncs = new LongAdder();
+    private static final LongAdder replayedChanges = new LongAdder();
+    private static volatile String lastError;
+
+    private final DatabaseHandler db;
+    private final Path path;
+    private final long syncMillis = Long.getLong("diary.journal.syncMs", 500);
+    private final int batch = Integer.getInteger("diary.journal.batch", 200);
+    private final Map<Integer, Change> pending = new LinkedHashMap<>();       // diary id -> change, guarded by this
+    private final Map<Integer, Integer> realIds = new HashMap<>();             // temporary id -> id given by the database
+    private final Set<Integer> writing = new HashSet<>();                      // ids of the changes being written now
+    private final List<SyncListener> syncListeners = new CopyOnWriteArrayList<>();
+    private final List<RefusedChange> refused = new ArrayList<>();              // not taken yet, guarded by this
+    private final Object forceLock = new Object();
+    private final Object syncLock = new Object();          // one sync at a time; taken before this, this before forceLock
+    private final SecureRandom random = new SecureRandom();
+    private FileChannel channel;
+    private ScheduledExecutorService syncer;
+    private long client;                    // names this journal's temporary ids in diary_journal, new when emptied
+    private volatile long written;          // the end of the file (changed under this)
+    private long synced;                    // how much of it is known to be on disk (under forceLock)
+    private int generation;                 // +1 when the file is emptied (under this and forceLock)
+    private int nextTempId = -1;
+    private boolean replaying;
+    private boolean syncQueued;
+    private volatile boolean offline;       // the last background sync failed
+
+    public JournaledStorage(DatabaseHandler db, Path path)
+    {
+        this.db = db;
+        this.path = path;
+    }
+
+    public void addSyncListener(SyncListener listener) { syncListeners.add(listener); }
+
+    // opening the journal and taking back what an earlier run did not write; the caller holds the monitor
+    private void open() throws SQLException
+    {
+        if (channel != null) return;
+        try
+        {
+            Path dir = path.toAbsolutePath().getParent();
+            if (dir != null) Files.createDirectories(dir);
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            FileLock fileLock;
+            try { fileLock = channel.tryLock(); }
+            catch (OverlappingFileLockException e) { fileLock = null; }
+            if (fileLock == null)
+            {
+                channel.close();
+                channel = null;
+                throw new SQLException("The diary journal " + path + " is used by another program");
+            }
+            if (channel.size() < HEADER)
+                startFile();
+            else
+                replay();
+        }
+        catch (IOException e)
+        {
+            channel = null;
+            throw new SQLException("Cannot open the diary journal " + path + ": " + e.getMessage(), e);
+        }
+        syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "diary-journal-sync");
+            t.setDaemon(true);
+            return t;
+        });
+        syncer.scheduleWithFixedDelay(this::syncQuietly, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // an empty journal with a new client id
+    private void startFile() throws IOException
+    {
+        client = random.nextLong();
+        ByteBuffer header = ByteBuffer.allocate(HEADER).put(MAGIC).putInt(VERSION).putLong(client);
+        header.flip();
+        channel.truncate(0);
+        while (header.hasRemaining()) channel.write(header, header.position());
+        channel.force(true);
+        written = HEADER;
+        synced = HEADER;
+    }
+
+    // merging every record into `pending` again, up to the end or a broken (half written) record, which is cut off
+    private void replay() throws IOException, SQLException
+    {
+        ByteBuffer file = ByteBuffer.allocate((int) Math.min(channel.size(), Integer.MAX_VALUE));
+        while (file.hasRemaining() && channel.read(file, file.position()) > 0) { }
+        file.flip();
+        byte[] magic = new byte[MAGIC.length];
+        file.get(magic);
+        if (!Arrays.equals(magic, MAGIC) || file.getInt() != VERSION)
+            throw new SQLException(path + " is not a diary journal");
+        client = file.getLong();
+        CRC32 crc = new CRC32();
+        int p = HEADER;
+        replaying = true;
+        try
+        {
+            while (p + RECORD_HEADER <= file.limit())
+            {
+                byte type = file.get(p);
+                int length = file.getInt(p + 1);
+                if (type < ADD || type > DELETE || length < 0 || length > file.limit() - p - RECORD_HEADER) break;
+                byte[] payload = new byte[length];
+                file.get(p + RECORD_HEADER, payload);
+                crc.reset();
+                crc.update(type);
+                crc.update(payload);
+                if ((int) crc.getValue() != file.getInt(p + 5)) break;
+                try { apply(type, ByteBuffer.wrap(payload)); }
+                catch (SQLException e) { }              // refused the first time too, it was never acknowledged
+                p += RECORD_HEADER + length;
+            }
+        }
+        finally { replaying = false; }
+        channel.truncate(p);
+        written = p;
+        synced = p;
+        replayedChanges.add(pending.size());
+    }
+
+    private void apply(byte type, ByteBuffer payload) throws SQLException
+    {
+        if (type == DELETE)
+        {
+            int id = payload.getInt();
+            delete(payload.getInt(), id);
+            return;
+        }
+        int fields = payload.getInt();
+        int id = payload.getInt(), userId = payload.getInt(), version = payload.getInt();
+        long date = payload.getLong(), time = payload.getLong();
+        Diary d = new Diary(id, MappedLogStorage.getString(payload), MappedLogStorage.getString(payload), MappedLogStorage.getString(payload),
+                date == Long.MIN_VALUE ? null : LocalDate.ofEpochDay(date), time == Long.MIN_VALUE ? null : LocalTime.ofNanoOfDay(time),
+                MappedLogStorage.getString(payload), userId, version);
+        if (type == ADD)
+            add(d);
+        else
+            update(d, fields);
+    }
+
+    // --- writing: the journal first, then the pending changes (the callers hold the monitor) ---
+
+    private void add(Diary d) throws SQLException
+    {
+        if (d.getName() == null || d.getDate() == null || d.getTime() == null)      // what the database would refuse
+            throw new SQLIntegrityConstraintViolationException("Diary name, date and time cannot be null");
+        log(ADD, encode(d, Diary.ALL_FIELDS));
+        Change c = new Change(ADD, d.getId(), d.getUserId());
+        c.diary = d;
+        c.version = d.getVersion();
+        pending.put(d.getId(), c);
+        nextTempId = Math.min(nextTempId, d.getId() - 1);
+    }
+
+    private void update(Diary d, int fields) throws SQLException
+    {
+        if (((fields & Diary.NAME) != 0 && d.getName() == null) || ((fields & Diary.DATE) != 0 && d.getDate() == null)
+                || ((fields & Diary.TIME) != 0 && d.getTime() == null))
+            throw new SQLIntegrityConstraintViolationException("Diary name, date and time cannot be null");
+        Change c = pending.get(d.getId());
+        if (c != null && (c.type == DELETE || c.userId != d.getUserId()))
+            throw new SQLException("Diary " + d.getId() + " was not found");
+        if (c != null && c.version != d.getVersion())
+            throw new DiaryConflictException("Diary " + d.getId() + " was changed by someone else (version " + c.version + ")");
+        log(UPDATE, encode(d, fields));
+        if (c == null)
+        {
+            c = new Change(UPDATE, d.getId(), d.getUserId());
+            c.diary = d.copy();
+            c.fields = fields;
+            c.expected = d.getVersion();
+            c.version = d.getVersion() + 1;
+            pending.put(d.getId(), c);
+            return;
+        }
+        c.diary = c.diary.withChanges(d, fields);
+        if (c.type == UPDATE) c.fields |= fields;
+        c.version++;
+        c.revision++;
+    }
+
+    private void delete(int userId, int id) throws SQLException
+    {
+        Change c = pending.get(id);
+        if (c != null && (c.type == DELETE || c.userId != userId))
+            throw new SQLException("Diary " + id + " was not found");
+        log(DELETE, ByteBuffer.allocate(8).putInt(id).putInt(userId).array());
+        if (c == null)
+        {
+            pending.put(id, new Change(DELETE, id, userId));
+            return;
+        }
+        // a new diary can simply be forgotten, unless it may be in the database already (being written now, or replayed)
+        if (c.type == ADD && !replaying && !writing.contains(id))
+        {
+            pending.remove(id);
+            return;
+        }
+        c.type = DELETE;
+        c.revision++;
+    }
+
+    // appending a record (not forced yet, see force()); nothing is written while replaying
+    private void log(byte type, byte[] payload) throws SQLException
+    {
+        if (replaying) return;
+        ByteBuffer record = MappedLogStorage.record(type, payload);
+        try
+        {
+            long p = written;
+            while (record.hasRemaining()) p += channel.write(record, p);
+            written = p;
+        }
+        catch (IOException e) { throw new SQLException("Cannot write the diary journal " + path + ": " + e.getMessage(), e); }
+    }
+
+    private static byte[] encode(Diary d, int fields)
+    {
+        byte[] name = MappedLogStorage.bytes(d.getName()), duration = MappedLogStorage.bytes(d.getDuration()),
+                address = MappedLogStorage.bytes(d.getAddress()), details = MappedLogStorage.bytes(d.getDetails());
+        ByteBuffer b = ByteBuffer.allocate(32 + MappedLogStorage.size(name) + MappedLogStorage.size(duration)
+                + MappedLogStorage.size(address) + MappedLogStorage.size(details));
+        b.putInt(fields).putInt(d.getId()).putInt(d.getUserId()).putInt(d.getVersion());
+        b.putLong(d.getDate() == null ? Long.MIN_VALUE : d.getDate().toEpochDay());
+        b.putLong(d.getTime() == null ? Long.MIN_VALUE : d.getTime().toNanoOfDay());
+        MappedLogStorage.putString(b, name);
+        MappedLogStorage.putString(b, duration);
+        MappedLogStorage.putString(b, address);
+        MappedLogStorage.putString(b, details);
+        return b.array();
+    }
+
+    // waiting until the journal is on disk up to `end`: one fsync covers every record appended before it started
+    private void force(int gen, long end) throws SQLException
+    {
+        synchronized (forceLock)
+        {
+            if (gen != generation || synced >= end) return;         // emptied meanwhile, or another writer's fsync did it
+            long upTo = written;
+            try { channel.force(false); }
+            catch (IOException e) { throw new SQLException("Cannot write the diary journal " + path + ": " + e.getMessage(), e); }
+            synced = upTo;
+        }
+    }
+
+    // the id the database has for an id the program was given (temporary ids of diaries that were written since)
+    private int resolve(int id)
+    {
+        if (id >= 0) return id;
+        Integer real = realIds.get(id);
+        return real == null ? id : real;
+    }
+
+    @Override
+    public int addDiary(Diary d) throws SQLException
+    {
+        int id, gen;
+        long end;
+        synchronized (this)
+        {
+            open();
+            id = nextTempId--;
+            add(d.withId(id));
+            gen = generation;
+            end = written;
+            queueSyncIfFull();
+        }
+        force(gen, end);
+        return id;
+    }
+
+    @Override
+    public void updateDiary(Diary d) throws SQLException
+    {
+        int fields = d.getDirtyFields();
+        if (fields == 0) return;
+        int gen;
+        long end;
+        synchronized (this)
+        {
+            open();
+            int id = resolve(d.getId());
+            update(id == d.getId() ? d : d.withId(id), fields);
+            gen = generation;
+            end = written;
+            queueSyncIfFull();
+        }
+        force(gen, end);
+        d.markSaved();
+    }
+
+    @Override
+    public void deleteUserDiary(int userId, int id) throws SQLException
+    {
+        int gen;
+        long end;
+        synchronized (this)
+        {
+            open();
+            delete(userId, resolve(id));
+            gen = generation;
+            end = written;
+            queueSyncIfFull();
+        }
+        force(gen, end);
+    }
+
+    // without the owner a delete cannot be journaled (it has to be written with the owner's other changes): unless the
+    // diary has a pending change, which knows the owner, the database is asked directly
+    @Override
+    public void deleteDiary(int id) throws SQLException
+    {
+        int userId;
+        synchronized (this)
+        {
+            open();
+            Change c = pending.get(resolve(id));
+            userId = c == null ? 0 : c.userId;
+        }
+        if (userId != 0)
+            deleteUserDiary(userId, id);
+        else if (id > 0)
+            db.deleteDiary(id);
+    }
+
+    // imports need the database anyway (and give the new diaries their real ids at once)
+    @Override
+    public Map<Integer, SQLException> addDiaries(List<Diary> diaries) throws SQLException { return db.addDiaries(diaries); }
+
+    private void queueSyncIfFull()
+    {
+        if (pending.size() < batch || syncQueued) return;
+        syncQueued = true;
+        syncer.execute(this::syncQuietly);
+    }
+
+    // --- writing to the database ---
+
+    private void syncQuietly()
+    {
+        try
+        {
+            sync(null);
+            offline = false;
+        }
+        catch (SQLException | RuntimeException e)       // the changes are kept, tried again next time
+        {
+            failedSyncs.increment();
+            lastError = e.getMessage();
+            offline = true;
+        }
+    }
+
+    // writing the pending changes of every user (userId null) or of one user
+    void sync(Integer userId) throws SQLException
+    {
+        synchronized (syncLock)
+        {
+            Map<Integer, List<Change>> byUser = new LinkedHashMap<>();
+            long client;
+            synchronized (this)
+            {
+                if (channel == null) return;
+                syncQueued = false;
+                client = this.client;
+                for (Change c : pending.values())
+                {
+                    if (userId != null && c.userId != userId) continue;
+                    writing.add(c.id);
+                    byUser.computeIfAbsent(c.userId, k -> new ArrayList<>()).add(c.copy());
+                }
+            }
+            try
+            {
+                for (Map.Entry<Integer, List<Change>> user : byUser.entrySet())
+                {
+                    List<Change> changes = user.getValue();
+                    Map<Integer, Integer> newIds = new HashMap<>();
+                    Set<Integer> refused = new HashSet<>();
+                    db.applyJournal(client, user.getKey(), changes, newIds, refused);
+                    List<RefusedChange> dropped = written(changes, newIds, refused);
+                    for (SyncListener l : syncListeners) l.synced(user.getKey(), newIds, dropped);
+                }
+            }
+            finally
+            {
+                synchronized (this) { writing.clear(); }
+            }
+            long emptied = emptyIfDone();
+            if (emptied != 0)
+            {
+                try { db.forgetJournal(emptied); }
+                catch (SQLException e) { }          // only unused rows stay behind
+            }
+        }
+    }
+
+    // taking back the changes that were written: removed when nothing changed them meanwhile, else they are now what
+    // is left to write on top of what was written. Returns the refused ones, which are also kept for takeRefused().
+    private synchronized List<RefusedChange> written(List<Change> changes, Map<Integer, Integer> newIds, Set<Integer> refusedIds)
+    {
+        List<RefusedChange> dropped = new ArrayList<>();
+        for (Change s : changes)
+        {
+            Change c = s.live;
+            writing.remove(c.id);
+            Integer real = newIds.get(s.id);
+            if (real != null) realIds.put(s.id, real);
+            if (refusedIds.contains(s.id))
+            {
+                refusedChanges.increment();
+                pending.remove(c.id);
+                int id = real != null ? real : c.id;
+                if (c.type == DELETE)           // deleted after the refused edit: the delete needs no version, it still goes
+                {
+                    c.id = id;
+                    pending.put(id, c);
+                    continue;
+                }
+                RefusedChange r = new RefusedChange(c.userId, id, c.diary.withId(id), c.type == UPDATE ? c.fields : Diary.ALL_FIELDS);
+                refused.add(r);
+                dropped.add(r);
+                continue;
+            }
+            syncedChanges.increment();
+            if (c.revision == s.revision || s.type == DELETE)
+            {
+                pending.remove(c.id);
+                continue;
+            }
+            if (s.type == ADD && real != null)       // inserted, then changed or deleted: continues under its real id
+            {
+                pending.remove(c.id);
+                c.id = real;
+                c.diary = c.diary.withId(real);
+                if (c.type == ADD)
+                {
+                    c.type = UPDATE;
+                    c.fields = Diary.ALL_FIELDS;
+                    c.expected = s.version;
+                }
+                pending.put(real, c);
+            }
+            else if (c.type == UPDATE)
+                c.expected = s.version;         // the next write starts from the version just written
+        }
+        return dropped;
+    }
+
+    // emptying the file once everything in it is in the database; returns the client id that was retired (0: none)
+    private synchronized long emptyIfDone()
+    {
+        if (!pending.isEmpty() || written == HEADER) return 0;
+        long old = client;
+        synchronized (forceLock)
+        {
+            try
+            {
+                startFile();
+                generation++;
+            }
+            catch (IOException e)           // tried again after the next sync
+            {
+                failedSyncs.increment();
+                lastError = "cannot empty " + path + ": " + e.getMessage();
+                return 0;
+            }
+        }
+        return old;
+    }
+
+    // a user's reads go to the database after their pending changes
+    private void flush(int userId) throws SQLException
+    {
+        boolean waiting = false;
+        synchronized (this)
+        {
+            for (Change c : pending.values())
+            {
+                if (c.userId == userId) { waiting = true; break; }
+            }
+        }
+        if (waiting) sync(userId);
+    }
+
+    private void flushAll() throws SQLException
+    {
+        boolean waiting;
+        synchronized (this) { waiting = !pending.isEmpty(); }
+        if (waiting) sync(null);
+    }
+
+    // a diary the program has, as the database knows it (a cursor of a page may have a temporary id)
+    private synchronized Diary resolve(Diary d)
+    {
+        if (d == null || d.getId() >= 0) return d;
+        int id = resolve(d.getId());
+        return id == d.getId() ? d : d.withId(id);
+    }
+
+    public synchronized int getPendingCount() { return pending.size(); }
+    public boolean isOffline() { return offline; }
+
+    // the id the database has for an id this journal gave out (the same id when it is not a written temporary one)
+    public synchronized int realId(int id) { return resolve(id); }
+
+    // the refused changes of a user not taken yet; they are forgotten once taken
+    public synchronized List<RefusedChange> takeRefused(int userId)
+    {
+        List<RefusedChange> taken = new ArrayList<>();
+        for (Iterator<RefusedChange> it = refused.iterator(); it.hasNext(); )
+        {
+            RefusedChange r = it.next();
+            if (r.getUserId() == userId)
+            {
+                taken.add(r);
+                it.remove();
+            }
+        }
+        return taken;
+    }
+
+    static void resetCounters()
+    {
+        syncedChanges.reset();
+        refusedChanges.reset();
+        failedSyncs.reset();
+        replayedChanges.reset();
+        lastError = null;
+    }
+
+    static long getSyncedCount() { return syncedChanges.sum(); }
+    static long getRefusedCount() { return refusedChanges.sum(); }
+    static long getFailedSyncs() { return failedSyncs.sum(); }
+    static long getReplayedCount() { return replayedChanges.sum(); }
+    static String getLastError() { return lastError; }
+
+    public void close()
+    {
+        synchronized (this)
+        {
+            if (channel == null) return;
+            syncer.shutdownNow();
+        }
+        synchronized (syncLock)
+        {
+            synchronized (this)
+            {
+                try { channel.close(); }
+                catch (IOException e) { lastError = "closing " + path + ": " + e.getMessage(); }     // every record is forced already
+                channel = null;
+            }
+        }
+    }
+
+    // --- reading: from the database, after the user's pending changes ---
+
+    @Override
+    public User getUserByUsername(String username) throws SQLException { return db.getUserByUsername(username); }
+
+    @Override
+    public void addUser(String username, String password) throws SQLException { db.addUser(username, password); }
+
+    @Override
+    public void updatePassword(String username, String password) throws SQLException { db.updatePassword(username, password); }
+
+    @Override
+    public List<Diary> getUserDiaries(int userId) throws SQLException
+    {
+        flush(userId);
+        return db.getUserDiaries(userId);
+    }
+
+    @Override
+    public void streamUserDiaries(int userId, RowHandler handler) throws SQLException, IOException
+    {
+        flush(userId);
+        db.streamUserDiaries(userId, handler);
+    }
+
+    @Override
+    public String getDiaryDetails(int userId, int id) throws SQLException
+    {
+        flush(userId);
+        int real;
+        synchronized (this) { real = resolve(id); }
+        return db.getDiaryDetails(userId, real);
+    }
+
+    @Override
+    public Diary getDiary(int userId, int id) throws SQLException
+    {
+        flush(userId);
+        int real;
+        synchronized (this) { real = resolve(id); }
+        return db.getDiary(userId, real);
+    }
+
+    @Override
+    public List<Diary> getFirstDiariesByUsername(String username, int pageSize) throws SQLException
+    {
+        flushAll();
+        return db.getFirstDiariesByUsername(username, pageSize);
+    }
+
+    @Override
+    public int countDiariesByUsername(String username) throws SQLException
+    {
+        flushAll();
+        return db.countDiariesByUsername(username);
+    }
+
+    @Override
+    public int countUserDiaries(int userId) throws SQLException
+    {
+        flush(userId);
+        return db.countUserDiaries(userId);
+    }
+
+    @Override
+    public List<Diary> getUserDiariesAfter(int userId, Diary after, int pageSize) throws SQLException
+    {
+        flush(userId);
+        return db.getUserDiariesAfter(userId, resolve(after), pageSize);
+    }
+
+    @Override
+    public List<Diary> getUserDiariesBefore(int userId, Diary before, int pageSize) throws SQLException
+    {
+        flush(userId);
+        return db.getUserDiariesBefore(userId, resolve(before), pageSize);
+    }
+
+    @Override
+    public List<Diary> getUserDiariesAt(int userId, int offset, int pageSize) throws SQLException
+    {
+        flush(userId);
+        return db.getUserDiariesAt(userId, offset, pageSize);
+    }
+
+    @Override
+    public int countDiariesBefore(Diary d) throws SQLException
+    {
+        flush(d.getUserId());
+        return db.countDiariesBefore(resolve(d));
+    }
+
+    @Override
+    public List<Diary> getUserDiariesBetween(int userId, LocalDate from, LocalDate to) throws SQLException
+    {
+        flush(userId);
+        return db.getUserDiariesBetween(userId, from, to);
+    }
+
+    @Override
+    public List<Diary> getUpcomingDiaries(int userId, LocalDateTime from, int limit) throws SQLException
+    {
+        flush(userId);
+        return db.getUpcomingDiaries(userId, from, limit);
+    }
+
+    @Override
+    public List<Diary> queryDiariesAfter(int userId, DiaryQuery query, Diary after, int pageSize) throws SQLException
+    {
+        flush(userId);
+        return db.queryDiariesAfter(userId, query, resolve(after), pageSize);
+    }
+
+    @Override
+    public List<Diary> queryDiariesBefore(int userId, DiaryQuery query, Diary before, int pageSize) throws SQLException
+    {
+        flush(userId);
+        return db.queryDiariesBefore(userId, query, resolve(before), pageSize);
+    }
+
+    @Override
+    public List<Diary> queryDiariesAt(int userId, DiaryQuery query, int offset, int pageSize) throws SQLException
+    {
+        flush(userId);
+        return db.queryDiariesAt(userId, query, offset, pageSize);
+    }
+
+    @Override
+    public int countDiaries(int userId, DiaryQuery query) throws SQLException
+    {
+        flush(userId);
+        return db.countDiaries(userId, query);
+    }
+
+    // opening the journal (and writing what an earlier run left in it, in background) and the database connections
+    @Override
+    public void warmUp() throws SQLException
+    {
+        synchronized (this) { open(); }
+        db.warmUp();
+    }
+}
+
+// MappedLogStorage keeps users and diaries in one local file instead of MySQL, for single-user installs.
+// The file is a log: every add/change/delete is appended as a record and nothing is ever written in place, so a crash can
+// only lose the record being written (each record has a CRC, a broken last record is dropped when the file is opened).
+// The file is memory-mapped: writing a record is a memory copy, and reading a diary is decoding it from memory.
+// All diaries are indexed in memory by user in (date, time, id) order, so paging and date ranges never scan the file.
+// Records that were changed or deleted later are garbage; when there is more garbage than live data the file is
+// compacted: the live records are copied into a new file (each user's diaries together, in order), which replaces the old.
+//
+//   file   = "DIARYLOG" version(int) (4 zero bytes) record*
+//   record = type(byte) length(int) crc32(int) payload[length]
+class MappedLogStorage implements DiaryStorage
+{
+    private static final byte[] MAGIC = "DIARYLOG".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int HEADER = 16;
+    private static final int RECORD_HEADER = 9;
+    private static final byte USER = 1, DIARY = 2, DELETE_DIARY = 3;
+    private static final int INITIAL_CAPACITY = 1024 * 1024;
+    private static final long COMPACT_MIN_GARBAGE = 1024 * 1024;
+    private static final int STREAM_PAGE = 1000;
+
+    // one diary in the in-memory index: its sort key and where its newest record is
+    private static class Entry
+    {
+        final int id;
+        final int userId;
+        final LocalDate date;
+        final LocalTime time;
+        int offset;
+        int size;
+
+        Entry(int id, int userId, LocalDate date, LocalTime time, int offset, int size)
+        {
+            this.id = id;
+            this.userId = userId;
+            this.date = date;
+            this.time = time;
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    private static final Comparator<Entry> ORDER = Comparator.<Entry, LocalDate>comparing(e -> e.date)
+            .thenComparing(e -> e.time).thenComparingInt(e -> e.id);
+
+    private final Path path;
+    private final boolean fsync = Boolean.getBoolean("diary.storage.fsync");      // force every write to disk (slower)
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private FileChannel channel;
+    private FileChannel lockChannel;
+    private volatile MappedByteBuffer buffer;
+    private ScheduledExecutorService compactor;
+    private int end;                // where the next record is written
+    private long liveBytes;         // size of the records that are still the newest of their user/diary
+
+    private final Map<String, User> usersByName = new HashMap<>();
+    private final Map<Integer, Integer> userRecordSize = new HashMap<>();
+    private final Map<Integer, Entry> diaries = new HashMap<>();
+    private final Map<Integer, TreeSet<Entry>> userDiaries = new HashMap<>();
+    private int nextUserId = 1;
+    private int nextDiaryId = 1;
+    private long changes;                       // counts the diary writes, a sorted view is only good for one value
+    private volatile SortedView sortedView;
+
+    public MappedLogStorage(Path path) { this.path = path; }
+
+    // the file is opened by the first call, so creating the storage never fails
+    private void open() throws SQLException
+    {
+        if (buffer != null) return;
+        lock.writeLock().lock();
+        try
+        {
+            if (buffer != null) return;
+            Path dir = path.toAbsolutePath().getParent();
+            if (dir != null) Files.createDirectories(dir);
+            lockChannel = FileChannel.open(Paths.get(path + ".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock fileLock;
+            try { fileLock = lockChannel.tryLock(); }
+            catch (OverlappingFileLockException e) { fileLock = null; }      // already open in this program
+            if (fileLock == null)
+            {
+                lockChannel.close();
+                lockChannel = null;
+                throw new SQLException("The diary store " + path + " is used by another program");
+            }
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new SQLException("The diary store " + path + " is too large");
+            boolean created = size < HEADER;
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, INITIAL_CAPACITY));
+            if (created)
+            {
+                buffer.put(0, MAGIC);
+                buffer.putInt(MAGIC.length, VERSION);
+                end = HEADER;
+            }
+            else
+            {
+                byte[] magic = new byte[MAGIC.length];
+                buffer.get(0, magic);
+                if (!Arrays.equals(magic, MAGIC) || buffer.getInt(MAGIC.length) != VERSION)
+                    throw new SQLException(path + " is not a diary store");
+                replay();
+            }
+
+            long seconds = Long.getLong("diary.storage.compactSeconds", 60);
+            compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "diary-store-compactor");
+                t.setDaemon(true);
+                return t;
+            });
+            compactor.scheduleWithFixedDelay(() -> {
+                try { if (needsCompaction()) compact(); }
+                catch (SQLException e) { System.err.println("Diary store compaction failed: " + e.getMessage()); }
+            }, seconds, seconds, TimeUnit.SECONDS);
+        }
+        catch (IOException e)
+        {
+            buffer = null;
+            throw new SQLException("Cannot open the diary store " + path + ": " + e.getMessage(), e);
+        }
+        finally { lock.writeLock().unlock(); }
+    }
+
+    // rebuilding the in-memory index by reading every record, stopping at the end of the log or at a broken record
+    private void replay()
+    {
+        int p = HEADER;
+        int capacity = buffer.capacity();
+        CRC32 crc = new CRC32();
+        while (p + RECORD_HEADER <= capacity)
+        {
+            byte type = buffer.get(p);
+            if (type == 0) break;
+            int length = buffer.getInt(p + 1);
+            if (type > DELETE_DIARY || type < 0 || length < 0 || length > capacity - p - RECORD_HEADER)
+            {
+                dropTail(p);
+                break;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(p + RECORD_HEADER, payload);
+            crc.reset();
+            crc.update(type);
+            crc.update(payload);
+            if ((int) crc.getValue() != buffer.getInt(p + 5))
+            {
+                dropTail(p);
+                break;
+            }
+            apply(type, ByteBuffer.wrap(payload), p, RECORD_HEADER + length);
+            p += RECORD_HEADER + length;
+        }
+        end = p;
+    }
+
+    // a record was only partly written when the program stopped: clearing it so it is not mistaken for data later
+    private void dropTail(int from)
+    {
+        for (int i = from; i < buffer.capacity(); i++)
+        {
+            if (buffer.get(i) != 0) buffer.put(i, (byte) 0);
+        }
+    }
+
+    private void apply(byte type, ByteBuffer payload, int offset, int size)
+    {
+        if (type == USER)
+        {
+            User user = decodeUser(payload);
+            Integer old = userRecordSize.put(user.getId(), size);
+            if (old != null) liveBytes -= old;
+            usersByName.put(user.getUsername(), user);
+            nextUserId = Math.max(nextUserId, user.getId() + 1);
+            liveBytes += size;
+        }
+        else if (type == DIARY)
+        {
+            Diary d = decodeDiary(payload);
+            index(new Entry(d.getId(), d.getUserId(), d.getDate(), d.getTime(), offset, size));
+            nextDiaryId = Math.max(nextDiaryId, d.getId() + 1);
+        }
+        else
+            unindex(payload.getInt());
+    }
+
+    private void index(Entry e)
+    {
+        changes++;
+        unindex(e.id);
+        diaries.put(e.id, e);
+        userDiaries.computeIfAbsent(e.userId, k -> new TreeSet<>(ORDER)).add(e);
+        liveBytes += e.size;
+    }
+
+    private Entry unindex(int id)
+    {
+        Entry old = diaries.remove(id);
+        if (old != null)
+        {
+            changes++;
+            userDiaries.get(old.userId).remove(old);
+            liveBytes -= old.size;
+        }
+        return old;
+    }
+
+    // --- users ---
+
+    @Override
+    public User getUserByUsername(String username) throws SQLException
+    {
+        open();
+        lock.readLock().lock();
+        try
+        {
+            User user = usersByName.get(username);
+            return user == null ? null : new User(user.getId(), user.getUsername(), user.getPassword());
+        }
+        finally { lock.readLock().unlock(); }
+    }
+
+    @Override
+    public void addUser(String username, String password) throws SQLException
+    {
+        open();
+        lock.writeLock().lock();
+        try
+        {
+            if (usersByName.containsKey(username))
+                throw new SQLIntegrityConstraintViolationException("Duplicate entry '" + username + "' for key 'username'");
+            writeUser(new User(nextUserId++, username, password));
+        }
+        finally { lock.writeLock().unlock(); }
+    }
+
+    @Override
+    public void updatePassword(String username, String password) throws SQLException
+    {
+        open();
+        lock.writeLock().lock();
+        try
+        {
+            User user = usersByName.get(username);
+            if (user != null) writeUser(new User(user.getId(), username, password));
+        }
+        finally { lock.writeLock().unlock(); }
+    }
+
+    private void writeUser(User user) throws SQLException
+    {
+        byte[] payload = encodeUser(user);
+        int offset = append(USER, payload);
+        apply(USER, ByteBuffer.wrap(payload), offset, end - offset);
+    }
+
+    // --- reading diaries ---
+
+    @Override
+    public List<Diary> getUserDiaries(int userId) throws SQLException
+    {
+        open();
+        lock.readLock().lock();
+        try { return read(entries(userId), Integer.MAX_VALUE); }
+        finally { lock.readLock().unlock(); }
+    }
+
+    // read a page at a time, so writers are not kept waiting while the handler works
+    @Override
+    public void streamUserDiaries(int userId, RowHandler handler) throws SQLException, IOException
+    {
+        open();
+        Diary after = null;
+        List<Diary> page = new ArrayList<>();
+        do
+        {
+            page.clear();
+            lock.readLock().lock();         // not held while the handler writes, one page at a time
+            try
+            {
+                NavigableSet<Entry> set = entries(userId);
+                for (Entry e : after == null ? set : set.tailSet(key(after), false))
+                {
+                    if (page.size() >= STREAM_PAGE) break;
+                    page.add(readDiary(e));        // the whole diaries, not the summaries the lists get
+                }
+            }
+            finally { lock.readLock().unlock(); }
+            for (Diary d : page) handler.row(d);
+            if (!page.isEmpty()) after = page.get(page.size() - 1);
+        }
+        while (page.size() == STREAM_PAGE);
+    }
+
+    @Override
+    public String getDiaryDetails(int userId, int id) throws SQLException
+    {
+        open();
+        lock.readLock().lock();
+        try
+        {
+            Entry e = diaries.get(id);
+            if (e == null || e.userId != userId)
+                throw new SQLException("Diary " + id + " was not found");
+            return readDiary(e).getDetails();
+        }
+        finally { lock.readLock().unlock(); }
+    }
+
+    @Override
+    public Diary getDiary(int userId, int id) throws SQLException
+    {
+        open();
+        lock.readLock().lock();
+        try
+        {
+            Entry e = diaries.get(id);
+            return e == null || e.userId != userId ? null : readDiary(e);
+        }
+        finally { lock.readLock().unlock(); }
+    }
+
+    @Override
+    public List<Diary> getFirstDiariesByUsername(String username, int pageSize) throws SQLException
+    {
+        open();
+        lock.readLock().lock();
+        try
+        {
+            User user = usersByName.get(username);
+            return user == null ? new ArrayList<>() : read(entries(user.getId()), pageSize);
+        }
+        finally { lock.readLock().unlock(); }
+    }
+
+    @Override
+    public int countDiariesByUsername(String username) throws SQLException
+    {
+        open();
+        lock.readLock().lock();
+        try
+        {
+            User user = usersByName.get(username);
+            return user == null ? 0 : entries(user.getId()).size();
+        }
+        finally { lock.readLock().unlock(); }
+    }
+
+    @Override
+    public int countUserDiaries(int userId) throws SQLException
+    {
+        open();
+        lock.readLock().lock();
+        try { return entries(userId).size(); }
+        finally { lock.readLock().unlock(); }
+    }
+
+    @Override
+    public List<Diary> getUserDiariesAfter(int userId, Diary after, int pageSize) throws SQLException
+    {
+        open();
+        lock.readLock().lock();
+        try
+        {
+            NavigableSet<Entry> set = entries(userId);
+            return read(after == null ? set : set.tailSet(key(after), false), pageSize);
+        }
+        finally { lock.readLock().unlock(); }
+    }
+
+    @Override
+    public List<Diary> getUserDiariesBefore(int userId, Diary before, int pageSize) throws SQLException
+    {
+        open();
+        lock.readLock().lock();
+        try
+        {
+            List<Diary> list = read(entries(userId).headSet(key(before), false).descendingSet(), pageSize);
+            Collections.reverse(list);
+            return list;
+        }
+        finally { lock.readLock().unlock(); }
+    }
+
+    @Override
+    public List<Diary> getUserDiariesAt(int userId, int offset, int pageSize) throws SQLException
+    {
+        open();
+        lock.readLock().lock();
+        try
+        {
+            Iterator<Entry> it = entries(userId).iterator();
+            for (int i = 0; i < offset && it.hasNext(); i++) it.next();
+            List<Diary> list = new ArrayList<>();
+            while (it.hasNext() && list.size() < pageSize) list.add(readDiary(it.next()).summary());
+            return list;
+        }
+        finally { lock.readLock().unlock(); }
+    }
+
+    @Override
+    public int countDiariesBefore(Diary d) throws SQLException
+    {
+        open();
+        lock.readLock().lock();
+        try { return entries(d.getUserId()).headSet(key(d), false).size(); }
+        finally { lock.readLock().unlock(); }
+    }
+
+    @Override
+    public List<Diary> getUserDiariesBetween(int userId, LocalDate from, LocalDate to) throws SQLException
+    {
+        open();
+        lock.readLock().lock();
+        try
+        {
+            if (from.isAfter(to)) return new ArrayList<>();
+            Entry low = new Entry(Integer.MIN_VALUE, userId, from, LocalTime.MIN, 0, 0);
+            Entry high = new Entry(Integer.MAX_VALUE, userId, to, LocalTime.MAX, 0, 0);
+            return read(entries(userId).subSet(low, true, high, true), Integer.MAX_VALUE);
+        }
+        finally { lock.readLock().unlock(); }
+    }
+
+    @Override
+    public List<Diary> getUpcomingDiaries(int userId, LocalDateTime from, int limit) throws SQLException
+    {
+        open();
+        lock.readLock().lock();
+        try
+        {
+            Entry low = new Entry(Integer.MIN_VALUE, userId, from.toLocalDate(), from.toLocalTime(), 0, 0);
+            return read(entries(userId).tailSet(low, true), limit);
+        }
+        finally { lock.readLock().unlock(); }
+    }
+
+    // sorted and filtered pages: the user's diaries matching the filters are read and sorted once, then kept until the
+    // next write (a single user pages through one order at a time)
+    @Override
+    public List<Diary> queryDiariesAfter(int userId, DiaryQuery query, Diary after, int pageSize) throws SQLException
+    {
+        List<Diary> rows = sorted(userId, query);
+        int start = after == null ? 0 : position(rows, after, query, true);
+        return copies(rows.subList(start, Math.min(rows.size(), start + pageSize)));
+    }
+
+    @Override
+    public List<Diary> queryDiariesBefore(int userId, DiaryQuery query, Diary before, int pageSize) throws SQLException
+    {
+        List<Diary> rows = sorted(userId, query);
+        int end = position(rows, before, query, false);
+        return copies(rows.subList(Math.max(0, end - pageSize), end));
+    }
+
+    @Override
+    public List<Diary> queryDiariesAt(int userId, DiaryQuery query, int offset, int pageSize) throws SQLException
+    {
+        List<Diary> rows = sorted(userId, query);
+        int start = Math.min(rows.size(), offset);
+        return copies(rows.subList(start, Math.min(rows.size(), start + pageSize)));
+    }
+
+    @Override
+    public int countDiaries(int userId, DiaryQuery query) throws SQLException
+    {
+        return sorted(userId, query).size();
+    }
+
+    // one sorted list kept for the last query
+    private static class SortedView
+    {
+        final int userId;
+        final DiaryQuery query;
+        final long changes;
+        final List<Diary> rows;
+
+        SortedView(int userId, DiaryQuery query, long changes, List<Diary> rows)
+        {
+            this.userId = userId;
+            this.query = query;
+            this.changes = changes;
+            this.rows = rows;
+        }
+    }
+
+    private List<Diary> sorted(int userId, DiaryQuery query) throws SQLException
+    {
+        open();
+        lock.readLock().lock();
+        try
+        {
+            SortedView view = sortedView;
+            if (view != null && view.userId == userId && view.query.equals(query) && view.changes == changes)
+                return view.rows;
+            List<Diary> rows = new ArrayList<>();
+            for (Entry e : entries(userId))
+            {
+                Diary d = readDiary(e);
+                if (query.matches(d)) rows.add(d.summary());
+            }
+            rows.sort(query.comparator());
+            sortedView = new SortedView(userId, query, changes, rows);
+            return rows;
+        }
+        finally { lock.readLock().unlock(); }
+    }
+
+    // where the key row is (or would be) in the sorted list: the index after it, or the index of it
+    private static int position(List<Diary> rows, Diary key, DiaryQuery query, boolean after)
+    {
+        int i = Collections.binarySearch(rows, key, query.comparator());
+        if (i < 0) return -i - 1;
+        return after ? i + 1 : i;
+    }
+
+    private static List<Diary> copies(List<Diary> rows)
+    {
+        List<Diary> list = new ArrayList<>(rows.size());
+        for (Diary d : rows) list.add(d.copy());
+        return list;
+    }
+
+    private NavigableSet<Entry> entries(int userId)
+    {
+        TreeSet<Entry> set = userDiaries.get(userId);
+        return set == null ? Collections.emptyNavigableSet() : set;
+    }
+
+    private static Entry key(Diary d) { return new Entry(d.getId(), d.getUserId(), d.getDate(), d.getTime(), 0, 0); }
+
+    private List<Diary> read(Collection<Entry> entries, int limit)
+    {
+        List<Diary> list = new ArrayList<>();
+        for (Entry e : entries)
+        {
+            if (list.size() >= limit) break;
+            list.add(readDiary(e).summary());
+        }
+        return list;
+    }
+
+    private Diary readDiary(Entry e)
+    {
+        byte[] payload = new byte[e.size - RECORD_HEADER];
+        buffer.get(e.offset + RECORD_HEADER, payload);
+        return decodeDiary(ByteBuffer.wrap(payload));
+    }
+
+    // --- writing diaries ---
+
+    @Override
+    public int addDiary(Diary d) throws SQLException
+    {
+        open();
+        lock.writeLock().lock();
+        try
+        {
+            check(d);
+            int id = nextDiaryId++;
+            writeDiary(d.withId(id));
+            force();
+            return id;
+        }
+        finally { lock.writeLock().unlock(); }
+    }
+
+    // like the MySQL version a refused row does not stop the others, it is returned in the map (index in the list -> error)
+    @Override
+    public Map<Integer, SQLException> addDiaries(List<Diary> list) throws SQLException
+    {
+        open();
+        Map<Integer, SQLException> failed = new LinkedHashMap<>();
+        lock.writeLock().lock();
+        try
+        {
+            for (int i = 0; i < list.size(); i++)
+            {
+                try
+                {
+                    check(list.get(i));
+                    writeDiary(list.get(i).withId(nextDiaryId++));
+                }
+                catch (SQLIntegrityConstraintViolationException e) { failed.put(i, e); }
+            }
+            force();
+        }
+        finally { lock.writeLock().unlock(); }
+        return failed;
+    }
+
+    @Override
+    public void updateDiary(Diary d) throws SQLException
+    {
+        open();
+        lock.writeLock().lock();
+        try
+        {
+            Entry old = diaries.get(d.getId());
+            if (old == null || old.userId != d.getUserId())
+                throw new SQLException("Diary " + d.getId() + " was not found");
+            int fields = d.getDirtyFields();
+            if (fields == 0) return;
+            Diary current = readDiary(old);
+            if (current.getVersion() != d.getVersion())
+                throw new DiaryConflictException("Diary " + d.getId() + " was changed by someone else (version " + current.getVersion() + ")");
+            Diary merged = current.withChanges(d, fields);     // the stored diary with the changed fields, same rules as MySQL
+            merged.markSaved();
+            check(merged);
+            writeDiary(merged);
+            force();
+            d.markSaved();
+        }
+        finally { lock.writeLock().unlock(); }
+    }
+
+    @Override
+    public void deleteUserDiary(int userId, int id) throws SQLException
+    {
+        open();
+        lock.writeLock().lock();
+        try
+        {
+            Entry old = diaries.get(id);
+            if (old == null || old.userId != userId)
+                throw new SQLException("Diary " + id + " was not found");
+            writeDelete(id);
+        }
+        finally { lock.writeLock().unlock(); }
+    }
+
+    @Override
+    public void deleteDiary(int id) throws SQLException
+    {
+        open();
+        lock.writeLock().lock();
+        try
+        {
+            if (diaries.containsKey(id)) writeDelete(id);
+        }
+        finally { lock.writeLock().unlock(); }
+    }
+
+    @Override
+    public void warmUp() throws SQLException { open(); }
+
+    // the same NOT NULL and foreign key rules as the MySQL tables (schema.sql)
+    private void check(Diary d) throws SQLException
+    {
+        if (d.getName() == null || d.getDate() == null || d.getTime() == null)
+            throw new SQLIntegrityConstraintViolationException("Diary name, date and time cannot be null");
+        if (!userRecordSize.containsKey(d.getUserId()))
+            throw new SQLIntegrityConstraintViolationException("User " + d.getUserId() + " does not exist");
+    }
+
+    private void writeDiary(Diary d) throws SQLException
+    {
+        int offset = append(DIARY, encodeDiary(d));
+        index(new Entry(d.getId(), d.getUserId(), d.getDate(), d.getTime(), offset, end - offset));
+    }
+
+    private void writeDelete(int id) throws SQLException
+    {
+        append(DELETE_DIARY, ByteBuffer.allocate(4).putInt(id).array());
+        unindex(id);
+        force();
+    }
+
+    // writing one record at the end of the log (the caller holds the write lock), returning where it starts
+    private int append(byte type, byte[] payload) throws SQLException
+    {
+        long size = (long) RECORD_HEADER + payload.length;
+        if (end + size > buffer.capacity()) grow(end + size);
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        int offset = end;
+        buffer.put(offset + RECORD_HEADER, payload);
+        buffer.putInt(offset + 1, payload.length);
+        buffer.putInt(offset + 5, (int) crc.getValue());
+        buffer.put(offset, type);               // written last: a record without its type is just the end of the log
+        end += (int) size;
+        return offset;
+    }
+
+    private void grow(long needed) throws SQLException
+    {
+        if (needed > Integer.MAX_VALUE)
+            throw new SQLException("The diary store " + path + " is full");
+        long capacity = Math.min(Integer.MAX_VALUE, Math.max(needed, 2L * buffer.capacity()));
+        try { buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity); }
+        catch (IOException e) { throw new SQLException("Cannot grow the diary store " + path + ": " + e.getMessage(), e); }
+    }
+
+    // with -Ddiary.storage.fsync=true every write waits for the disk. Without it a crash of the program loses nothing (the
+    // mapped pages belong to the operating system), only a crash of the whole computer can lose the last writes.
+    private void force()
+    {
+        if (fsync) buffer.force();
+    }
+
+    // --- compaction ---
+
+    private boolean needsCompaction()
+    {
+        lock.readLock().lock();
+        try
+        {
+            long garbage = end - HEADER - liveBytes;
+            return garbage > COMPACT_MIN_GARBAGE && garbage > liveBytes;
+        }
+        finally { lock.readLock().unlock(); }
+    }
+
+    // writing the live records into a new file and replacing the log with it
+    public void compact() throws SQLException
+    {
+        open();
+        lock.writeLock().lock();
+        Path tmp = Paths.get(path + ".compact");
+        try
+        {
+            Map<Entry, Integer> newOffsets = new HashMap<>();
+            int p = HEADER;
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+            {
+                ByteBuffer header = ByteBuffer.allocate(HEADER).put(MAGIC).putInt(VERSION);
+                header.rewind();
+                out.write(header);
+                for (User user : usersByName.values())
+                    p += writeFully(out, record(USER, encodeUser(user)));
+                for (TreeSet<Entry> set : userDiaries.values())
+                {
+                    for (Entry e : set)
+                    {
+                        byte[] bytes = new byte[e.size];
+                        buffer.get(e.offset, bytes);
+                        newOffsets.put(e, p);
+                        p += writeFully(out, ByteBuffer.wrap(bytes));
+                    }
+                }
+                out.force(true);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            channel.close();
+            channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_CAPACITY, p + (long) p / 2));
+            for (Map.Entry<Entry, Integer> moved : newOffsets.entrySet())
+                moved.getKey().offset = moved.getValue();
+            end = p;
+            liveBytes = p - HEADER;
+        }
+        catch (IOException e)
+        {
+            throw new SQLException("Cannot compact the diary store " + path + ": " + e.getMessage(), e);
+        }
+        finally { lock.writeLock().unlock(); }
+    }
+
+    static ByteBuffer record(byte type, byte[] payload)      // also the record format of JournaledStorage
+    {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+        crc.update(payload);
+        ByteBuffer b = ByteBuffer.allocate(RECORD_HEADER + payload.length);
+        b.put(type).putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        b.rewind();
+        return b;
+    }
+
+    private static int writeFully(FileChannel out, ByteBuffer b) throws IOException
+    {
+        int size = b.remaining();
+        while (b.hasRemaining()) out.write(b);
+        return size;
+    }
+
+    // the size of the file and how much of it is garbage, for the statistics
+    public long getLogBytes() { return end; }
+    public long getLiveBytes() { return liveBytes; }
+
+    public void close()
+    {
+        lock.writeLock().lock();
+        try
+        {
+            if (buffer == null) return;
+            compactor.shutdownNow();
+            buffer.force();
+            buffer = null;
+            channel.close();
+            lockChannel.close();
+        }
+        catch (IOException e) { System.err.println("Closing the diary store failed: " + e.getMessage()); }
+        finally { lock.writeLock().unlock(); }
+    }
+
+    // --- record payloads ---
+
+    private static byte[] encodeUser(User user)
+    {
+        byte[] name = bytes(user.getUsername()), password = bytes(user.getPassword());
+        ByteBuffer b = ByteBuffer.allocate(4 + size(name) + size(password));
+        b.putInt(user.getId());
+        putString(b, name);
+        putString(b, password);
+        return b.array();
+    }
+
+    private static User decodeUser(ByteBuffer b)
+    {
+        return new User(b.getInt(), getString(b), getString(b));
+    }
+
+    private static byte[] encodeDiary(Diary d)
+    {
+        byte[] name = bytes(d.getName()), duration = bytes(d.getDuration()), address = bytes(d.getAddress()), details = bytes(d.getDetails());
+        ByteBuffer b = ByteBuffer.allocate(28 + size(name) + size(duration) + size(address) + size(details));
+        b.putInt(d.getId()).putInt(d.getUserId());
+        b.putLong(d.getDate().toEpochDay()).putLong(d.getTime().toNanoOfDay());
+        putString(b, name);
+        putString(b, duration);
+        putString(b, address);
+        putString(b, details);
+        b.putInt(d.getVersion());
+        return b.array();
+    }
+
+    private static Diary decodeDiary(ByteBuffer b)
+    {
+        int id = b.getInt(), userId = b.getInt();
+        LocalDate date = LocalDate.ofEpochDay(b.getLong());
+        LocalTime time = LocalTime.ofNanoOfDay(b.getLong());
+        String name = getString(b), duration = getString(b), address = getString(b), details = getString(b);
+        int version = b.remaining() >= 4 ? b.getInt() : 0;         // records written before versions existed have none
+        return new Diary(id, name, duration, address, date, time, details, userId, version);
+    }
+
+    static byte[] bytes(String s) { return s == null ? null : s.getBytes(StandardCharsets.UTF_8); }
+
+    static int size(byte[] s) { return 4 + (s == null ? 0 : s.length); }
+
+    static void putString(ByteBuffer b, byte[] s)
+    {
+        b.putInt(s == null ? -1 : s.length);
+        if (s != null) b.put(s);
+    }
+
+    static String getString(ByteBuffer b)
+    {
+        int length = b.getInt();
+        if (length < 0) return null;
+        String s = new String(b.array(), b.arrayOffset() + b.position(), length, StandardCharsets.UTF_8);
+        b.position(b.position() + length);
+        return s;
+    }
+}
+
+class LoginManager {// the relation between "LoginManager"& "DatabaseHandler" -> aggregation
+    private final DiaryStorage dbHandler = Storage.get();                         // the storage (MySQL through DatabaseHandler, or the local file) used to manage users account :
+
+    public User login(String username, String password) throws Exception                     // 1- login()-> handle user login process
+    {
+        User user = dbHandler.getUserByUsername(username);
+        if (user != null && user.getPassword().equals(password))
+            return user;
+        else 
+            return null;
+    }
+
+    public boolean register(String username, String password) throws Exception {           //register()-> handle user registeration process
+        if (dbHandler.getUserByUsername(username) != null)           //handle the case if username is already used"registered" by another user
+            return false; 
+        else{
+        dbHandler.addUser(username, password);
+        return true;
+        }
+    }
+
+    public void changePassword(String username, String newPassword) throws Exception {    // changePassword()-> handle user changing password process 
+        dbHandler.updatePassword(username, newPassword);
+    }
+}
+
+
+
+class RecordManager { // the relation between "RecordManager"& "DatabaseHandler" -> aggregation                      
+    private final DiaryStorage dbHandler;                // the storage (MySQL through DatabaseHandler, or the local file) to do operations on user diaries:                                                                       
+    // only this program writes the diary table, so every write below also updates the cache and reads can trust it
+    private final DiaryCache cache;
+    // word index for searching, built the first time a user searches and kept up to date by the writes below
+    private final DiarySearchIndex searchIndex;
+    // the lists only hold a preview of the details, the whole text of the last opened diaries is kept here
+    private final DetailsCache details = new DetailsCache(Integer.getInteger("diary.details.cacheSize", 64));
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final List<ConflictListener> conflictListeners = new CopyOnWriteArrayList<>();
+    // interval tree of each user's entries to find double bookings, built on first use and kept up to date as a listener
+    private final DiaryIntervalIndex schedule = new DiaryIntervalIndex(Integer.getInteger("diary.schedule.maxUsers", 16));
+
+    // told about every diary written through this RecordManager, after the write succeeded (on the writing thread)
+    interface Listener {
+        void added(Diary d);
+        void updated(Diary d);
+        void removed(int id);
+        void reloaded(int userId);      // many diaries of this user changed at once (import), read them again
+    }
+
+    // told (on a background thread) that changes of this user that were saved could not be written after all, they are
+    // waiting in takeRefusedChanges(); only happens with -Ddiary.journal (see JournaledStorage)
+    interface ConflictListener {
+        void refused(int userId);
+    }
+
+    public RecordManager() {
+        this(Storage.get());
+    }
+
+    // storage null: a subclass that reads and writes somewhere else (RemoteRecordManager), no cache or index is made
+    protected RecordManager(DiaryStorage storage) {
+        dbHandler = storage;
+        cache = storage == null ? null : new DiaryCache(Integer.getInteger("diary.cache.maxEntries", 100_000),
+                Long.getLong("diary.cache.maxBytes", 64L * 1024 * 1024));
+        searchIndex = storage == null ? null : new DiarySearchIndex(Integer.getInteger("diary.search.maxUsers", 16));
+        addListener(schedule);
+        if (dbHandler instanceof JournaledStorage)
+            ((JournaledStorage) dbHandler).addSyncListener(this::journalSynced);
+    }
+
+    // a user's journaled changes were written. New diaries have their real ids now, what is kept under the temporary
+    // ones is read again; a refused change makes what is cached wrong, and the user has to be told
+    private void journalSynced(int userId, Map<Integer, Integer> newIds, List<RefusedChange> refused) {
+        if (newIds.isEmpty() && refused.isEmpty())
+            return;
+        for (int temporary : newIds.keySet())
+            forgetDetails(temporary);
+        for (RefusedChange r : refused)
+            forgetDetails(r.getId());
+        cache.invalidate(userId);
+        searchIndex.invalidate(userId);
+        fireReloaded(userId);
+        if (!refused.isEmpty())
+            for (ConflictListener l : conflictListeners) l.refused(userId);
+    }
+
+    public void addConflictListener(ConflictListener listener) { conflictListeners.add(listener); }
+    public void removeConflictListener(ConflictListener listener) { conflictListeners.remove(listener); }
+
+    public List<RefusedChange> takeRefusedChanges(int userId) {        // takeRefusedChanges()-> saved changes the database refused later
+        if (dbHandler instanceof JournaledStorage)
+            return ((JournaledStorage) dbHandler).takeRefused(userId);
+        return new ArrayList<>();
+    }
+
+    // reapplyRefused()-> saving a refused change again, on top of the diary as it is now (the other change is kept
+    // in the fields the user did not change)
+    public Diary reapplyRefused(RefusedChange r) throws Exception {
+        Diary current = viewRecord(r.getUserId(), r.getId());
+        if (current == null)
+            throw new SQLException("The entry was deleted meanwhile");
+        Diary again = current.copy();
+        Diary values = r.getValues();
+        int fields = r.getFields();
+        if ((fields & Diary.NAME) != 0) again.setName(values.getName());
+        if ((fields & Diary.DURATION) != 0) again.setDuration(values.getDuration());
+        if ((fields & Diary.ADDRESS) != 0) again.setAddress(values.getAddress());
+        if ((fields & Diary.DATE) != 0) again.setDate(values.getDate());
+        if ((fields & Diary.TIME) != 0) again.setTime(values.getTime());
+        if ((fields & Diary.DETAILS) != 0) again.setDetails(values.getDetails());
+        updateRecord(again);
+        return again;
+    }
+
+    // the id the storage has now for an id it gave out (a journaled diary keeps its temporary id until it is written)
+    private int realId(int id) {
+        return dbHandler instanceof JournaledStorage ? ((JournaledStorage) dbHandler).realId(id) : id;
+    }
+
+    private Diary withRealId(Diary d) {
+        int id = realId(d.getId());
+        return id == d.getId() ? d : d.withId(id);
+    }
+
+    public void addListener(Listener listener) { listeners.add(listener); }
+    public void removeListener(Listener listener) { listeners.remove(listener); }
+
+    protected void fireAdded(Diary d) { for (Listener l : listeners) l.added(d); }
+    protected void fireUpdated(Diary d) { for (Listener l : listeners) l.updated(d); }
+    protected void fireRemoved(int id) { for (Listener l : listeners) l.removed(id); }
+    protected void fireReloaded(int userId) { for (Listener l : listeners) l.reloaded(userId); }
+
+    public List<Diary> viewRecord(int userId) throws Exception {             //      1-viewRecord()-> retrive user diaries (from the cache, or from database for logged in user)
+        List<Diary> cached = cache.all(userId);
+        if (cached != null)
+            return cached;
+        long version = cache.version();
+        List<Diary> diaries = dbHandler.getUserDiaries(userId);
+        cache.put(userId, diaries, version);
+        return diaries;
+    }                                                                              
+
+    public Diary viewRecord(int userId, int id) throws Exception {             //      viewRecord(id)-> one whole diary of the user as it is stored now (null -> there is none)
+        return dbHandler.getDiary(userId, realId(id));
+    }
+
+    public String viewDetails(Diary d) throws Exception {           // viewDetails()-> the whole details of a diary the list only has a preview of
+        if (!d.isSummary())
+            return d.getDetails();
+        return viewDetails(d.getUserId(), d.getId(), d.getVersion());
+    }
+
+    // version: of the row the details are for, they are cached for that version only (< 0: unknown, not cached)
+    public String viewDetails(int userId, int id, int version) throws Exception {
+        String cached = version < 0 ? null : details.get(userId, id, version);
+        if (cached != null)
+            return cached;
+        String text = readDetails(userId, id, version);
+        if (version >= 0)
+            details.put(userId, id, version, text);
+        return text;
+    }
+
+    protected String readDetails(int userId, int id, int version) throws Exception {
+        return dbHandler.getDiaryDetails(userId, id);
+    }
+
+    // a diary was changed or deleted: its cached details are old
+    protected void forgetDetails(int id) {
+        details.remove(id);
+    }
+
+    public void exportRecords(int userId, DiaryStorage.RowHandler handler) throws Exception {    // exportRecords()-> stream all diaries of a user to the handler
+        dbHandler.streamUserDiaries(userId, handler);
+    }
+
+    public int countRecords(int userId) throws Exception {                     //      countRecords()-> how many diaries the user has
+        int cached = cache.count(userId);
+        if (cached >= 0)
+            return cached;
+        return dbHandler.countUserDiaries(userId);          // the list itself is cached when viewRecord() reads it
+    }
+
+    // whether the two ...ByUsername() reads below can be used, to read ahead while the login is checked;
+    // a diary server does not offer them (it would show anyone's diaries before the password is known)
+    public boolean canReadAhead() {
+        return dbHandler != null;
+    }
+    public List<Diary> viewFirstPageByUsername(String username, int pageSize) throws Exception {   // used to read ahead while the login is checked
+        return dbHandler.getFirstDiariesByUsername(username, pageSize);
+    }
+
+    public int countRecordsByUsername(String username) throws Exception {
+        return dbHandler.countDiariesByUsername(username);
+    }
+
+    public List<Diary> viewRecordPage(int userId, Diary after, int pageSize) throws Exception {        // viewRecordPage()-> next page after a row (null -> first page)
+        List<Diary> cached = cache.pageAfter(userId, after, pageSize);
+        if (cached != null)
+            return cached;
+        return dbHandler.getUserDiariesAfter(userId, after, pageSize);
+    }
+
+    public List<Diary> viewRecordPageBefore(int userId, Diary before, int pageSize) throws Exception { // viewRecordPageBefore()-> page just before a row
+        List<Diary> cached = cache.pageBefore(userId, before, pageSize);
+        if (cached != null)
+            return cached;
+        return dbHandler.getUserDiariesBefore(userId, before, pageSize);
+    }
+
+    public List<Diary> viewRecordPageAt(int userId, int offset, int pageSize) throws Exception {      // viewRecordPageAt()-> page starting at a row number
+        List<Diary> cached = cache.pageAt(userId, offset, pageSize);
+        if (cached != null)
+            return cached;
+        return dbHandler.getUserDiariesAt(userId, offset, pageSize);
+    }
+                                                                                    
+    // the same pages sorted and filtered by a DiaryQuery: the normal order is served as above (cache), any other
+    // order or filter is one query on the storage, never a full load
+    public List<Diary> viewRecordPage(int userId, DiaryQuery query, Diary after, int pageSize) throws Exception {
+        if (query.isDefault())
+            return viewRecordPage(userId, after, pageSize);
+        return dbHandler.queryDiariesAfter(userId, query, after, pageSize);
+    }
+
+    public List<Diary> viewRecordPageBefore(int userId, DiaryQuery query, Diary before, int pageSize) throws Exception {
+        if (query.isDefault())
+            return viewRecordPageBefore(userId, before, pageSize);
+        return dbHandler.queryDiariesBefore(userId, query, before, pageSize);
+    }
+
+    public List<Diary> viewRecordPageAt(int userId, DiaryQuery query, int offset, int pageSize) throws Exception {
+        if (query.isDefault())
+            return viewRecordPageAt(userId, offset, pageSize);
+        return dbHandler.queryDiariesAt(userId, query, offset, pageSize);
+    }
+
+    public int countRecords(int userId, DiaryQuery query) throws Exception {
+        if (!query.isFiltered())
+            return countRecords(userId);            // the order does not change the count
+        return dbHandler.countDiaries(userId, query);
+    }
+
+    public Diary addRecord(Diary d) throws Exception {                                //      2- addRecord()-> add a new diary record, returns it with its new id
+        Diary saved = d.withId(dbHandler.addDiary(d));
+        cache.added(saved);
+        searchIndex.added(saved);
+        fireAdded(saved);
+        return saved;
+    }
+
+    public Map<Integer, SQLException> importRecords(List<Diary> diaries) throws Exception {      // importRecords()-> add many records in one batch, returns the rows that failed
+        try {
+            return dbHandler.addDiaries(diaries);
+        } finally {
+            Set<Integer> users = new HashSet<>();
+            for (Diary d : diaries) {           // the new ids are not known, the list is read again next time
+                if (users.add(d.getUserId())) {
+                    cache.invalidate(d.getUserId());
+                    searchIndex.invalidate(d.getUserId());
+                    fireReloaded(d.getUserId());
+                }
+            }
+        }
+    }
+
+    public void updateRecord(Diary d) throws Exception {       //      3- updateRecord()-> edit an existing record (only its changed fields)
+        int fields = d.getDirtyFields();
+        if (fields == 0) return;
+        try {
+            dbHandler.updateDiary(d);
+        } catch (DiaryConflictException e) {         // someone else changed it: what is cached for this user is old
+            cache.invalidate(d.getUserId());
+            searchIndex.invalidate(d.getUserId());
+            schedule.invalidate(d.getUserId());
+            forgetDetails(d.getId());
+            throw e;
+        }
+        Diary changed = withRealId(d);               // a row shown before its journaled insert was written has the temporary id
+        forgetDetails(d.getId());
+        forgetDetails(changed.getId());
+        Diary saved = cache.updated(changed, fields);      // d may hold only the changed fields, the cache has the whole diary
+        if (saved != null) {
+            searchIndex.updated(saved);
+        } else {
+            searchIndex.invalidate(d.getUserId());
+            schedule.invalidate(d.getUserId());
+            saved = changed;
+        }
+        fireUpdated(saved);
+    }
+
+    public void deleteRecord(Diary d) throws Exception {                              //      4- deleteRecord()-> delete an existiing record
+        dbHandler.deleteUserDiary(d.getUserId(), d.getId());
+        int id = realId(d.getId());
+        forgetDetails(d.getId());
+        forgetDetails(id);
+        cache.removed(d.getUserId(), id);
+        searchIndex.removed(d.getUserId(), id);
+        fireRemoved(id);
+    }
+
+    public void deleteRecord(int id) throws Exception {                              //         (by id only, when the owner is not known)
+        dbHandler.deleteDiary(id);
+        int real = realId(id);
+        forgetDetails(id);
+        forgetDetails(real);
+        cache.removed(real);
+        searchIndex.removed(real);
+        fireRemoved(real);
+    }
+
+    public List<Diary> viewRecordsBetween(int userId, LocalDate from, LocalDate to) throws Exception {   // viewRecordsBetween()-> diaries from one day to another (both included)
+        List<Diary> cached = cache.between(userId, from, to);
+        if (cached != null)
+            return cached;
+        return dbHandler.getUserDiariesBetween(userId, from, to);
+    }
+
+    public List<Diary> viewUpcomingRecords(int userId, int limit) throws Exception {    // viewUpcomingRecords()-> the next `limit` diaries from now on
+        LocalDateTime now = LocalDateTime.now().withNano(0);
+        List<Diary> cached = cache.upcoming(userId, now, limit);
+        if (cached != null)
+            return cached;
+        return dbHandler.getUpcomingDiaries(userId, now, limit);
+    }
+
+    public List<Diary> searchRecords(int userId, String query, int limit) throws Exception {   // searchRecords()-> best matching diaries for the words in query
+        List<Diary> results = searchIndex.search(userId, query, limit);
+        if (results != null)
+            return results;
+        long version = searchIndex.version();       // first search of this user: reading all diaries once to build the index,
+        List<Diary> all = new ArrayList<>();         // whole (streamed, not the list summaries) so the words of all details are found
+        dbHandler.streamUserDiaries(userId, all::add);
+        return searchIndex.build(userId, all, version).search(query, limit);
+    }
+
+    public List<Diary> findOverlaps(Diary d) throws Exception {       // findOverlaps()-> the user's other entries at the same time as d (checked before saving it)
+        DiaryIntervalIndex.Tree tree = scheduleOf(d.getUserId());
+        long start = DiaryIntervalIndex.start(d);
+        return tree.overlapping(start, DiaryIntervalIndex.end(d, start), realId(d.getId()));
+    }
+
+    public List<TimeSlot> findFreeSlots(int userId, LocalDateTime from, LocalDateTime to, Duration minLength) throws Exception {  // findFreeSlots()-> times in [from, to) without entries
+        return scheduleOf(userId).free(DiaryIntervalIndex.seconds(from), DiaryIntervalIndex.seconds(to), Math.max(1, minLength.getSeconds()));
+    }
+
+    private DiaryIntervalIndex.Tree scheduleOf(int userId) throws Exception {
+        DiaryIntervalIndex.Tree tree = schedule.tree(userId);
+        if (tree != null)
+            return tree;
+        long version = schedule.version();          // first check of this user: the tree is built from their list
+        return schedule.build(userId, viewRecord(userId), version);
+    }
+
+    public int positionOf(Diary d) throws Exception {                                //      positionOf()-> row number of a diary in the user's list
+        int cached = cache.position(d);
+        if (cached >= 0)
+            return cached;
+        return dbHandler.countDiariesBefore(d);
+    }
+
+    public CacheStats getCacheStats() {                                              //      getCacheStats()-> hit/miss/eviction numbers of the diary cache
+        return cache == null ? new CacheStats(0, 0, 0, 0, 0, 0) : cache.getStats();
+    }
+}
+
+// ReminderScheduler tells the user when a diary entry arrives. It keeps the coming entries of one user in a priority queue
+// ordered by their date and time and one thread sleeps until the first of them is due, so nothing polls the database.
+// Only the next `window` entries are held: when they have all fired the next window is read (keyset paging after the
+// last one), so the queue stays the same size whether the user has 10 or 100k future entries. RecordManager tells it
+// about every add, edit and delete, and the queue is patched in place. A window is read without holding the lock, so those
+// writes never wait for the database; the changes heard during the read are kept and replayed on top of what it returned.
+class ReminderScheduler implements RecordManager.Listener
+{
+    private final RecordManager records;
+    private final int userId;
+    private final int window;
+    private final long leadSeconds;              // fire this long before the entry's time
+    private final Consumer<Diary> onDue;         // called on the scheduler thread
+    private final PriorityQueue<Diary> queue = new PriorityQueue<>(DiaryCache.ORDER);
+    private final Map<Integer, Diary> queued = new HashMap<>();
+    private final Thread thread;
+
+    private Diary horizon;           // last entry read; entries after it are not in the queue yet (null: all are in it)
+    private boolean reload = true;   // read the first window again (at start, after imports, or when the queue grew too big)
+    private boolean stopped;
+    private long retryAt;            // reading failed, try again at this time (System.currentTimeMillis)
+    private List<Runnable> pending;  // changes heard while a window is being read (null: no read running)
+
+    public ReminderScheduler(RecordManager records, int userId, int window, long leadSeconds, Consumer<Diary> onDue)
+    {
+        this.records = records;
+        this.userId = userId;
+        this.window = window;
+        this.leadSeconds = leadSeconds;
+        this.onDue = onDue;
+        this.thread = new Thread(this::run, "diary-reminders");
+        thread.setDaemon(true);
+    }
+
+    public void start()
+    {
+        records.addListener(this);
+        thread.start();
+    }
+
+    public void stop()
+    {
+        records.removeListener(this);
+        synchronized (this)
+        {
+            stopped = true;
+            notifyAll();
+        }
+    }
+
+    public synchronized int getQueued() { return queue.size(); }
+
+    private void run()
+    {
+        while (true)
+        {
+            List<Diary> due = new ArrayList<>();
+            boolean read = false;
+            boolean fresh = false;
+            Diary after = null;
+            synchronized (this)
+            {
+                try
+                {
+                    if (stopped) return;
+                    long now = System.currentTimeMillis();
+                    if (now < retryAt) { wait(retryAt - now); continue; }
+                    if (reload || (queue.isEmpty() && horizon != null))
+                    {
+                        read = true;
+                        fresh = reload;
+                        after = horizon;
+                        reload = false;
+                        pending = new ArrayList<>();
+                    }
+                    else
+                    {
+                        Diary first = queue.peek();
+                        if (first == null) { wait(); continue; }
+                        long wait = millisUntilDue(first);
+                        if (wait > 0) { wait(wait); continue; }
+                        while (!queue.isEmpty() && millisUntilDue(queue.peek()) <= 0)
+                        {
+                            Diary d = queue.poll();
+                            queued.remove(d.getId());
+                            due.add(d);
+                        }
+                    }
+                }
+                catch (InterruptedException e) { return; }
+            }
+            if (read)
+            {
+                load(fresh, after);     // outside the lock: the database may be slow, and every write reports to us
+                continue;
+            }
+            for (Diary d : due)                 // outside the lock: the notification may take a while
+            {
+                try { onDue.accept(d); }
+                catch (RuntimeException e) { System.err.println("Reminder failed: " + e.getMessage()); }
+            }
+        }
+    }
+
+    // reading the next window of entries: the first one from now on (fresh), or the one after the last entry read.
+    // The read runs without the lock; the adds, edits and deletes heard meanwhile are then replayed on the new window,
+    // so an entry the read saw before it was changed (or deleted) ends up as it is now.
+    private void load(boolean fresh, Diary after)
+    {
+        List<Diary> next;
+        try
+        {
+            next = fresh ? records.viewUpcomingRecords(userId, window) : records.viewRecordPage(userId, after, window);
+        }
+        catch (Exception e)
+        {
+            System.err.println("Reading reminders failed: " + e.getMessage());
+            synchronized (this)
+            {
+                pending = null;
+                if (fresh) reload = true;
+                retryAt = System.currentTimeMillis() + 60_000;
+            }
+            return;
+        }
+        synchronized (this)
+        {
+            if (fresh)
+            {
+                queue.clear();
+                queued.clear();
+            }
+            for (Diary d : next)
+            {
+                drop(d.getId());
+                enqueue(d);
+            }
+            horizon = next.size() < window ? null : next.get(next.size() - 1);
+            List<Runnable> changes = pending;
+            pending = null;
+            for (Runnable change : changes)
+                change.run();
+            notifyAll();
+        }
+    }
+
+    private long millisUntilDue(Diary d)
+    {
+        LocalDateTime due = LocalDateTime.of(d.getDate(), d.getTime()).minusSeconds(leadSeconds);
+        return Duration.between(LocalDateTime.now(), due).toMillis();
+    }
+
+    private void enqueue(Diary d)
+    {
+        queue.add(d);
+        queued.put(d.getId(), d);
+    }
+
+    // a new or changed entry goes into the queue only if it is still to come and not beyond the window read so far
+    private void offer(Diary d)
+    {
+        if (d.getUserId() != userId || d.getDate() == null || d.getTime() == null) return;
+        if (LocalDateTime.of(d.getDate(), d.getTime()).isBefore(LocalDateTime.now())) return;
+        if (horizon != null && DiaryCache.ORDER.compare(d, horizon) > 0) return;
+        enqueue(d.copy());
+        if (queue.size() > 2 * window) reload = true;      // many entries added before the horizon: start from a fresh window
+        notifyAll();
+    }
+
+    private void drop(int id)
+    {
+        Diary old = queued.remove(id);
+        if (old != null) queue.remove(old);
+    }
+
+    // patching the queue now, and keeping the change when a read is running so it can be replayed on its result
+    private void change(Runnable change)
+    {
+        change.run();
+        if (pending != null) pending.add(change);
+    }
+
+    private void replace(Diary d)
+    {
+        if (d.getUserId() != userId) return;
+        Diary copy = d.copy();          // replayed later, after the caller may have changed its object
+        change(() -> {
+            drop(copy.getId());
+            offer(copy);
+        });
+    }
+
+    @Override
+    public synchronized void added(Diary d) { replace(d); }
+
+    @Override
+    public synchronized void updated(Diary d) { replace(d); }
+
+    @Override
+    public synchronized void removed(int id)
+    {
+        change(() -> drop(id));
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void reloaded(int userId)
+    {
+        if (userId != this.userId) return;
+        reload = true;
+        notifyAll();
+    }
+}
+
+// DetailsCache keeps the whole details of the diaries opened last, because the lists only have a preview of them:
+// clicking between a few rows reads each text once. It is bounded by the number of diaries, the least recently used
+// is dropped. Keys are diary ids (with the owner, so one user never gets another's text); a diary that is changed or
+// deleted is forgotten.
+class DetailsCache
+{
+    private static class Details
+    {
+        final int userId;
+        final int version;          // the version of the row the text was read for
+        final String text;
+
+        Details(int userId, int version, String text)
+        {
+            this.userId = userId;
+            this.version = version;
+            this.text = text;
+        }
+    }
+
+    private final int maxEntries;
+    private final LinkedHashMap<Integer, Details> details = new LinkedHashMap<>(16, 0.75f, true);     // access order = LRU
+    private long hits;
+    private long misses;
+
+    public DetailsCache(int maxEntries) { this.maxEntries = maxEntries; }
+
+    // the details of a diary of this user at this version, null when they are not cached; text cached for another
+    // version is dropped (the diary was changed by someone this cache did not hear about, e.g. another program)
+    public synchronized String get(int userId, int diaryId, int version)
+    {
+        Details d = details.get(diaryId);
+        if (d != null && d.version != version) details.remove(diaryId);
+        if (d == null || d.userId != userId || d.version != version)
+        {
+            misses++;
+            return null;
+        }
+        hits++;
+        return d.text;
+    }
+
+    public synchronized void put(int userId, int diaryId, int version, String text)
+    {
+        if (text == null || maxEntries <= 0) return;
+        details.put(diaryId, new Details(userId, version, text));
+        if (details.size() > maxEntries) details.remove(details.keySet().iterator().next());
+    }
+
+    public synchronized void remove(int diaryId) { details.remove(diaryId); }
+
+    public synchronized void clear() { details.clear(); }
+
+    public synchronized long getHits() { return hits; }
+    public synchronized long getMisses() { return misses; }
+}
+
+// DiaryCache keeps the diaries of recently used users in memory, each user's list sorted by (date, time, id) like the
+// database returns them. It is bounded by the total number of diaries and by their estimated size in bytes; when it is
+// full the least recently used user is dropped. All methods are synchronized because several worker threads use it.
+// Like the lists it is filled from, it keeps summaries: the details of a diary only up to Diary.PREVIEW_LENGTH.
+class DiaryCache
+{
+    static final Comparator<Diary> ORDER = Comparator.comparing(Diary::getDate, Comparator.nullsFirst(Comparator.<LocalDate>naturalOrder()))
+            .thenComparing(Diary::getTime, Comparator.nullsFirst(Comparator.<LocalTime>naturalOrder()))
+            .thenComparingInt(Diary::getId);
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final LinkedHashMap<Integer, List<Diary>> users = new LinkedHashMap<>(16, 0.75f, true);     // access order = LRU
+    private final Map<Integer, Long> userBytes = new HashMap<>();
+    private int entries;
+    private long bytes;
+    private long version;           // changed by every write, so a list read from the database before a write is not cached
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public DiaryCache(int maxEntries, long maxBytes)
+    {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    // the reads below return null (or -1) when the user is not cached; the diaries they return must not be modified
+
+    public synchronized List<Diary> all(int userId)
+    {
+        List<Diary> list = lookup(userId);
+        return list == null ? null : new ArrayList<>(list);
+    }
+
+    public synchronized int count(int userId)
+    {
+        List<Diary> list = lookup(userId);
+        return list == null ? -1 : list.size();
+    }
+
+    // the page after a diary (null -> first page)
+    public synchronized List<Diary> pageAfter(int userId, Diary after, int pageSize)
+    {
+        List<Diary> list = lookup(userId);
+        if (list == null) return null;
+        int from = after == null ? 0 : indexAfter(list, after);
+        return new ArrayList<>(list.subList(from, Math.min(list.size(), from + pageSize)));
+    }
+
+    public synchronized List<Diary> pageBefore(int userId, Diary before, int pageSize)
+    {
+        List<Diary> list = lookup(userId);
+        if (list == null) return null;
+        int to = indexBefore(list, before);
+        return new ArrayList<>(list.subList(Math.max(0, to - pageSize), to));
+    }
+
+    public synchronized List<Diary> pageAt(int userId, int offset, int pageSize)
+    {
+        List<Diary> list = lookup(userId);
+        if (list == null) return null;
+        int from = Math.min(offset, list.size());
+        return new ArrayList<>(list.subList(from, Math.min(list.size(), from + pageSize)));
+    }
+
+    // diaries between two days (both included)
+    public synchronized List<Diary> between(int userId, LocalDate from, LocalDate to)
+    {
+        List<Diary> list = lookup(userId);
+        if (list == null) return null;
+        int start = indexBefore(list, probe(userId, from, LocalTime.MIN));
+        int end = indexBefore(list, probe(userId, to.plusDays(1), LocalTime.MIN));
+        return new ArrayList<>(list.subList(start, Math.max(start, end)));
+    }
+
+    public synchronized List<Diary> upcoming(int userId, LocalDateTime from, int limit)
+    {
+        List<Diary> list = lookup(userId);
+        if (list == null) return null;
+        int start = indexBefore(list, probe(userId, from.toLocalDate(), from.toLocalTime()));
+        return new ArrayList<>(list.subList(start, Math.min(list.size(), start + limit)));
+    }
+
+    // a diary that sorts before every real diary at that date and time, used to binary search the lists
+    private static Diary probe(int userId, LocalDate date, LocalTime time)
+    {
+        return new Diary(Integer.MIN_VALUE, null, null, null, date, time, null, userId);
+    }
+
+    public synchronized int position(Diary d)
+    {
+        List<Diary> list = lookup(d.getUserId());
+        return list == null ? -1 : indexBefore(list, d);
+    }
+
+    private List<Diary> lookup(int userId)
+    {
+        List<Diary> list = users.get(userId);
+        if (list != null) hits++;
+        else misses++;
+        return list;
+    }
+
+    public synchronized long version() { return version; }
+
+    // whether a user with this many diaries is small enough to be cached (one user may use at most half the cache)
+    public boolean fits(int count) { return count <= maxEntries / 2; }
+
+    // caching a list read from the database, unless something was written since version was read
+    public synchronized void put(int userId, List<Diary> diaries, long version)
+    {
+        if (version != this.version || users.containsKey(userId)) return;
+        long size = 0;
+        List<Diary> copy = new ArrayList<>(diaries.size());
+        for (Diary d : diaries)
+        {
+            Diary summary = d.summary();        // our own objects, so callers changing theirs does not change the cache
+            copy.add(summary);
+            size += estimateBytes(summary);
+        }
+        if (!fits(copy.size()) || size > maxBytes / 2) return;
+        copy.sort(ORDER);
+        users.put(userId, copy);
+        userBytes.put(userId, size);
+        entries += copy.size();
+        bytes += size;
+        evict();
+    }
+
+    public synchronized void added(Diary d)
+    {
+        version++;
+        List<Diary> list = users.get(d.getUserId());
+        if (list == null) return;
+        Diary copy = d.summary();
+        list.add(indexBefore(list, copy), copy);
+        resize(d.getUserId(), 1, estimateBytes(copy));
+        evict();
+    }
+
+    // applying the changed fields of d to the cached diary; returns the whole updated diary, or null when it is not cached
+    public synchronized Diary updated(Diary d, int fields)
+    {
+        version++;
+        List<Diary> list = users.get(d.getUserId());
+        if (list == null) return null;
+        Diary old = null;
+        for (int i = 0; i < list.size(); i++)
+        {
+            if (list.get(i).getId() == d.getId())
+            {
+                old = list.remove(i);
+                break;
+            }
+        }
+        if (old == null && fields != Diary.ALL_FIELDS)
+        {
+            invalidate(d.getUserId());          // the rest of this diary is not known here
+            return null;
+        }
+        Diary merged = old == null ? d.copy() : old.withChanges(d, fields);
+        Diary copy = merged.summary();          // the cache keeps only the preview of the details, like every list
+        list.add(indexBefore(list, copy), copy);
+        resize(d.getUserId(), old == null ? 1 : 0, estimateBytes(copy) - (old == null ? 0 : estimateBytes(old)));
+        evict();
+        return merged;
+    }
+
+    public synchronized void removed(int userId, int diaryId)
+    {
+        version++;
+        List<Diary> list = users.get(userId);
+        if (list == null) return;
+        for (int i = 0; i < list.size(); i++)
+        {
+            if (list.get(i).getId() == diaryId)
+            {
+                resize(userId, -1, -estimateBytes(list.remove(i)));
+                return;
+            }
+        }
+    }
+
+    // removing a diary when only its id is known: looking through every cached user
+    public synchronized void removed(int diaryId)
+    {
+        version++;
+        for (Map.Entry<Integer, List<Diary>> e : users.entrySet())
+        {
+            List<Diary> list = e.getValue();
+            for (int i = 0; i < list.size(); i++)
+            {
+                if (list.get(i).getId() == diaryId)
+                {
+                    resize(e.getKey(), -1, -estimateBytes(list.remove(i)));
+                    return;
+                }
+            }
+        }
+    }
+
+    public synchronized void invalidate(int userId)
+    {
+        version++;
+        List<Diary> list = users.remove(userId);
+        if (list == null) return;
+        entries -= list.size();
+        bytes -= userBytes.remove(userId);
+    }
+
+    public synchronized CacheStats getStats()
+    {
+        return new CacheStats(hits, misses, evictions, users.size(), entries, bytes);
+    }
+
+    // index of the first diary that comes after the given one
+    static int indexAfter(List<Diary> list, Diary d)
+    {
+        int low = 0, high = list.size();
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (ORDER.compare(list.get(mid), d) <= 0) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    // index of the first diary that is not before the given one (= how many diaries come before it)
+    static int indexBefore(List<Diary> list, Diary d)
+    {
+        int low = 0, high = list.size();
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (ORDER.compare(list.get(mid), d) < 0) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    // a rough size of a diary in memory: object headers, fields, date and time objects plus 2 bytes per character of its texts
+    static long estimateBytes(Diary d)
+    {
+        return 250 + 2L * (length(d.getName()) + length(d.getDuration()) + length(d.getAddress()) + length(d.getDetails()));
+    }
+
+    private static int length(String s) { return s == null ? 0 : s.length(); }
+
+    private void resize(int userId, int entryDelta, long byteDelta)
+    {
+        entries += entryDelta;
+        bytes += byteDelta;
+        userBytes.merge(userId, byteDelta, Long::sum);
+    }
+
+    private void evict()
+    {
+        Iterator<Map.Entry<Integer, List<Diary>>> it = users.entrySet().iterator();
+        while ((entries > maxEntries || bytes > maxBytes) && it.hasNext())
+        {
+            Map.Entry<Integer, List<Diary>> eldest = it.next();
+            it.remove();
+            entries -= eldest.getValue().size();
+            bytes -= userBytes.remove(eldest.getKey());
+            evictions++;
+        }
+    }
+}
+
+// DiaryIntervalIndex finds double bookings. For every user it keeps an interval tree of their entries: an AVL tree
+// ordered by start (date + time) where every node also knows the latest end (start + duration, read by
+// DiaryFormats.parseDuration) in its subtree. Looking for the entries that overlap a time range only goes down branches
+// whose latest end is after the range starts and stops at starts after the range ends, O(log n + k) for k overlapping
+// entries instead of a scan of the whole list. An entry without a readable duration is a moment (one second long).
+// Like DiarySearchIndex a user's tree is built from their list the first time it is needed and then kept up to date
+// from RecordManager's writes (it is one of its listeners); only -Ddiary.schedule.maxUsers (default 16) users are kept.
+class DiaryIntervalIndex implements RecordManager.Listener
+{
+    private final int maxUsers;
+    private final LinkedHashMap<Integer, Tree> users = new LinkedHashMap<>(16, 0.75f, true);     // LRU of indexed users
+    private long version;           // changed by every write, a tree built from an older list is not kept
+
+    public DiaryIntervalIndex(int maxUsers) { this.maxUsers = maxUsers; }
+
+    public synchronized long version() { return version; }
+
+    // the tree of a user, null when the user is not indexed (yet)
+    public synchronized Tree tree(int userId) { return users.get(userId); }
+
+    // building the tree of a user from all of their diaries; it is kept unless something was written since `version`
+    public Tree build(int userId, List<Diary> diaries, long version)
+    {
+        Tree tree = new Tree();
+        for (Diary d : diaries) tree.add(d);
+        synchronized (this)
+        {
+            if (version == this.version)
+            {
+                users.put(userId, tree);
+                if (users.size() > maxUsers) users.remove(users.keySet().iterator().next());
+            }
+        }
+        return tree;
+    }
+
+    @Override
+    public synchronized void added(Diary d)
+    {
+        version++;
+        Tree tree = users.get(d.getUserId());
+        if (tree != null) tree.add(d);
+    }
+
+    @Override
+    public synchronized void updated(Diary d)
+    {
+        version++;
+        Tree tree = users.get(d.getUserId());
+        if (tree != null) tree.replace(d);
+    }
+
+    @Override
+    public synchronized void removed(int id)
+    {
+        version++;
+        for (Tree tree : users.values()) tree.remove(id);
+    }
+
+    @Override
+    public void reloaded(int userId) { invalidate(userId); }
+
+    public synchronized void invalidate(int userId)
+    {
+        version++;
+        users.remove(userId);
+    }
+
+    // times are seconds since 1970-01-01 00:00 of the wall clock (the diaries have no time zone)
+    static long seconds(LocalDate date, LocalTime time) { return date.toEpochDay() * 86400 + time.toSecondOfDay(); }
+
+    static long seconds(LocalDateTime t) { return seconds(t.toLocalDate(), t.toLocalTime()); }
+
+    static LocalDateTime dateTime(long seconds)
+    {
+        return LocalDate.ofEpochDay(Math.floorDiv(seconds, 86400)).atTime(LocalTime.ofSecondOfDay(Math.floorMod(seconds, 86400)));
+    }
+
+    static long start(Diary d) { return seconds(d.getDate(), d.getTime()); }
+
+    static long end(Diary d, long start)
+    {
+        Duration length = DiaryFormats.parseDuration(d.getDuration());
+        return start + (length == null ? 1 : Math.max(1, length.getSeconds()));
+    }
+
+    // Tree is the interval tree of one user's diaries
+    static class Tree
+    {
+        private static class Node
+        {
+            final Diary diary;
+            final long start, end;
+            long maxEnd;            // the latest end in this subtree
+            int height = 1;
+            Node left, right;
+
+            Node(Diary diary, long start, long end)
+            {
+                this.diary = diary;
+                this.start = start;
+                this.end = end;
+                this.maxEnd = end;
+            }
+        }
+
+        private Node root;
+        private final Map<Integer, Node> byId = new HashMap<>();
+
+        synchronized void add(Diary d)
+        {
+            if (d.getDate() == null || d.getTime() == null) return;
+            remove(d.getId());
+            long start = start(d);
+            Node node = new Node(d.copy(), start, end(d, start));
+            byId.put(d.getId(), node);
+            root = insert(root, node);
+        }
+
+        synchronized void replace(Diary d)
+        {
+            remove(d.getId());
+            add(d);
+        }
+
+        synchronized void remove(int id)
+        {
+            Node node = byId.remove(id);
+            if (node != null) root = delete(root, node.start, id);
+        }
+
+        synchronized int size() { return byId.size(); }
+
+        // the diaries overlapping [from, to) in start order, without the diary `exceptId` (the one being edited)
+        synchronized List<Diary> overlapping(long from, long to, int exceptId)
+        {
+            List<Diary> found = new ArrayList<>();
+            collect(root, from, to, exceptId, found);
+            return found;
+        }
+
+        // the gaps of at least minSeconds in [from, to) that no diary overlaps
+        synchronized List<TimeSlot> free(long from, long to, long minSeconds)
+        {
+            List<TimeSlot> slots = new ArrayList<>();
+            long cursor = from;
+            for (Diary d : overlapping(from, to, 0))
+            {
+                Node node = byId.get(d.getId());
+                if (node.start - cursor >= minSeconds) slots.add(new TimeSlot(dateTime(cursor), dateTime(node.start)));
+                cursor = Math.max(cursor, node.end);
+            }
+            if (to - cursor >= minSeconds) slots.add(new TimeSlot(dateTime(cursor), dateTime(to)));
+            return slots;
+        }
+
+        private static void collect(Node n, long from, long to, int exceptId, List<Diary> found)
+        {
+            if (n == null || n.maxEnd <= from) return;          // everything below ends before the range
+            collect(n.left, from, to, exceptId, found);
+            if (n.start >= to) return;                          // this and everything right of it start after the range
+            if (n.end > from && n.diary.getId() != exceptId) found.add(n.diary);
+            collect(n.right, from, to, exceptId, found);
+        }
+
+        private static int compare(long start, int id, Node n)
+        {
+            int c = Long.compare(start, n.start);
+            return c != 0 ? c : Integer.compare(id, n.diary.getId());
+        }
+
+        private static Node insert(Node n, Node node)
+        {
+            if (n == null) return node;
+            if (compare(node.start, node.diary.getId(), n) < 0) n.left = insert(n.left, node);
+            else n.right = insert(n.right, node);
+            return balance(n);
+        }
+
+        private static Node delete(Node n, long start, int id)
+        {
+            if (n == null) return null;
+            int c = compare(start, id, n);
+            if (c < 0) n.left = delete(n.left, start, id);
+            else if (c > 0) n.right = delete(n.right, start, id);
+            else
+            {
+                if (n.left == null) return n.right;
+                if (n.right == null) return n.left;
+                Node next = n.right;            // the next node in order takes this one's place
+                while (next.left != null) next = next.left;
+                next.right = delete(n.right, next.start, next.diary.getId());
+                next.left = n.left;
+                n = next;
+            }
+            return balance(n);
+        }
+
+        private static int height(Node n) { return n == null ? 0 : n.height; }
+
+        private static void update(Node n)
+        {
+            n.height = 1 + Math.max(height(n.left), height(n.right));
+            n.maxEnd = n.end;
+            if (n.left != null) n.maxEnd = Math.max(n.maxEnd, n.left.maxEnd);
+            if (n.right != null) n.maxEnd = Math.max(n.maxEnd, n.right.maxEnd);
+        }
+
+        private static Node balance(Node n)
+        {
+            update(n);
+            int b = height(n.left) - height(n.right);
+            if (b > 1)
+            {
+                if (height(n.left.left) < height(n.left.right)) n.left = rotateLeft(n.left);
+                return rotateRight(n);
+            }
+            if (b < -1)
+            {
+                if (height(n.right.right) < height(n.right.left)) n.right = rotateRight(n.right);
+                return rotateLeft(n);
+            }
+            return n;
+        }
+
+        private static Node rotateRight(Node n)
+        {
+            Node l = n.left;
+            n.left = l.right;
+            l.right = n;
+            update(n);
+            update(l);
+            return l;
+        }
+
+        private static Node rotateLeft(Node n)
+        {
+            Node r = n.right;
+            n.right = r.left;
+            r.left = n;
+            update(n);
+            update(r);
+            return r;
+        }
+    }
+}
+
+// a free time between the entries of a user (see RecordManager.findFreeSlots)
+class TimeSlot
+{
+    private final LocalDateTime start;
+    private final LocalDateTime end;
+
+    public TimeSlot(LocalDateTime start, LocalDateTime end)
+    {
+        this.start = start;
+        this.end = end;
+    }
+
+    public LocalDateTime getStart() { return start; }
+    public LocalDateTime getEnd() { return end; }
+    public Duration getLength() { return Duration.between(start, end); }
+
+    @Override
+    public String toString()
+    {
+        return DiaryFormats.formatDate(start.toLocalDate()) + " " + DiaryFormats.formatTime(start.toLocalTime()) + " - "
+                + (end.toLocalDate().equals(start.toLocalDate()) ? "" : DiaryFormats.formatDate(end.toLocalDate()) + " ")
+                + DiaryFormats.formatTime(end.toLocalTime()) + " (" + DiaryFormats.formatDuration(getLength()) + ")";
+    }
+}
+
+// DiarySearchIndex is an in-memory inverted index of the words in the name, address and details of each user's diaries.
+// For every word it keeps which diaries contain it and how often (a word in the name counts more than one in the details),
+// so a search only looks at the diaries that contain the searched words instead of scanning all of them.
+// The last word of a search is matched as a prefix so results appear while the user is still typing.
+class DiarySearchIndex
+{
+    private static final int NAME_WEIGHT = 3;
+    private static final int ADDRESS_WEIGHT = 2;
+    private static final int DETAILS_WEIGHT = 1;
+    private static final int MIN_PREFIX_LENGTH = 2;         // a one letter prefix would match most of the words
+    private static final int MAX_PREFIX_WORDS = 64;
+
+    private final int maxUsers;
+    private final LinkedHashMap<Integer, UserIndex> users = new LinkedHashMap<>(16, 0.75f, true);     // LRU of indexed users
+    private long version;           // changed by every write, an index built from an older list is not kept
+
+    public DiarySearchIndex(int maxUsers) { this.maxUsers = maxUsers; }
+
+    public synchronized long version() { return version; }
+
+    public synchronized boolean isIndexed(int userId) { return users.containsKey(userId); }
+
+    // building the index of a user from all of their diaries; it is kept unless something was written since `version`
+    public UserIndex build(int userId, List<Diary> diaries, long version)
+    {
+        UserIndex index = new UserIndex();
+        for (Diary d : diaries) index.add(d);
+        synchronized (this)
+        {
+            if (version == this.version)
+            {
+                users.put(userId, index);
+                if (users.size() > maxUsers) users.remove(users.keySet().iterator().next());
+            }
+        }
+        return index;
+    }
+
+    // searching an indexed user, null when the user is not indexed (yet)
+    public List<Diary> search(int userId, String query, int limit)
+    {
+        UserIndex index;
+        synchronized (this) { index = users.get(userId); }
+        return index == null ? null : index.search(query, limit);
+    }
+
+    public synchronized void added(Diary d)
+    {
+        version++;
+        UserIndex index = users.get(d.getUserId());
+        if (index != null) index.add(d);
+    }
+
+    public synchronized void updated(Diary d)
+    {
+        version++;
+        UserIndex index = users.get(d.getUserId());
+        if (index != null)
+            index.replace(d);
+    }
+
+    public synchronized void removed(int userId, int diaryId)
+    {
+        version++;
+        UserIndex index = users.get(userId);
+        if (index != null) index.remove(diaryId);
+    }
+
+    public synchronized void removed(int diaryId)
+    {
+        version++;
+        for (UserIndex index : users.values()) index.remove(diaryId);
+    }
+
+    public synchronized void invalidate(int userId)
+    {
+        version++;
+        users.remove(userId);
+    }
+
+    // splitting a text into lower case words (letters and digits)
+    static List<String> words(String text)
+    {
+        List<String> words = new ArrayList<>();
+        if (text == null) return words;
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++)
+        {
+            boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (letter && start < 0) start = i;
+            else if (!letter && start >= 0)
+            {
+                words.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return words;
+    }
+
+    // UserIndex is the index of one user's diaries
+    static class UserIndex
+    {
+        private final TreeMap<String, Map<Integer, Integer>> postings = new TreeMap<>();     // word -> (diary id -> weight)
+        private final Map<Integer, Diary> diaries = new HashMap<>();
+
+        synchronized void add(Diary d)
+        {
+            Diary copy = d.copy();
+            diaries.put(copy.getId(), copy);
+            Map<String, Integer> weights = weights(copy);
+            for (Map.Entry<String, Integer> w : weights.entrySet())
+                postings.computeIfAbsent(w.getKey(), k -> new HashMap<>()).put(copy.getId(), w.getValue());
+        }
+
+        // an updated diary; when it only has a preview of the details the indexed whole text is kept
+        synchronized void replace(Diary d)
+        {
+            Diary old = diaries.get(d.getId());
+            if (d.isSummary() && old != null) d = d.withDetails(old.getDetails());
+            remove(d.getId());
+            add(d);
+        }
+
+        synchronized void remove(int diaryId)
+        {
+            Diary old = diaries.remove(diaryId);
+            if (old == null) return;
+            for (String word : weights(old).keySet())
+            {
+                Map<Integer, Integer> ids = postings.get(word);
+                if (ids == null) continue;
+                ids.remove(diaryId);
+                if (ids.isEmpty()) postings.remove(word);
+            }
+        }
+
+        // every word of the query must appear in a diary; diaries are ranked by the weight of the matched words,
+        // rare words counting more than common ones (idf)
+        synchronized List<Diary> search(String query, int limit)
+        {
+            List<String> words = words(query);
+            if (words.isEmpty() || limit <= 0) return new ArrayList<>();
+            boolean prefixLast = Character.isLetterOrDigit(query.charAt(query.length() - 1));
+
+            // the posting lists of every searched word (a prefix gives the lists of all the words it starts)
+            List<List<Map<Integer, Integer>>> terms = new ArrayList<>();
+            for (int i = 0; i < words.size(); i++)
+            {
+                List<Map<Integer, Integer>> lists = new ArrayList<>();
+                String word = words.get(i);
+                if (i == words.size() - 1 && prefixLast && word.length() >= MIN_PREFIX_LENGTH)
+                {
+                    for (Map<Integer, Integer> ids : postings.subMap(word, word + Character.MAX_VALUE).values())
+                    {
+                        lists.add(ids);
+                        if (lists.size() >= MAX_PREFIX_WORDS) break;
+                    }
+                }
+                else if (postings.containsKey(word))
+                    lists.add(postings.get(word));
+                if (lists.isEmpty()) return new ArrayList<>();
+                terms.add(lists);
+            }
+            // starting from the rarest word, the other words only have to be checked for the diaries it matched
+            terms.sort(Comparator.comparingInt(IndexTerms::size));
+
+            PriorityQueue<Hit> best = new PriorityQueue<>();        // the best `limit` hits, worst one on top
+            if (terms.size() == 1)
+            {
+                Map<Integer, Double> scores = new HashMap<>();
+                for (Map<Integer, Integer> ids : terms.get(0)) score(ids, scores);
+                for (Map.Entry<Integer, Double> e : scores.entrySet()) offer(best, e.getKey(), e.getValue(), limit);
+            }
+            else
+            {
+                Map<Integer, Double> scores = new HashMap<>();
+                for (Map<Integer, Integer> ids : terms.get(0)) score(ids, scores);
+                for (Map.Entry<Integer, Double> e : scores.entrySet())
+                {
+                    double total = e.getValue();
+                    for (int t = 1; t < terms.size() && total >= 0; t++)
+                    {
+                        double s = 0;
+                        for (Map<Integer, Integer> ids : terms.get(t))
+                        {
+                            Integer w = ids.get(e.getKey());
+                            if (w != null) s += w * idf(ids);
+                        }
+                        total = s == 0 ? -1 : total + s;        // -1: this word is missing, the diary does not match
+                    }
+                    if (total >= 0) offer(best, e.getKey(), total, limit);
+                }
+            }
+            List<Diary> results = new ArrayList<>(best.size());
+            while (!best.isEmpty()) results.add(diaries.get(best.poll().id));
+            Collections.reverse(results);
+            return results;
+        }
+
+        private void score(Map<Integer, Integer> ids, Map<Integer, Double> scores)
+        {
+            double idf = idf(ids);
+            for (Map.Entry<Integer, Integer> e : ids.entrySet())
+                scores.merge(e.getKey(), e.getValue() * idf, Double::sum);
+        }
+
+        private double idf(Map<Integer, Integer> ids) { return Math.log(1 + (double) diaries.size() / ids.size()); }
+
+        private static void offer(PriorityQueue<Hit> best, int id, double score, int limit)
+        {
+            Hit hit = new Hit(id, score);
+            if (best.size() < limit) best.add(hit);
+            else if (hit.compareTo(best.peek()) > 0)
+            {
+                best.poll();
+                best.add(hit);
+            }
+        }
+
+        // the total number of postings of a searched word (all its lists)
+        private static class IndexTerms
+        {
+            static int size(List<Map<Integer, Integer>> lists)
+            {
+                int size = 0;
+                for (Map<Integer, Integer> ids : lists) size += ids.size();
+                return size;
+            }
+        }
+
+        // a matching diary and its score; equal scores are ordered by id so newer diaries come first
+        private static class Hit implements Comparable<Hit>
+        {
+            final int id;
+            final double score;
+
+            Hit(int id, double score)
+            {
+                this.id = id;
+                this.score = score;
+            }
+
+            @Override
+            public int compareTo(Hit other)
+            {
+                int c = Double.compare(score, other.score);
+                return c != 0 ? c : Integer.compare(id, other.id);
+            }
+        }
+
+        private static Map<String, Integer> weights(Diary d)
+        {
+            Map<String, Integer> weights = new HashMap<>();
+            for (String w : words(d.getName())) weights.merge(w, NAME_WEIGHT, Integer::sum);
+            for (String w : words(d.getAddress())) weights.merge(w, ADDRESS_WEIGHT, Integer::sum);
+            for (String w : words(d.getDetails())) weights.merge(w, DETAILS_WEIGHT, Integer::sum);
+            return weights;
+        }
+    }
+}
+
+// LatencyHistogram counts durations in buckets that grow with the value (4 buckets per power of two, so every bucket is
+// at most 25% wide), which is enough for p50/p99 of anything from nanoseconds to hours in 248 counters.
+// Recording is lock-free so it can be done on every query.
+class LatencyHistogram
+{
+    private static final int BUCKETS = 248;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long nanos)
+    {
+        if (nanos < 0) nanos = 0;
+        counts.incrementAndGet(bucket(nanos));
+        max.accumulate(nanos);
+    }
+
+    public long getCount()
+    {
+        long n = 0;
+        for (int i = 0; i < BUCKETS; i++) n += counts.get(i);
+        return n;
+    }
+
+    public long getMax() { return max.get(); }
+
+    // the value under which a fraction p of the durations are (the upper end of that bucket), 0 when nothing was recorded
+    public long percentile(double p)
+    {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) total += snapshot[i] = counts.get(i);
+        if (total == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(p * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += snapshot[i];
+            if (seen >= target) return Math.min(upperBound(i), getMax());
+        }
+        return getMax();
+    }
+
+    public void reset()
+    {
+        for (int i = 0; i < BUCKETS; i++) counts.set(i, 0);
+        max.reset();
+    }
+
+    private static int bucket(long v)
+    {
+        if (v < 4) return (int) v;
+        int msb = 63 - Long.numberOfLeadingZeros(v);
+        return 4 + (msb - 2) * 4 + (int) ((v >>> (msb - 2)) & 3);
+    }
+
+    private static long upperBound(int bucket)
+    {
+        if (bucket < 4) return bucket;
+        int shift = (bucket - 4) / 4;
+        long lower = (4L + (bucket - 4) % 4) << shift;
+        return lower + (1L << shift) - 1;
+    }
+}
+
+// QueryMetrics collects the timing of every DatabaseHandler call, per operation and per phase:
+//   acquire = waiting for a pooled connection, execute = inside executeQuery/executeUpdate/executeBatch,
+//   map     = everything else (preparing, binding parameters, reading the ResultSet into diaries)
+// and the time the Swing event thread (EDT) spends in callbacks or is blocked. The numbers are shown in JMX
+// (jconsole -> MBeans -> diary -> QueryMetrics) and every call is also a JDK Flight Recorder event, so a session can be
+// recorded with -XX:StartFlightRecording (the events cost almost nothing while no recording is running).
+class QueryMetrics
+{
+    // the numbers of one operation (a DatabaseHandler method, or an EDT measurement)
+    static class Operation
+    {
+        final LatencyHistogram acquire = new LatencyHistogram();
+        final LatencyHistogram execute = new LatencyHistogram();
+        final LatencyHistogram map = new LatencyHistogram();
+        final LatencyHistogram total = new LatencyHistogram();
+        final LongAdder rows = new LongAdder();
+        final LongAdder failures = new LongAdder();
+
+        void reset()
+        {
+            acquire.reset();
+            execute.reset();
+            map.reset();
+            total.reset();
+            rows.reset();
+            failures.reset();
+        }
+    }
+
+    private static final Map<String, Operation> OPERATIONS = new ConcurrentHashMap<>();
+    private static final long EDT_EVENT_NANOS = 10_000_000L;
+
+    static
+    {
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new QueryMetricsMBean(), new ObjectName("diary:type=QueryMetrics"));
+        }
+        catch (JMException | SecurityException e)
+        {
+            System.err.println("Query metrics are not available in JMX: " + e.getMessage());
+        }
+    }
+
+    // starting the timing of one database call, close() (try-with-resources) records it
+    public static QueryTimer start(String operation) { return new QueryTimer(operation, get(operation)); }
+
+    // time spent running code on the EDT (source: "callback" or "blocked"); only the long ones become JFR events
+    public static void recordEdt(String source, long nanos)
+    {
+        get("edt." + source).total.record(nanos);
+        if (nanos < EDT_EVENT_NANOS) return;
+        EdtEvent event = new EdtEvent();
+        if (event.shouldCommit())
+        {
+            event.source = source;
+            event.blocked = nanos;
+            event.commit();
+        }
+    }
+
+    static Operation get(String operation) { return OPERATIONS.computeIfAbsent(operation, k -> new Operation()); }
+
+    static Map<String, Operation> snapshot() { return new TreeMap<>(OPERATIONS); }
+
+    public static void reset()
+    {
+        for (Operation op : OPERATIONS.values()) op.reset();
+        DetailsCodec.reset();
+        JournaledStorage.resetCounters();
+    }
+
+    // a readable table of all operations (p50/p99/max in milliseconds)
+    public static String report()
+    {
+        StringBuilder sb = new StringBuilder(String.format("%-28s %8s %8s %8s %8s %8s %10s %8s%n",
+                "operation", "calls", "p50", "p99", "max", "acq.p99", "rows", "failed"));
+        for (Map.Entry<String, Operation> e : snapshot().entrySet())
+        {
+            Operation op = e.getValue();
+            sb.append(String.format(Locale.ROOT, "%-28s %8d %8.3f %8.3f %8.3f %8.3f %10d %8d%n", e.getKey(), op.total.getCount(),
+                    op.total.percentile(0.5) / 1e6, op.total.percentile(0.99) / 1e6, op.total.getMax() / 1e6,
+                    op.acquire.percentile(0.99) / 1e6, op.rows.sum(), op.failures.sum()));
+        }
+        if (DetailsCodec.getRows() > 0)
+            sb.append(String.format(Locale.ROOT, "compressed details: %d written, %d -> %d bytes (ratio %.2f)%n", DetailsCodec.getRows(),
+                    DetailsCodec.getRawBytes(), DetailsCodec.getStoredBytes(), DetailsCodec.getRatio()));
+        if (JournaledStorage.getSyncedCount() + JournaledStorage.getFailedSyncs() + JournaledStorage.getReplayedCount() > 0)
+            sb.append(String.format("diary journal: %d changes written, %d refused, %d replayed, %d failed syncs%s%n",
+                    JournaledStorage.getSyncedCount(), JournaledStorage.getRefusedCount(), JournaledStorage.getReplayedCount(),
+                    JournaledStorage.getFailedSyncs(), JournaledStorage.getLastError() == null ? "" : " (last: " + JournaledStorage.getLastError() + ")"));
+        return sb.toString();
+    }
+}
+
+// QueryTimer times one database call, see QueryMetrics. Used like:
+//   try (QueryTimer timer = QueryMetrics.start("getUserDiaries");
+//        Connection conn = timer.connect();
+//        PreparedStatement stmt = conn.prepareStatement(sql)) { ... ResultSet rs = timer.query(stmt); ... timer.rows(n); }
+class QueryTimer implements AutoCloseable
+{
+    private final QueryMetrics.Operation stats;
+    private final QueryEvent event = new QueryEvent();
+    private final long start = System.nanoTime();
+    private long acquireNanos;
+    private long executeNanos;
+    private int rows;
+    private boolean failed;
+
+    QueryTimer(String operation, QueryMetrics.Operation stats)
+    {
+        this.stats = stats;
+        event.operation = operation;
+        event.begin();
+    }
+
+    public Connection connect() throws SQLException
+    {
+        long t = System.nanoTime();
+        try { return DBConnection.getConnection(); }
+        catch (SQLException e) { failed = true; throw e; }
+        finally { acquireNanos += System.nanoTime() - t; }
+    }
+
+    // a connection of another pool (a shard's, see Shards)
+    public Connection connect(ConnectionPool pool) throws SQLException
+    {
+        long t = System.nanoTime();
+        try { return pool.getConnection(); }
+        catch (SQLException e) { failed = true; throw e; }
+        finally { acquireNanos += System.nanoTime() - t; }
+    }
+
+    public ResultSet query(PreparedStatement stmt) throws SQLException
+    {
+        long t = System.nanoTime();
+        try { return stmt.executeQuery(); }
+        catch (SQLException e) { failed = true; throw e; }
+        finally { executeNanos += System.nanoTime() - t; }
+    }
+
+    public int update(PreparedStatement stmt) throws SQLException
+    {
+        long t = System.nanoTime();
+        try
+        {
+            int count = stmt.executeUpdate();
+            rows += count;
+            return count;
+        }
+        catch (SQLException e) { failed = true; throw e; }
+        finally { executeNanos += System.nanoTime() - t; }
+    }
+
+    public int[] batch(PreparedStatement stmt) throws SQLException
+    {
+        long t = System.nanoTime();
+        try
+        {
+            int[] counts = stmt.executeBatch();
+            rows += counts.length;
+            return counts;
+        }
+        catch (SQLException e) { failed = true; throw e; }
+        finally { executeNanos += System.nanoTime() - t; }
+    }
+
+    // the number of rows read (queries count themselves as they are mapped)
+    public void rows(int count) { rows += count; }
+
+    @Override
+    public void close()
+    {
+        long totalNanos = System.nanoTime() - start;
+        long mapNanos = Math.max(0, totalNanos - acquireNanos - executeNanos);
+        stats.acquire.record(acquireNanos);
+        stats.execute.record(executeNanos);
+        stats.map.record(mapNanos);
+        stats.total.record(totalNanos);
+        stats.rows.add(rows);
+        if (failed) stats.failures.increment();
+        event.end();
+        if (event.shouldCommit())
+        {
+            event.acquire = acquireNanos;
+            event.execute = executeNanos;
+            event.map = mapNanos;
+            event.rows = rows;
+            event.failed = failed;
+            event.commit();
+        }
+    }
+}
+
+// Flight Recorder event of one DatabaseHandler call
+@Name("diary.Query")
+@Label("Diary Query")
+@Category("Diary")
+@Description("One DatabaseHandler call with the time of each phase")
+class QueryEvent extends Event
+{
+    @Label("Operation")
+    String operation;
+
+    @Label("Connection Acquire")
+    @Timespan(Timespan.NANOSECONDS)
+    long acquire;
+
+    @Label("Execute")
+    @Timespan(Timespan.NANOSECONDS)
+    long execute;
+
+    @Label("Bind and Map")
+    @Timespan(Timespan.NANOSECONDS)
+    long map;
+
+    @Label("Rows")
+    int rows;
+
+    @Label("Failed")
+    boolean failed;
+}
+
+// Flight Recorder event of time spent on the Swing event thread
+@Name("diary.Edt")
+@Label("Diary EDT Time")
+@Category("Diary")
+@Description("Time the Swing event thread spent in a callback, or was blocked (seen by MainMenuFrame)")
+class EdtEvent extends Event
+{
+    @Label("Source")
+    String source;
+
+    @Label("Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long blocked;
+}
+
+// QueryMetricsMBean shows QueryMetrics in JMX: one attribute per operation and number (e.g. "getUserDiaries.execute.p99"
+// in milliseconds, "getUserDiaries.calls"), the compression.* numbers of DetailsCodec and the operations reset() and report()
+class QueryMetricsMBean implements DynamicMBean
+{
+    private static final String[] PHASES = {"total", "acquire", "execute", "map"};
+    private static final String[] STATS = {"p50", "p99", "max"};
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException
+    {
+        switch (attribute)
+        {
+            case "compression.rows": return DetailsCodec.getRows();
+            case "compression.rawBytes": return DetailsCodec.getRawBytes();
+            case "compression.storedBytes": return DetailsCodec.getStoredBytes();
+            case "compression.ratio": return DetailsCodec.getRatio();
+        }
+        int dot = attribute.lastIndexOf('.');
+        if (dot < 0) throw new AttributeNotFoundException(attribute);
+        String name = attribute.substring(dot + 1);
+        String rest = attribute.substring(0, dot);
+        Map<String, QueryMetrics.Operation> ops = QueryMetrics.snapshot();
+        if (ops.containsKey(rest))
+        {
+            QueryMetrics.Operation op = ops.get(rest);
+            switch (name)
+            {
+                case "calls": return op.total.getCount();
+                case "rows": return op.rows.sum();
+                case "failures": return op.failures.sum();
+            }
+        }
+        int phaseDot = rest.lastIndexOf('.');
+        QueryMetrics.Operation op = phaseDot < 0 ? null : ops.get(rest.substring(0, phaseDot));
+        if (op == null) throw new AttributeNotFoundException(attribute);
+        LatencyHistogram h;
+        switch (rest.substring(phaseDot + 1))
+        {
+            case "total": h = op.total; break;
+            case "acquire": h = op.acquire; break;
+            case "execute": h = op.execute; break;
+            case "map": h = op.map; break;
+            default: throw new AttributeNotFoundException(attribute);
+        }
+        switch (name)
+        {
+            case "p50": return h.percentile(0.5) / 1e6;
+            case "p99": return h.percentile(0.99) / 1e6;
+            case "max": return h.getMax() / 1e6;
+            default: throw new AttributeNotFoundException(attribute);
+        }
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes)
+    {
+        AttributeList list = new AttributeList();
+        for (String a : attributes)
+        {
+            try { list.add(new Attribute(a, getAttribute(a))); }
+            catch (AttributeNotFoundException ignored) {}
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+    {
+        throw new AttributeNotFoundException("Query metrics are read only");
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) { return new AttributeList(); }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException
+    {
+        switch (actionName)
+        {
+            case "reset": QueryMetrics.reset(); return null;
+            case "report": return QueryMetrics.report();
+            default: throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+    }
+
+    // built again every time, operations appear when they are first used
+    @Override
+    public MBeanInfo getMBeanInfo()
+    {
+        List<MBeanAttributeInfo> attributes = new ArrayList<>();
+        attributes.add(new MBeanAttributeInfo("compression.rows", "java.lang.Long", "details written compressed", true, false, false));
+        attributes.add(new MBeanAttributeInfo("compression.rawBytes", "java.lang.Long", "their size as text (UTF-8)", true, false, false));
+        attributes.add(new MBeanAttributeInfo("compression.storedBytes", "java.lang.Long", "their size compressed", true, false, false));
+        attributes.add(new MBeanAttributeInfo("compression.ratio", "java.lang.Double", "rawBytes / storedBytes", true, false, false));
+        for (String op : QueryMetrics.snapshot().keySet())
+        {
+            for (String counter : new String[] {"calls", "rows", "failures"})
+                attributes.add(new MBeanAttributeInfo(op + "." + counter, "java.lang.Long", counter + " of " + op, true, false, false));
+            for (String phase : PHASES)
+                for (String stat : STATS)
+                    attributes.add(new MBeanAttributeInfo(op + "." + phase + "." + stat, "java.lang.Double",
+                            stat + " " + phase + " time of " + op + " (ms)", true, false, false));
+        }
+        MBeanOperationInfo[] operations = {
+                new MBeanOperationInfo("reset", "Clear all numbers", new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION),
+                new MBeanOperationInfo("report", "All operations as a table", new MBeanParameterInfo[0], "java.lang.String", MBeanOperationInfo.INFO)
+        };
+        return new MBeanInfo(getClass().getName(), "Diary query latencies", attributes.toArray(new MBeanAttributeInfo[0]),
+                null, operations, null);
+    }
+}
+
+// CacheStats holds the numbers of the diary cache at one moment
+class CacheStats
+{
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final int users;
+    private final int entries;
+    private final long bytes;
+
+    public CacheStats(long hits, long misses, long evictions, int users, int entries, long bytes)
+    {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.users = users;
+        this.entries = entries;
+        this.bytes = bytes;
+    }
+
+    // getters for class attributes
+    public long getHits() { return hits; }
+    public long getMisses() { return misses; }
+    public long getEvictions() { return evictions; }
+    public int getUsers() { return users; }
+    public int getEntries() { return entries; }
+    public long getBytes() { return bytes; }
+
+    @Override
+    public String toString()
+    {
+        return String.format("cache hits=%d misses=%d evictions=%d | users=%d diaries=%d ~%dKB",
+                hits, misses, evictions, users, entries, bytes / 1024);
+    }
+}
+
+// BackgroundExecutor runs database work on a small bounded pool of worker threads so that the Swing event thread (EDT)
+// never waits for MySQL. It remembers the tasks that are still running so they can all be cancelled at logout.
+class BackgroundExecutor
+{
+    private final ExecutorService executor;
+    private final Set<CompletableFuture<?>> inFlight = ConcurrentHashMap.newKeySet();
+
+    public BackgroundExecutor(int threads)
+    {
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "diary-db-worker-" + counter.incrementAndGet());
+            t.setDaemon(true);          // worker threads must not keep the program alive after the window is closed
+            return t;
+        });
+    }
+
+    // running the task on a worker thread, the returned future completes with its result or its exception
+    public <T> CompletableFuture<T> submit(Callable<T> task)
+    {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        inFlight.add(future);
+        Future<?> running = executor.submit(() -> {
+            if (future.isDone()) return;        // cancelled while it was still queued
+            try { future.complete(task.call()); }
+            catch (Throwable t) { future.completeExceptionally(t); }
+        });
+        future.whenComplete((r, e) -> {
+            inFlight.remove(future);
+            if (future.isCancelled()) running.cancel(true);     // interrupting the worker if it is still busy
+        });
+        return future;
+    }
+
+    // cancelling every task that has not finished yet, their callbacks on the EDT will not run
+    public void cancelAll()
+    {
+        for (CompletableFuture<?> f : inFlight) f.cancel(true);
+    }
+
+    public void shutdown()
+    {
+        cancelAll();
+        executor.shutdownNow();
+    }
+
+    // delivering the result of a background task back to the EDT: onSuccess gets the result, onError gets the cause
+    // of the failure; nothing is called if the task was cancelled
+    public static <T> void onEdt(CompletableFuture<T> future, Consumer<T> onSuccess, Consumer<Throwable> onError)
+    {
+        future.whenComplete((result, error) -> {
+            if (future.isCancelled()) return;
+            SwingUtilities.invokeLater(() -> {
+                if (future.isCancelled()) return;
+                long start = System.nanoTime();
+                if (error == null) onSuccess.accept(result);
+                else onError.accept(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+                QueryMetrics.recordEdt("callback", System.nanoTime() - start);
+            });
+        });
+    }
+}
+
+// AsyncLoginManager does the same operations as LoginManager but on the background executor, each call returns at once
+class AsyncLoginManager {
+    private final LoginManager loginManager;
+    private final BackgroundExecutor executor;
+
+    public AsyncLoginManager(LoginManager loginManager, BackgroundExecutor executor) {
+        this.loginManager = loginManager;
+        this.executor = executor;
+    }
+
+    public CompletableFuture<User> login(String username, String password) {
+        return executor.submit(() -> loginManager.login(username, password));
+    }
+
+    public CompletableFuture<Boolean> register(String username, String password) {
+        return executor.submit(() -> loginManager.register(username, password));
+    }
+
+    public CompletableFuture<Void> changePassword(String username, String newPassword) {
+        return executor.submit(() -> { loginManager.changePassword(username, newPassword); return null; });
+    }
+}
+
+// AsyncRecordManager does the same operations as RecordManager but on the background executor, each call returns at once
+class AsyncRecordManager {
+    private final RecordManager recordManager;
+    private final BackgroundExecutor executor;
+
+    public AsyncRecordManager(RecordManager recordManager, BackgroundExecutor executor) {
+        this.recordManager = recordManager;
+        this.executor = executor;
+    }
+
+    public CompletableFuture<List<Diary>> viewRecord(int userId) {
+        return executor.submit(() -> recordManager.viewRecord(userId));
+    }
+
+    public CompletableFuture<Integer> countRecords(int userId) {
+        return executor.submit(() -> recordManager.countRecords(userId));
+    }
+
+    // reading the row count and the first page of a user (by username) at the same time, on two worker threads;
+    // used at login before it is known whether the password is right
+    public CompletableFuture<DiaryPage> prefetchFirstPage(String username, int pageSize) {
+        CompletableFuture<Integer> count = executor.submit(() -> recordManager.countRecordsByUsername(username));
+        CompletableFuture<List<Diary>> rows = executor.submit(() -> recordManager.viewFirstPageByUsername(username, pageSize));
+        CompletableFuture<DiaryPage> page = count.thenCombine(rows, DiaryPage::new);
+        page.whenComplete((r, e) -> {           // cancelling the prefetch (failed login) cancels both queries
+            if (page.isCancelled()) {
+                count.cancel(true);
+                rows.cancel(true);
+            }
+        });
+        return page;
+    }
+
+    public CompletableFuture<List<Diary>> viewRecordPage(int userId, Diary after, int pageSize) {
+        return executor.submit(() -> recordManager.viewRecordPage(userId, after, pageSize));
+    }
+
+    public CompletableFuture<List<Diary>> viewRecordPageBefore(int userId, Diary before, int pageSize) {
+        return executor.submit(() -> recordManager.viewRecordPageBefore(userId, before, pageSize));
+    }
+
+    public CompletableFuture<List<Diary>> viewRecordPageAt(int userId, int offset, int pageSize) {
+        return executor.submit(() -> recordManager.viewRecordPageAt(userId, offset, pageSize));
+    }
+
+    public CompletableFuture<List<Diary>> viewRecordPage(int userId, DiaryQuery query, Diary after, int pageSize) {
+        return executor.submit(() -> recordManager.viewRecordPage(userId, query, after, pageSize));
+    }
+
+    public CompletableFuture<List<Diary>> viewRecordPageBefore(int userId, DiaryQuery query, Diary before, int pageSize) {
+        return executor.submit(() -> recordManager.viewRecordPageBefore(userId, query, before, pageSize));
+    }
+
+    public CompletableFuture<List<Diary>> viewRecordPageAt(int userId, DiaryQuery query, int offset, int pageSize) {
+        return executor.submit(() -> recordManager.viewRecordPageAt(userId, query, offset, pageSize));
+    }
+
+    public CompletableFuture<Integer> countRecords(int userId, DiaryQuery query) {
+        return executor.submit(() -> recordManager.countRecords(userId, query));
+    }
+
+    public CompletableFuture<List<Diary>> viewRecordsBetween(int userId, LocalDate from, LocalDate to) {
+        return executor.submit(() -> recordManager.viewRecordsBetween(userId, from, to));
+    }
+
+    public CompletableFuture<List<Diary>> viewUpcomingRecords(int userId, int limit) {
+        return executor.submit(() -> recordManager.viewUpcomingRecords(userId, limit));
+    }
+
+    public CompletableFuture<List<Diary>> searchRecords(int userId, String query, int limit) {
+        return executor.submit(() -> recordManager.searchRecords(userId, query, limit));
+    }
+
+    public CompletableFuture<String> viewDetails(Diary d) {
+        return executor.submit(() -> recordManager.viewDetails(d));
+    }
+
+    public CompletableFuture<List<Diary>> findOverlaps(Diary d) {
+        return executor.submit(() -> recordManager.findOverlaps(d));
+    }
+
+    public CompletableFuture<List<TimeSlot>> findFreeSlots(int userId, LocalDateTime from, LocalDateTime to, Duration minLength) {
+        return executor.submit(() -> recordManager.findFreeSlots(userId, from, to, minLength));
+    }
+
+    // adding the diary and finding the row where it now appears, in the same background task
+    public CompletableFuture<DiaryRow> addRecord(Diary d) {
+        return executor.submit(() -> {
+            Diary saved = recordManager.addRecord(d);
+            return new DiaryRow(saved, rowOf(saved));
+        });
+    }
+
+    // saving the changes and finding the (maybe new) row of the diary, in the same background task
+    public CompletableFuture<DiaryRow> updateRecord(Diary d) {
+        return executor.submit(() -> {
+            recordManager.updateRecord(d);
+            return new DiaryRow(d, rowOf(d));
+        });
+    }
+
+    // the row of a saved diary, -1 when it cannot be found now: the diary is saved all the same (with -Ddiary.journal
+    // it may be waiting for the database), failing here would make the caller save it a second time
+    private int rowOf(Diary d) {
+        try {
+            return recordManager.positionOf(d);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    public CompletableFuture<Diary> reapplyRefused(RefusedChange r) {
+        return executor.submit(() -> recordManager.reapplyRefused(r));
+    }
+
+    public CompletableFuture<Void> deleteRecord(Diary d) {
+        return executor.submit(() -> { recordManager.deleteRecord(d); return null; });
+    }
+}
+
+// DiaryFormats knows how diaries look in files: CSV (a header line then one diary per line) and JSON (one object per diary,
+// either one object per line or all of them inside a [ ... ] array)
+class DiaryFormats
+{
+    // the field names used as CSV header and as JSON keys, in the default CSV column order
+    public static final String[] FIELDS = {"name", "duration", "address", "date", "time", "details"};
+
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("HH:mm:ss");
+
+    // throws DateTimeParseException when the date or time is not valid
+    public static Diary toDiary(Map<String, String> values, int userId)
+    {
+        return new Diary(0, values.get("name"), values.get("duration"), values.get("address"),
+                parseDate(values.get("date")), parseTime(values.get("time")), values.get("details"), userId);
+    }
+
+    // YYYY-MM-DD, null for an empty value
+    public static LocalDate parseDate(String value)
+    {
+        return value == null || value.trim().isEmpty() ? null : LocalDate.parse(value.trim());
+    }
+
+    // HH:MM or HH:MM:SS, null for an empty value
+    public static LocalTime parseTime(String value)
+    {
+        return value == null || value.trim().isEmpty() ? null : LocalTime.parse(value.trim());
+    }
+
+    public static String formatDate(LocalDate date) { return date == null ? "" : date.toString(); }
+
+    // a duration the way people write it: "90" (minutes), "1:30" or "1:30:00", "1h30", "1.5 h", "45 min", "2 hours 15 minutes",
+    // "1d", or ISO-8601 "PT1H30M"; null when empty or not understood (the duration is free text in the database)
+    public static Duration parseDuration(String value)
+    {
+        if (value == null) return null;
+        String s = value.trim().toLowerCase(Locale.ROOT);
+        if (s.isEmpty()) return null;
+        if (s.startsWith("p"))
+        {
+            try
+            {
+                Duration d = Duration.parse(s.toUpperCase(Locale.ROOT));
+                return d.isNegative() ? null : d;
+            }
+            catch (DateTimeParseException e) { return null; }
+        }
+        if (s.indexOf(':') >= 0)           // h:mm or h:mm:ss
+        {
+            String[] parts = s.split(":", -1);
+            if (parts.length > 3) return null;
+            long seconds = 0;
+            for (int i = 0; i < parts.length; i++)
+            {
+                String p = parts[i].trim();
+                if (p.isEmpty() || p.length() > 9 || !p.chars().allMatch(Character::isDigit)) return null;
+                long v = Long.parseLong(p);
+                if (i > 0 && v >= 60) return null;
+                seconds = seconds * 60 + v;
+            }
+            return Duration.ofSeconds(parts.length == 2 ? seconds * 60 : seconds);
+        }
+        double seconds = 0;
+        long lastUnit = 0;
+        int i = 0, numbers = 0;
+        while (i < s.length())
+        {
+            while (i < s.length() && (s.charAt(i) == ' ' || s.charAt(i) == ',')) i++;
+            if (i == s.length()) break;
+            int start = i;
+            while (i < s.length() && (Character.isDigit(s.charAt(i)) || s.charAt(i) == '.')) i++;
+            if (start == i || i - start > 12) return null;
+            double number;
+            try { number = Double.parseDouble(s.substring(start, i)); }
+            catch (NumberFormatException e) { return null; }
+            while (i < s.length() && s.charAt(i) == ' ') i++;
+            start = i;
+            while (i < s.length() && Character.isLetter(s.charAt(i))) i++;
+            long unit = durationUnit(s.substring(start, i));
+            if (unit < 0) return null;
+            if (unit == 0)              // a bare number: minutes, or the next smaller unit after "1h30" / "5m30"
+                unit = lastUnit == 0 ? 60 : lastUnit == 86400 ? 3600 : lastUnit == 3600 ? 60 : lastUnit == 60 ? 1 : -1;
+            if (unit < 0) return null;
+            seconds += number * unit;
+            lastUnit = unit;
+            numbers++;
+        }
+        return numbers == 0 ? null : Duration.ofSeconds(Math.round(seconds));
+    }
+
+    // seconds in a unit of parseDuration, 0 for no unit, -1 for an unknown one
+    private static long durationUnit(String unit)
+    {
+        switch (unit)
+        {
+            case "": return 0;
+            case "d": case "day": case "days": return 86400;
+            case "h": case "hr": case "hrs": case "hour": case "hours": return 3600;
+            case "m": case "min": case "mins": case "minute": case "minutes": return 60;
+            case "s": case "sec": case "secs": case "second": case "seconds": return 1;
+            default: return -1;
+        }
+    }
+
+    // 1d 2h 30m, the form parseDuration reads back
+    public static String formatDuration(Duration d)
+    {
+        long s = d.getSeconds();
+        StringBuilder sb = new StringBuilder();
+        if (s >= 86400) sb.append(s / 86400).append("d ");
+        if (s % 86400 >= 3600) sb.append(s % 86400 / 3600).append("h ");
+        if (s % 3600 >= 60 || s == 0) sb.append(s % 3600 / 60).append("m ");
+        if (s % 60 != 0) sb.append(s % 60).append("s ");
+        return sb.toString().trim();
+    }
+
+    public static String formatTime(LocalTime time) { return time == null ? "" : time.format(TIME_FORMAT); }
+
+    // quoting a CSV value only when it has to be quoted
+    public static String csvField(String value)
+    {
+        if (value == null) return "";
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0)
+            return value;
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    public static void writeCsvHeader(Writer out) throws IOException
+    {
+        out.write(String.join(",", FIELDS));
+        out.write('\n');
+    }
+
+    public static void writeCsv(Diary d, Writer out) throws IOException
+    {
+        out.write(csvField(d.getName()));
+        out.write(',');
+        out.write(csvField(d.getDuration()));
+        out.write(',');
+        out.write(csvField(d.getAddress()));
+        out.write(',');
+        out.write(formatDate(d.getDate()));
+        out.write(',');
+        out.write(formatTime(d.getTime()));
+        out.write(',');
+        out.write(csvField(d.getDetails()));
+        out.write('\n');
+    }
+
+    // one JSON object per line ("JSON lines"), the same keys the importer reads
+    public static void writeJson(Diary d, Writer out) throws IOException
+    {
+        out.write("{\"name\":");
+        out.write(jsonString(d.getName()));
+        out.write(",\"duration\":");
+        out.write(jsonString(d.getDuration()));
+        out.write(",\"address\":");
+        out.write(jsonString(d.getAddress()));
+        out.write(",\"date\":");
+        out.write(jsonString(formatDate(d.getDate())));
+        out.write(",\"time\":");
+        out.write(jsonString(formatTime(d.getTime())));
+        out.write(",\"details\":");
+        out.write(jsonString(d.getDetails()));
+        out.write("}\n");
+    }
+
+    // the diary as sent by the HTTP API: like writeJson but with the id and owner
+    public static String toApiJson(Diary d)
+    {
+        return toApiJson(d, Diary.ALL_FIELDS);
+    }
+
+    // only some of the fields (the changed ones, for an update), always with the id, owner and version
+    public static String toApiJson(Diary d, int fields)
+    {
+        StringBuilder sb = new StringBuilder("{\"id\":").append(d.getId()).append(",\"userId\":").append(d.getUserId())
+                .append(",\"version\":").append(d.getVersion());
+        if ((fields & Diary.NAME) != 0) sb.append(",\"name\":").append(jsonString(d.getName()));
+        if ((fields & Diary.DURATION) != 0) sb.append(",\"duration\":").append(jsonString(d.getDuration()));
+        if ((fields & Diary.ADDRESS) != 0) sb.append(",\"address\":").append(jsonString(d.getAddress()));
+        if ((fields & Diary.DATE) != 0) sb.append(",\"date\":").append(jsonString(formatDate(d.getDate())));
+        if ((fields & Diary.TIME) != 0) sb.append(",\"time\":").append(jsonString(formatTime(d.getTime())));
+        if ((fields & Diary.DETAILS) != 0) sb.append(",\"details\":").append(jsonString(d.getDetails()));
+        if ((fields & Diary.DETAILS) != 0 && d.isSummary()) sb.append(",\"summary\":true");     // details is only a preview
+        return sb.append('}').toString();
+    }
+
+    public static String toApiJson(List<Diary> diaries)
+    {
+        StringBuilder sb = new StringBuilder("[");
+        for (Diary d : diaries)
+        {
+            if (sb.length() > 1) sb.append(',');
+            sb.append(toApiJson(d));
+        }
+        return sb.append(']').toString();
+    }
+
+    // a diary read from the HTTP API, with the id and owner it says
+    public static Diary fromApiJson(Map<String, String> values)
+    {
+        return fromApiJson(values, Integer.parseInt(values.getOrDefault("id", "0")), Integer.parseInt(values.getOrDefault("userId", "0")));
+    }
+
+    // a diary read from the HTTP API, the id and owner are decided by the caller (the server never trusts the client's)
+    public static Diary fromApiJson(Map<String, String> values, int id, int userId)
+    {
+        Diary d = toDiary(values, userId);
+        d = new Diary(id, d.getName(), d.getDuration(), d.getAddress(), d.getDate(), d.getTime(), d.getDetails(), userId,
+                Integer.parseInt(values.getOrDefault("version", "0")));
+        return "true".equals(values.get("summary")) ? d.withPreview(d.getDetails()) : d;
+    }
+
+    // the changes of an update sent to the HTTP API: the fields present in the JSON are the dirty ones
+    public static Diary changesFromApiJson(Map<String, String> values, int id, int userId)
+    {
+        Diary d = fromApiJson(values, id, userId);
+        String[] names = {"name", "duration", "address", "date", "time", "details"};
+        for (int i = 0; i < names.length; i++)
+            if (values.containsKey(names[i])) d.markDirty(1 << i);
+        return d;
+    }
+
+    public static String jsonString(String value)
+    {
+        if (value == null) return "null";
+        StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            switch (c)
+            {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                    else sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
+
+// CsvReader reads CSV records one at a time from a Reader, so a file of any size is never fully in memory
+class CsvReader
+{
+    private final Reader in;
+    private int peeked = -2;        // -2 = nothing peeked
+    private long line = 1;
+
+    public CsvReader(Reader in) { this.in = in; }
+
+    // line number where the next record starts
+    public long getLine() { return line; }
+
+    // returning the values of the next record, or null at the end of the input
+    public List<String> readRecord() throws IOException
+    {
+        int c = read();
+        if (c == -1) return null;
+        List<String> values = new ArrayList<>();
+        StringBuilder sb = new StringBuilder();
+        boolean quoted = false;
+        boolean wasQuoted = false;
+        while (true)
+        {
+            if (quoted)
+            {
+                if (c == -1) throw new IOException("Unterminated quoted value before line " + line);
+                if (c == '"')
+                {
+                    if (peek() == '"') { read(); sb.append('"'); }
+                    else quoted = false;
+                }
+                else sb.append((char) c);
+            }
+            else if (c == '"' && sb.length() == 0 && !wasQuoted) { quoted = true; wasQuoted = true; }
+            else if (c == ',') { values.add(sb.toString()); sb.setLength(0); wasQuoted = false; }
+            else if (c == '\n' || c == -1) break;
+            else if (c == '\r') { if (peek() == '\n') read(); break; }
+            else sb.append((char) c);
+            c = read();
+        }
+        values.add(sb.toString());
+        return values;
+    }
+
+    private int read() throws IOException
+    {
+        int c = peeked != -2 ? peeked : in.read();
+        peeked = -2;
+        if (c == '\n') line++;
+        return c;
+    }
+
+    private int peek() throws IOException
+    {
+        if (peeked == -2) peeked = in.read();
+        return peeked;
+    }
+}
+
+// JsonObjectReader reads flat JSON objects ({"key": "value", ...}) one at a time from a Reader. Objects can be one per line
+// or inside a top-level array, the brackets and commas between objects are skipped.
+class JsonObjectReader
+{
+    private final Reader in;
+    private int peeked = -2;
+    private long line = 1;
+    private long objectLine;            // the line the last object started on
+
+    public JsonObjectReader(Reader in) { this.in = in; }
+
+    public long getLine() { return line; }
+
+    // the line of the '{' of the object readObject() returned last
+    public long getObjectLine() { return objectLine; }
+
+    // returning the next object (values as strings, JSON null as null), or null at the end of the input
+    public Map<String, String> readObject() throws IOException
+    {
+        int c;
+        do { c = read(); } while (c == '[' || c == ']' || c == ',' || Character.isWhitespace(c));
+        if (c == -1) return null;
+        if (c != '{') throw error("expected '{'");
+        objectLine = line;
+        Map<String, String> values = new LinkedHashMap<>();
+        c = skipSpaces();
+        if (c == '}') return values;
+        while (true)
+        {
+            if (c != '"') throw error("expected a key");
+            String key = readString();
+            if (skipSpaces() != ':') throw error("expected ':'");
+            values.put(key, readValue(skipSpaces()));
+            c = skipSpaces();
+            if (c == '}') return values;
+            if (c != ',') throw error("expected ',' or '}'");
+            c = skipSpaces();
+        }
+    }
+
+    private String readValue(int c) throws IOException
+    {
+        if (c == '"') return readString();
+        if (c == '{' || c == '[') throw error("nested values are not supported");
+        StringBuilder sb = new StringBuilder();
+        while (c != -1 && c != ',' && c != '}' && !Character.isWhitespace(c))
+        {
+            sb.append((char) c);
+            c = read();
+        }
+        peeked = c;
+        String literal = sb.toString();
+        if (literal.isEmpty()) throw error("expected a value");
+        return literal.equals("null") ? null : literal;
+    }
+
+    private String readString() throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        while (true)
+        {
+            int c = read();
+            if (c == -1) throw error("unterminated string");
+            if (c == '"') return sb.toString();
+            if (c != '\\') { sb.append((char) c); continue; }
+            c = read();
+            switch (c)
+            {
+                case 'n': sb.append('\n'); break;
+                case 'r': sb.append('\r'); break;
+                case 't': sb.append('\t'); break;
+                case 'b': sb.append('\b'); break;
+                case 'f': sb.append('\f'); break;
+                case 'u':
+                    char[] hex = new char[4];
+                    for (int i = 0; i < 4; i++) hex[i] = (char) read();
+                    try { sb.append((char) Integer.parseInt(new String(hex), 16)); }
+                    catch (NumberFormatException e) { throw error("bad \\u escape"); }
+                    break;
+                default: sb.append((char) c);       // \" \\ \/
+            }
+        }
+    }
+
+    private int skipSpaces() throws IOException
+    {
+        int c;
+        do { c = read(); } while (c != -1 && Character.isWhitespace(c));
+        return c;
+    }
+
+    private int read() throws IOException
+    {
+        if (peeked != -2)           // put back by readValue(), its line was already counted
+        {
+            int c = peeked;
+            peeked = -2;
+            return c;
+        }
+        int c = in.read();
+        if (c == '\n') line++;
+        return c;
+    }
+
+    private IOException error(String message) { return new IOException("Invalid JSON at line " + line + ": " + message); }
+}
+
+// ImportReport holds the result of one bulk import
+class ImportReport
+{
+    private static final int MAX_MESSAGES = 100;        // all failures are counted, but only the first ones are kept as text
+
+    private long rowsRead;
+    private long rowsImported;
+    private long rowsFailed;
+    private long elapsedNanos;
+    private final List<String> failures = new ArrayList<>();
+
+    void rowRead() { rowsRead++; }
+    void rowsImported(int n) { rowsImported += n; }
+    void rowFailed(long line, String reason)
+    {
+        rowsFailed++;
+        if (failures.size() < MAX_MESSAGES) failures.add("line " + line + ": " + reason);
+    }
+    void finished(long elapsedNanos) { this.elapsedNanos = elapsedNanos; }
+
+    // getters for class attributes
+    public long getRowsRead() { return rowsRead; }
+    public long getRowsImported() { return rowsImported; }
+    public long getRowsFailed() { return rowsFailed; }
+    public List<String> getFailures() { return failures; }
+    public double getElapsedSeconds() { return elapsedNanos / 1e9; }
+    public double getRowsPerSecond() { return elapsedNanos == 0 ? 0 : rowsImported / getElapsedSeconds(); }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder(String.format("Read %d rows, imported %d, failed %d in %.1fs (%.0f rows/sec)",
+                rowsRead, rowsImported, rowsFailed, getElapsedSeconds(), getRowsPerSecond()));
+        for (String f : failures) sb.append('\n').append(f);
+        if (rowsFailed > failures.size()) sb.append("\n... and ").append(rowsFailed - failures.size()).append(" more");
+        return sb.toString();
+    }
+}
+
+// BulkImporter is responsible for importing a CSV or JSON file of diaries for one user: rows are read one by one from the
+// file and inserted in batches of batchSize rows per transaction; bad rows are reported and skipped
+class BulkImporter
+{
+    // called after every batch so the GUI can show how far the import is
+    interface ProgressListener { void progress(long rowsRead, long rowsImported, long rowsFailed); }
+
+    private final RecordManager records;
+    private final int batchSize;
+
+    public BulkImporter(RecordManager records, int batchSize)
+    {
+        if (batchSize < 1) throw new IllegalArgumentException("batch size must be at least 1");
+        this.records = records;
+        this.batchSize = batchSize;
+    }
+
+    // the format is chosen by the file extension: .csv is CSV, anything else is read as JSON
+    public ImportReport importFile(Path file, int userId, ProgressListener listener) throws Exception
+    {
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+        {
+            boolean csv = file.getFileName().toString().toLowerCase().endsWith(".csv");
+            return csv ? importCsv(in, userId, listener) : importJson(in, userId, listener);
+        }
+    }
+
+    public ImportReport importCsv(Reader in, int userId, ProgressListener listener) throws Exception
+    {
+        CsvReader csv = new CsvReader(in);
+        List<String> columns = Arrays.asList(DiaryFormats.FIELDS);
+        Batch batch = new Batch(userId, listener);
+        long line = csv.getLine();
+        List<String> record = csv.readRecord();
+        if (record != null && record.contains("name"))
+        {
+            columns = record;           // the first line is a header, it says in which order the columns are
+            line = csv.getLine();
+            record = csv.readRecord();
+        }
+        while (record != null)
+        {
+            if (!(record.size() == 1 && record.get(0).trim().isEmpty()))          // skipping empty lines
+            {
+                Map<String, String> values = new HashMap<>();
+                for (int i = 0; i < columns.size() && i < record.size(); i++)
+                    values.put(columns.get(i).trim(), record.get(i));
+                batch.add(line, values);
+            }
+            line = csv.getLine();
+            record = csv.readRecord();
+        }
+        return batch.finish();
+    }
+
+    public ImportReport importJson(Reader in, int userId, ProgressListener listener) throws Exception
+    {
+        JsonObjectReader json = new JsonObjectReader(in);
+        Batch batch = new Batch(userId, listener);
+        Map<String, String> values;
+        while ((values = json.readObject()) != null)
+            batch.add(json.getObjectLine(), values);
+        return batch.finish();
+    }
+
+    // Batch collects the rows until batchSize of them are ready and then sends them to the database together
+    private class Batch
+    {
+        private final int userId;
+        private final ProgressListener listener;
+        private final ImportReport report = new ImportReport();
+        private final List<Diary> diaries = new ArrayList<>();
+        private final List<Long> lines = new ArrayList<>();
+        private final long start = System.nanoTime();
+
+        Batch(int userId, ProgressListener listener)
+        {
+            this.userId = userId;
+            this.listener = listener;
+        }
+
+        void add(long line, Map<String, String> values) throws Exception
+        {
+            report.rowRead();
+            Diary d;
+            try { d = DiaryFormats.toDiary(values, userId); }
+            catch (DateTimeParseException e)
+            {
+                report.rowFailed(line, "Invalid date or time: " + e.getParsedString());
+                return;
+            }
+            String problem = validate(d);
+            if (problem != null)
+            {
+                report.rowFailed(line, problem);
+                return;
+            }
+            diaries.add(d);
+            lines.add(line);
+            if (diaries.size() >= batchSize) flush();
+        }
+
+        ImportReport finish() throws Exception
+        {
+            flush();
+            report.finished(System.nanoTime() - start);
+            return report;
+        }
+
+        private void flush() throws Exception
+        {
+            if (!diaries.isEmpty())
+            {
+                Map<Integer, SQLException> failed = records.importRecords(diaries);
+                for (Map.Entry<Integer, SQLException> f : failed.entrySet())
+                    report.rowFailed(lines.get(f.getKey()), f.getValue().getMessage());
+                report.rowsImported(diaries.size() - failed.size());
+                diaries.clear();
+                lines.clear();
+            }
+            if (listener != null) listener.progress(report.getRowsRead(), report.getRowsImported(), report.getRowsFailed());
+        }
+    }
+
+    // the same required fields as the Add button in the main window
+    private static String validate(Diary d)
+    {
+        if (isBlank(d.getName()) || d.getDate() == null || d.getTime() == null)
+            return "Task Name, Date, and Time are required.";
+        return null;
+    }
+
+    private static boolean isBlank(String s) { return s == null || s.trim().isEmpty(); }
+}
+
+// DiaryExporter is responsible for writing all diaries of a user into a CSV or JSON-lines file (optionally gzip
+// compressed). Rows go straight from the database result to a buffered file writer, so memory use stays the same
+// no matter how many diaries are exported.
+class DiaryExporter
+{
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final RecordManager records;
+
+    public DiaryExporter(RecordManager records) { this.records = records; }
+
+    // the format is chosen by the file name: *.csv / *.csv.gz is CSV, anything else JSON lines; a .gz ending means gzip
+    public ExportReport exportFile(Path file, int userId) throws Exception
+    {
+        String name = file.getFileName().toString().toLowerCase();
+        boolean gzip = name.endsWith(".gz");
+        if (gzip) name = name.substring(0, name.length() - 3);
+        return export(file, userId, name.endsWith(".csv"), gzip);
+    }
+
+    public ExportReport export(Path file, int userId, boolean csv, boolean gzip) throws Exception
+    {
+        long start = System.nanoTime();
+        long[] rows = {0};
+        try (OutputStream fileOut = Files.newOutputStream(file);
+             OutputStream out = gzip ? new GZIPOutputStream(fileOut, BUFFER_SIZE) : fileOut;
+             Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), BUFFER_SIZE))
+        {
+            if (csv) DiaryFormats.writeCsvHeader(writer);
+            records.exportRecords(userId, d -> {
+                if (csv) DiaryFormats.writeCsv(d, writer);
+                else DiaryFormats.writeJson(d, writer);
+                rows[0]++;
+            });
+        }
+        return new ExportReport(rows[0], Files.size(file), System.nanoTime() - start);
+    }
+}
+
+// ExportReport holds the result of one export
+class ExportReport
+{
+    private final long rows;
+    private final long bytes;
+    private final long elapsedNanos;
+
+    public ExportReport(long rows, long bytes, long elapsedNanos)
+    {
+        this.rows = rows;
+        this.bytes = bytes;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    // getters for class attributes
+    public long getRows() { return rows; }
+    public long getBytes() { return bytes; }
+    public double getElapsedSeconds() { return elapsedNanos / 1e9; }
+    public double getRowsPerSecond() { return elapsedNanos == 0 ? 0 : rows / getElapsedSeconds(); }
+
+    @Override
+    public String toString()
+    {
+        return String.format("Exported %d entries (%d KB) in %.1fs (%.0f rows/sec)",
+                rows, bytes / 1024, getElapsedSeconds(), getRowsPerSecond());
+    }
+}
+
+// DiaryQuery is how the diary table is sorted and filtered. DatabaseHandler turns it into ORDER BY and WHERE using only
+// the columns named here (values are always parameters), so sorting or filtering a huge list is one indexed query
+// (schema.sql has an index for every sort column) and the table still reads it page by page.
+class DiaryQuery
+{
+    // the orders the table offers: the sort columns, then id so the order is total and pages can continue after a row
+    enum Sort
+    {
+        DATE(false, "date", "time"),
+        NAME(false, "name"),
+        ADDRESS(true, "address"),
+        DURATION(true, "duration");
+
+        final boolean nullable;
+        final String[] columns;
+
+        Sort(boolean nullable, String... columns)
+        {
+            this.nullable = nullable;
+            this.columns = columns;
+        }
+
+        // the values of the sort columns of a diary, in the order of `columns`
+        Object[] values(Diary d)
+        {
+            switch (this)
+            {
+                case NAME: return new Object[] {d.getName()};
+                case ADDRESS: return new Object[] {d.getAddress()};
+                case DURATION: return new Object[] {d.getDuration()};
+                default: return new Object[] {d.getDate(), d.getTime()};
+            }
+        }
+    }
+
+    // the normal order of the table: by date and time, nothing filtered
+    static final DiaryQuery DEFAULT = new DiaryQuery(Sort.DATE, false, null, null, null, null);
+
+    private final Sort sort;
+    private final boolean descending;
+    private final String nameContains;
+    private final String addressContains;
+    private final LocalDate from;
+    private final LocalDate to;
+
+    public DiaryQuery(Sort sort, boolean descending, String nameContains, String addressContains, LocalDate from, LocalDate to)
+    {
+        this.sort = sort;
+        this.descending = descending;
+        this.nameContains = nameContains == null || nameContains.isEmpty() ? null : nameContains;
+        this.addressContains = addressContains == null || addressContains.isEmpty() ? null : addressContains;
+        this.from = from;
+        this.to = to;
+    }
+
+    // getters for class attributes
+    public Sort getSort() { return sort; }
+    public boolean isDescending() { return descending; }
+    public String getNameContains() { return nameContains; }
+    public String getAddressContains() { return addressContains; }
+    public LocalDate getFrom() { return from; }
+    public LocalDate getTo() { return to; }
+
+    public DiaryQuery withSort(Sort sort, boolean descending) { return new DiaryQuery(sort, descending, nameContains, addressContains, from, to); }
+
+    public DiaryQuery withFilters(String nameContains, String addressContains, LocalDate from, LocalDate to)
+    {
+        return new DiaryQuery(sort, descending, nameContains, addressContains, from, to);
+    }
+
+    public boolean isDefault() { return equals(DEFAULT); }
+
+    public boolean isFiltered() { return nameContains != null || addressContains != null || from != null || to != null; }
+
+    // the same test as the WHERE clause ("contains" ignores case like MySQL's default collation)
+    public boolean matches(Diary d)
+    {
+        return contains(d.getName(), nameContains) && contains(d.getAddress(), addressContains)
+                && (from == null || (d.getDate() != null && !d.getDate().isBefore(from)))
+                && (to == null || (d.getDate() != null && !d.getDate().isAfter(to)));
+    }
+
+    // the same order as the ORDER BY (NULL first when ascending, text ignoring case)
+    public Comparator<Diary> comparator()
+    {
+        Comparator<String> text = Comparator.nullsFirst(String.CASE_INSENSITIVE_ORDER);
+        Comparator<Diary> order;
+        switch (sort)
+        {
+            case NAME: order = Comparator.comparing(Diary::getName, text).thenComparingInt(Diary::getId); break;
+            case ADDRESS: order = Comparator.comparing(Diary::getAddress, text).thenComparingInt(Diary::getId); break;
+            case DURATION: order = Comparator.comparing(Diary::getDuration, text).thenComparingInt(Diary::getId); break;
+            default: order = DiaryCache.ORDER;
+        }
+        return descending ? order.reversed() : order;
+    }
+
+    private static boolean contains(String value, String part)
+    {
+        return part == null || (value != null && value.toLowerCase(Locale.ROOT).contains(part.toLowerCase(Locale.ROOT)));
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (!(o instanceof DiaryQuery)) return false;
+        DiaryQuery q = (DiaryQuery) o;
+        return sort == q.sort && descending == q.descending && Objects.equals(nameContains, q.nameContains)
+                && Objects.equals(addressContains, q.addressContains) && Objects.equals(from, q.from) && Objects.equals(to, q.to);
+    }
+
+    @Override
+    public int hashCode() { return Objects.hash(sort, descending, nameContains, addressContains, from, to); }
+}
+
+// DiaryPage is the first page of a user's diaries together with how many diaries the user has in total
+class DiaryPage
+{
+    private final int total;
+    private final List<Diary> rows;
+
+    public DiaryPage(int total, List<Diary> rows)
+    {
+        this.total = total;
+        this.rows = rows;
+    }
+
+    public int getTotal() { return total; }
+    public List<Diary> getRows() { return rows; }
+
+    // whether every row belongs to this user (the page was read by username, before the login check finished)
+    public boolean belongsTo(int userId)
+    {
+        for (Diary d : rows)
+            if (d.getUserId() != userId) return false;
+        return true;
+    }
+}
+
+// DiaryRow is a diary together with its row number in the table, returned after adding or editing a diary (-1: the
+// diary was saved but its row is not known yet)
+class DiaryRow
+{
+    private final Diary diary;
+    private final int row;
+
+    public DiaryRow(Diary diary, int row)
+    {
+        this.diary = diary;
+        this.row = row;
+    }
+
+    public Diary getDiary() { return diary; }
+    public int getRow() { return row; }
+}
+
+// DiaryTableModel shows a user's diaries in the JTable without loading all of them: it only knows how many rows there
+// are and keeps a window of at most maxWindow consecutive rows in memory. When the table asks for a row outside the
+// window (the user scrolled) the next/previous page is fetched in background and the table is repainted when it arrives.
+class DiaryTableModel extends AbstractTableModel
+{
+    private static final long serialVersionUID = 1L;
+
+    private static final String[] COLUMNS = {"Task Name", "Address", "Duration", "Date", "Time", "Details"};
+    // the order each column sorts by when its header is clicked, null: the column cannot be sorted
+    private static final DiaryQuery.Sort[] SORTS = {DiaryQuery.Sort.NAME, DiaryQuery.Sort.ADDRESS, DiaryQuery.Sort.DURATION,
+            DiaryQuery.Sort.DATE, DiaryQuery.Sort.DATE, null};
+
+    private final AsyncRecordManager records;
+    private final int userId;
+    private final int pageSize;
+    private final int maxWindow;
+    private final Consumer<Throwable> onError;
+
+    private final List<Diary> window = new ArrayList<>();     // rows windowStart .. windowStart + window.size() - 1
+    private List<Diary> results;                // search results shown instead of the paged list, null when not searching
+    private int windowStart;
+    private int rowCount;
+    private CompletableFuture<?> pending;       // one page request at a time, the table asks again after repainting
+    private int generation;                     // changed by reload() so that answers to older requests are ignored
+    private DiaryQuery query = DiaryQuery.DEFAULT;      // the order and filters, done by the storage and not here
+
+    public DiaryTableModel(AsyncRecordManager records, int userId, int pageSize, int maxPages, Consumer<Throwable> onError)
+    {
+        this.records = records;
+        this.userId = userId;
+        this.pageSize = pageSize;
+        this.maxWindow = pageSize * maxPages;
+        this.onError = onError;
+    }
+
+    @Override
+    public int getRowCount() { return results != null ? results.size() : rowCount; }
+
+    @Override
+    public int getColumnCount() { return COLUMNS.length; }
+
+    @Override
+    public String getColumnName(int column)
+    {
+        if (SORTS[column] != query.getSort() || (column == 4 && SORTS[column] == DiaryQuery.Sort.DATE))
+            return COLUMNS[column];
+        return COLUMNS[column] + (query.isDescending() ? " \u25BC" : " \u25B2");
+    }
+
+    // the sort order used when clicking on a column header, null when the column is not sortable
+    public static DiaryQuery.Sort sortOf(int column) { return column >= 0 && column < SORTS.length ? SORTS[column] : null; }
+
+    public DiaryQuery getQuery() { return query; }
+
+    // showing the diaries in another order or with other filters, read again from the first page
+    public void setQuery(DiaryQuery query)
+    {
+        this.query = query;
+        reload();
+    }
+
+    @Override
+    public boolean isCellEditable(int r, int c) { return false; }     // u must use "edit button " to edit
+
+    @Override
+    public Object getValueAt(int row, int column)
+    {
+        Diary d = getDiaryAt(row);
+        if (d == null)
+        {
+            requestRow(row);
+            return column == 0 ? "Loading..." : "";
+        }
+        switch (column)
+        {
+            case 0: return d.getName();
+            case 1: return d.getAddress();
+            case 2: return d.getDuration();
+            case 3: return DiaryFormats.formatDate(d.getDate());
+            case 4: return DiaryFormats.formatTime(d.getTime());
+            default: return d.isSummary() ? d.getDetails() + "..." : d.getDetails();       // the rest is read when the row is opened
+        }
+    }
+
+    // returning the diary shown in a row, or null when that row is not loaded (yet)
+    public Diary getDiaryAt(int row)
+    {
+        if (results != null)
+            return row >= 0 && row < results.size() ? results.get(row) : null;
+        int i = row - windowStart;
+        return i >= 0 && i < window.size() ? window.get(i) : null;
+    }
+
+    // showing a first page that was already read (during login) instead of asking the database again
+    public void show(DiaryPage page)
+    {
+        if (!query.isDefault()) { reload(); return; }      // the read-ahead page is in the normal order
+        results = null;
+        discardPending();
+        generation++;
+        rowCount = page.getTotal();
+        window.clear();
+        window.addAll(page.getRows());
+        windowStart = 0;
+        fireTableDataChanged();
+    }
+
+    // showing a fixed list of diaries (search results) instead of the user's paged diaries
+    public void showResults(List<Diary> diaries)
+    {
+        discardPending();
+        results = new ArrayList<>(diaries);
+        fireTableDataChanged();
+    }
+
+    public boolean isShowingResults() { return results != null; }
+
+    // throwing away everything loaded (and the search results) and reading the row count and the first page again
+    public void reload()
+    {
+        results = null;
+        int gen = ++generation;
+        if (pending != null) pending.cancel(true);
+        CompletableFuture<Integer> count = records.countRecords(userId, query);
+        CompletableFuture<List<Diary>> first = records.viewRecordPage(userId, query, null, pageSize);
+        CompletableFuture<Void> both = CompletableFuture.allOf(count, first);
+        pending = both;
+        BackgroundExecutor.onEdt(both, v -> {
+            if (gen != generation) return;
+            pending = null;
+            rowCount = count.join();
+            window.clear();
+            window.addAll(first.join());
+            windowStart = 0;
+            fireTableDataChanged();
+        }, this::failed);
+    }
+
+    // the changes below patch the loaded rows in place and tell the table exactly which row changed,
+    // so adding/editing/deleting one diary does not reload the list. The row numbers are positions in the
+    // normal (date) order, so in any other order or with filters the list is read again instead
+
+    public void insertDiary(int row, Diary d)
+    {
+        if (results != null) return;            // while searching the list is not in row order, the search is run again
+        if (!query.isDefault()) { reload(); return; }
+        discardPending();
+        d = d.summary();                        // the rows keep only the start of long details, like the pages read
+        rowCount++;
+        int windowEnd = windowStart + window.size();
+        if (row >= windowStart && row <= windowEnd && (!window.isEmpty() || row == windowStart))
+        {
+            window.add(row - windowStart, d);
+            trimBack();
+        }
+        else if (row < windowStart)
+            windowStart++;
+        fireTableRowsInserted(row, row);
+    }
+
+    public void updateDiary(int oldRow, int newRow, Diary d)
+    {
+        if (results != null)
+        {
+            results.set(oldRow, d);
+            fireTableRowsUpdated(oldRow, oldRow);
+            return;
+        }
+        if (!query.isDefault()) { reload(); return; }
+        if (oldRow != newRow)
+        {
+            // date or time changed, so the diary moves to another place in the list
+            removeRow(oldRow);
+            insertDiary(newRow, d);
+            return;
+        }
+        int i = oldRow - windowStart;
+        if (i >= 0 && i < window.size()) window.set(i, d.summary());
+        fireTableRowsUpdated(oldRow, oldRow);
+    }
+
+    public void removeRow(int row)
+    {
+        if (results != null)
+        {
+            results.remove(row);
+            fireTableRowsDeleted(row, row);
+            return;
+        }
+        if (!query.isDefault()) { reload(); return; }
+        discardPending();
+        rowCount--;
+        int i = row - windowStart;
+        if (i >= 0 && i < window.size())
+            window.remove(i);
+        else if (row < windowStart)
+            windowStart--;
+        fireTableRowsDeleted(row, row);
+    }
+
+    // a page that is still loading was asked for before the change, the table asks again when it repaints
+    private void discardPending()
+    {
+        if (pending == null) return;
+        generation++;
+        pending.cancel(true);
+        pending = null;
+    }
+
+    private void requestRow(int row)
+    {
+        if (results != null || pending != null || row >= rowCount) return;
+        int gen = generation;
+        int windowEnd = windowStart + window.size();
+        if (!window.isEmpty() && row >= windowEnd && row < windowEnd + pageSize)
+        {
+            // scrolling down: the page after the last loaded row
+            CompletableFuture<List<Diary>> page = records.viewRecordPage(userId, query, window.get(window.size() - 1), pageSize);
+            pending = page;
+            BackgroundExecutor.onEdt(page, rows -> {
+                if (gen != generation) return;
+                pending = null;
+                int first = windowStart + window.size();
+                window.addAll(rows);
+                trimFront();
+                if (!rows.isEmpty()) fireTableRowsUpdated(first, first + rows.size() - 1);
+            }, this::failed);
+        }
+        else if (!window.isEmpty() && row < windowStart && row >= windowStart - pageSize)
+        {
+            // scrolling up: the page before the first loaded row
+            CompletableFuture<List<Diary>> page = records.viewRecordPageBefore(userId, query, window.get(0), pageSize);
+            pending = page;
+            BackgroundExecutor.onEdt(page, rows -> {
+                if (gen != generation) return;
+                pending = null;
+                window.addAll(0, rows);
+                windowStart = Math.max(0, windowStart - rows.size());
+                trimBack();
+                if (!rows.isEmpty()) fireTableRowsUpdated(windowStart, windowStart + rows.size() - 1);
+            }, this::failed);
+        }
+        else
+        {
+            // jumped somewhere else (scrollbar dragged): start a new window at that row
+            int offset = row - row % pageSize;
+            CompletableFuture<List<Diary>> page = records.viewRecordPageAt(userId, query, offset, pageSize);
+            pending = page;
+            BackgroundExecutor.onEdt(page, rows -> {
+                if (gen != generation) return;
+                pending = null;
+                window.clear();
+                window.addAll(rows);
+                windowStart = offset;
+                fireTableRowsUpdated(offset, Math.min(rowCount, offset + pageSize) - 1);
+            }, this::failed);
+        }
+    }
+
+    // keeping memory bounded: dropping rows from the side we scrolled away from
+    private void trimFront()
+    {
+        int extra = window.size() - maxWindow;
+        if (extra <= 0) return;
+        window.subList(0, extra).clear();
+        windowStart += extra;
+    }
+
+    private void trimBack()
+    {
+        int extra = window.size() - maxWindow;
+        if (extra <= 0) return;
+        window.subList(window.size() - extra, window.size()).clear();
+    }
+
+    private void failed(Throwable ex)
+    {
+        pending = null;
+        onError.accept(ex);
+    }
+}
+
+// VirtualThreads gives an executor that runs every task on its own virtual thread when the JVM has them (Java 21+);
+// on older JVMs it falls back to a bounded pool of platform threads
+class VirtualThreads
+{
+    public static ExecutorService newExecutor(String name, int fallbackThreads)
+    {
+        try
+        {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e)
+        {
+            AtomicInteger counter = new AtomicInteger();
+            return Executors.newFixedThreadPool(fallbackThreads, r -> {
+                Thread t = new Thread(r, name + "-" + counter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+}
+
+// DiaryServer is the headless "service mode" of the program (java Main --server [port]). It offers the LoginManager and
+// RecordManager operations as a small JSON HTTP API, so many desktop clients share the few pooled database connections
+// of one server instead of each client connecting to MySQL with its own credentials.
+//
+//   POST   /api/register, /api/login, /api/logout, /api/password       (login answers with a session token)
+//   GET    /api/diaries[/count|/page|/range|/upcoming|/search|/position|/export]
+//   POST   /api/diaries, /api/diaries/import     GET/PUT/DELETE /api/diaries/{id}
+//
+// Every call except register and login needs the header "Authorization: Bearer <token>".
+class DiaryServer
+{
+    private static final long SESSION_IDLE_MILLIS = 30 * 60 * 1000L;
+    private static final int MAX_BODY_BYTES = 64 * 1024 * 1024;
+
+    private final LoginManager loginManager;
+    private final RecordManager recordManager;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+
+    public DiaryServer(int port, LoginManager loginManager, RecordManager recordManager) throws IOException
+    {
+        this.loginManager = loginManager;
+        this.recordManager = recordManager;
+        this.server = HttpServer.create(new InetSocketAddress(port), 0);
+        this.executor = VirtualThreads.newExecutor("diary-http", Integer.getInteger("diary.server.threads", 64));
+        server.setExecutor(executor);
+        server.createContext("/api/", this::handle);
+    }
+
+    public void start() { server.start(); }
+
+    public void stop()
+    {
+        server.stop(1);
+        executor.shutdownNow();
+    }
+
+    public int getPort() { return server.getAddress().getPort(); }
+
+    // Session is one logged in client
+    private static class Session
+    {
+        final User user;
+        volatile long lastSeen = System.currentTimeMillis();
+
+        Session(User user) { this.user = user; }
+    }
+
+    // thrown to answer a request with an HTTP error status
+    private static class HttpError extends Exception
+    {
+        private static final long serialVersionUID = 1L;
+        final int status;
+
+        HttpError(int status, String message)
+        {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private void handle(HttpExchange ex) throws IOException
+    {
+        try
+        {
+            String response = route(ex);
+            if (response != null) send(ex, 200, response);
+        }
+        catch (HttpError e) { send(ex, e.status, error(e.getMessage())); }
+        catch (DiaryConflictException e) { send(ex, 409, error(e.getMessage())); }
+        catch (IOException | IllegalArgumentException | DateTimeParseException e) { send(ex, 400, error(e.getMessage())); }
+        catch (Exception e) { send(ex, 500, error(e.getMessage())); }
+        finally { ex.close(); }
+    }
+
+    // answering one request; returns the JSON to send, or null when the answer was already streamed
+    private String route(HttpExchange ex) throws Exception
+    {
+        String method = ex.getRequestMethod();
+        String path = ex.getRequestURI().getPath();
+        Map<String, String> query = parseQuery(ex.getRequestURI().getRawQuery());
+
+        if (method.equals("POST") && path.equals("/api/register"))
+        {
+            Map<String, String> body = readObject(ex);
+            boolean registered = loginManager.register(required(body, "username"), required(body, "password"));
+            return "{\"registered\":" + registered + "}";
+        }
+        if (method.equals("POST") && path.equals("/api/login"))
+        {
+            Map<String, String> body = readObject(ex);
+            User user = loginManager.login(required(body, "username"), required(body, "password"));
+            if (user == null) throw new HttpError(401, "Wrong credentials");
+            removeExpiredSessions();
+            byte[] bytes = new byte[32];
+            random.nextBytes(bytes);
+            String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+            sessions.put(token, new Session(user));
+            return "{\"token\":" + DiaryFormats.jsonString(token) + ",\"id\":" + user.getId()
+                    + ",\"username\":" + DiaryFormats.jsonString(user.getUsername()) + "}";
+        }
+
+        Session session = authenticate(ex);
+        int userId = session.user.getId();
+        switch (method + " " + path)
+        {
+            case "POST /api/logout":
+                sessions.values().remove(session);
+                return "{}";
+            case "POST /api/password":
+                loginManager.changePassword(session.user.getUsername(), required(readObject(ex), "password"));
+                return "{}";
+            case "GET /api/diaries":
+                return DiaryFormats.toApiJson(recordManager.viewRecord(userId));
+            case "GET /api/diaries/count":
+                return "{\"count\":" + recordManager.countRecords(userId) + "}";
+            case "GET /api/diaries/page":
+            {
+                int size = intParam(query, "size", 200);
+                switch (query.getOrDefault("mode", "after"))
+                {
+                    case "before": return DiaryFormats.toApiJson(recordManager.viewRecordPageBefore(userId, key(query, userId), size));
+                    case "at": return DiaryFormats.toApiJson(recordManager.viewRecordPageAt(userId, intParam(query, "offset", 0), size));
+                    default:
+                        Diary after = query.containsKey("keyId") ? key(query, userId) : null;
+                        return DiaryFormats.toApiJson(recordManager.viewRecordPage(userId, after, size));
+                }
+            }
+            case "GET /api/diaries/query":
+            {
+                DiaryQuery q = diaryQuery(query);
+                int size = intParam(query, "size", 200);
+                switch (query.getOrDefault("mode", "after"))
+                {
+                    case "before": return DiaryFormats.toApiJson(recordManager.viewRecordPageBefore(userId, q, queryKey(query, userId), size));
+                    case "at": return DiaryFormats.toApiJson(recordManager.viewRecordPageAt(userId, q, intParam(query, "offset", 0), size));
+                    default:
+                        Diary after = query.containsKey("keyId") ? queryKey(query, userId) : null;
+                        return DiaryFormats.toApiJson(recordManager.viewRecordPage(userId, q, after, size));
+                }
+            }
+            case "GET /api/diaries/query/count":
+                return "{\"count\":" + recordManager.countRecords(userId, diaryQuery(query)) + "}";
+            case "GET /api/diaries/range":
+                return DiaryFormats.toApiJson(recordManager.viewRecordsBetween(userId,
+                        LocalDate.parse(required(query, "from")), LocalDate.parse(required(query, "to"))));
+            case "GET /api/diaries/upcoming":
+                return DiaryFormats.toApiJson(recordManager.viewUpcomingRecords(userId, intParam(query, "limit", 20)));
+            case "GET /api/diaries/search":
+                return DiaryFormats.toApiJson(recordManager.searchRecords(userId, required(query, "q"), intParam(query, "limit", 100)));
+            case "GET /api/diaries/position":
+                return "{\"position\":" + recordManager.positionOf(key(query, userId)) + "}";
+            case "GET /api/diaries/export":
+                ex.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+                ex.sendResponseHeaders(200, 0);         // chunked: the rows are streamed as they are read
+                try (Writer out = new BufferedWriter(new OutputStreamWriter(ex.getResponseBody(), StandardCharsets.UTF_8), 64 * 1024))
+                {
+                    recordManager.exportRecords(userId, d -> {
+                        out.write(DiaryFormats.toApiJson(d));
+                        out.write('\n');
+                    });
+                }
+                return null;
+            case "POST /api/diaries":
+            {
+                Diary d = DiaryFormats.fromApiJson(readObject(ex), 0, userId);
+                return DiaryFormats.toApiJson(recordManager.addRecord(d));
+            }
+            case "POST /api/diaries/import":
+            {
+                List<Diary> diaries = new ArrayList<>();
+                JsonObjectReader in = new JsonObjectReader(bodyReader(ex));
+                Map<String, String> values;
+                while ((values = in.readObject()) != null) diaries.add(DiaryFormats.fromApiJson(values, 0, userId));
+                StringBuilder sb = new StringBuilder("[");
+                for (Map.Entry<Integer, SQLException> f : recordManager.importRecords(diaries).entrySet())
+                {
+                    if (sb.length() > 1) sb.append(',');
+                    sb.append("{\"index\":").append(f.getKey()).append(",\"error\":").append(DiaryFormats.jsonString(f.getValue().getMessage())).append('}');
+                }
+                return sb.append(']').toString();
+            }
+        }
+        if (path.startsWith("/api/diaries/") && path.endsWith("/details") && method.equals("GET"))
+        {
+            int id;
+            try { id = Integer.parseInt(path.substring("/api/diaries/".length(), path.length() - "/details".length())); }
+            catch (NumberFormatException e) { throw new HttpError(404, "Not found: " + path); }
+            return "{\"details\":" + DiaryFormats.jsonString(recordManager.viewDetails(userId, id, intParam(query, "version", -1))) + "}";
+        }
+        if (path.startsWith("/api/diaries/") && (method.equals("GET") || method.equals("PUT") || method.equals("DELETE")))
+        {
+            int id;
+            try { id = Integer.parseInt(path.substring("/api/diaries/".length())); }
+            catch (NumberFormatException e) { throw new HttpError(404, "Not found: " + path); }
+            if (method.equals("GET"))
+            {
+                Diary d = recordManager.viewRecord(userId, id);
+                if (d == null) throw new HttpError(404, "Diary " + id + " was not found");
+                return DiaryFormats.toApiJson(d);
+            }
+            if (method.equals("PUT"))
+            {
+                Diary d = DiaryFormats.changesFromApiJson(readObject(ex), id, userId);
+                recordManager.updateRecord(d);
+                return DiaryFormats.toApiJson(d, d.getDirtyFields());       // the new version
+            }
+            recordManager.deleteRecord(new Diary(id, null, null, null, null, null, null, userId));
+            return "{}";
+        }
+        throw new HttpError(404, "Not found: " + method + " " + path);
+    }
+
+    private Session authenticate(HttpExchange ex) throws HttpError
+    {
+        String header = ex.getRequestHeaders().getFirst("Authorization");
+        Session session = header != null && header.startsWith("Bearer ") ? sessions.get(header.substring(7)) : null;
+        long now = System.currentTimeMillis();
+        if (session == null || now - session.lastSeen > SESSION_IDLE_MILLIS)
+            throw new HttpError(401, "Not logged in");
+        session.lastSeen = now;
+        return session;
+    }
+
+    private void removeExpiredSessions()
+    {
+        long now = System.currentTimeMillis();
+        sessions.values().removeIf(s -> now - s.lastSeen > SESSION_IDLE_MILLIS);
+    }
+
+    // the key row of a page request: the id, date and time of the diary the page starts after (or before)
+    private static Diary key(Map<String, String> query, int userId)
+    {
+        return new Diary(Integer.parseInt(required(query, "keyId")), null, null, null,
+                LocalDate.parse(required(query, "keyDate")), LocalTime.parse(required(query, "keyTime")), null, userId);
+    }
+
+    // the key row of a sorted page: the id and whichever sort columns are given
+    private static Diary queryKey(Map<String, String> query, int userId)
+    {
+        String date = query.get("keyDate"), time = query.get("keyTime");
+        return new Diary(Integer.parseInt(required(query, "keyId")), query.get("keyName"), query.get("keyDuration"), query.get("keyAddress"),
+                date == null ? null : LocalDate.parse(date), time == null ? null : LocalTime.parse(time), null, userId);
+    }
+
+    // sort=date|name|address|duration, desc=true, name=, address=, from=, to=
+    static DiaryQuery diaryQuery(Map<String, String> query)
+    {
+        String from = query.get("from"), to = query.get("to");
+        return new DiaryQuery(DiaryQuery.Sort.valueOf(query.getOrDefault("sort", "date").toUpperCase(Locale.ROOT)),
+                Boolean.parseBoolean(query.get("desc")), query.get("name"), query.get("address"),
+                from == null ? null : LocalDate.parse(from), to == null ? null : LocalDate.parse(to));
+    }
+
+    private static String required(Map<String, String> values, String name)
+    {
+        String value = values.get(name);
+        if (value == null) throw new IllegalArgumentException("Missing " + name);
+        return value;
+    }
+
+    private static int intParam(Map<String, String> query, String name, int defaultValue)
+    {
+        String value = query.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery)
+    {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null) return query;
+        for (String pair : rawQuery.split("&"))
+        {
+            int eq = pair.indexOf('=');
+            if (eq < 0) continue;
+            query.put(URLDecoder.decode(pair.substring(0, eq), StandardCharsets.UTF_8),
+                    URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8));
+        }
+        return query;
+    }
+
+    private static Map<String, String> readObject(HttpExchange ex) throws IOException
+    {
+        Map<String, String> values = new JsonObjectReader(bodyReader(ex)).readObject();
+        if (values == null) throw new IOException("Empty request body");
+        return values;
+    }
+
+    private static Reader bodyReader(HttpExchange ex) throws IOException
+    {
+        String length = ex.getRequestHeaders().getFirst("Content-Length");
+        if (length != null && Long.parseLong(length) > MAX_BODY_BYTES) throw new IOException("Request body too large");
+        return new BufferedReader(new InputStreamReader(ex.getRequestBody(), StandardCharsets.UTF_8));
+    }
+
+    private static String error(String message)
+    {
+        return "{\"error\":" + DiaryFormats.jsonString(message == null ? "Internal error" : message) + "}";
+    }
+
+    private static void send(HttpExchange ex, int status, String json) throws IOException
+    {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        ex.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = ex.getResponseBody()) { out.write(bytes); }
+    }
+}
+
+// RemoteSession is the client side connection to a DiaryServer: the server address and the session token after login
+class RemoteSession
+{
+    private final String baseUrl;
+    private final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(10)).build();
+    private volatile String token;
+
+    // an error answer of the server, with its HTTP status
+    static class StatusException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+        private final int status;
+
+        StatusException(int status, String message)
+        {
+            super(message);
+            this.status = status;
+        }
+
+        public int getStatus() { return status; }
+    }
+
+    public RemoteSession(String baseUrl)
+    {
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+    }
+
+    public void setToken(String token) { this.token = token; }
+
+    // sending a request and returning the JSON answer; an error answer from the server is thrown as an IOException
+    public String send(String method, String path, String body) throws IOException, InterruptedException
+    {
+        HttpResponse<String> response = client.send(request(method, path, body), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+        if (response.statusCode() / 100 != 2)
+            throw new StatusException(response.statusCode(), errorMessage(response.statusCode(), response.body()));
+        return response.body();
+    }
+
+    // the same, but the answer is read while it arrives (used for the export)
+    public Reader stream(String path) throws IOException, InterruptedException
+    {
+        HttpResponse<InputStream> response = client.send(request("GET", path, null), HttpResponse.BodyHandlers.ofInputStream());
+        Reader in = new BufferedReader(new InputStreamReader(response.body(), StandardCharsets.UTF_8));
+        if (response.statusCode() / 100 != 2)
+        {
+            StringBuilder sb = new StringBuilder();
+            try (Reader r = in) { char[] buf = new char[1024]; int n; while ((n = r.read(buf)) > 0) sb.append(buf, 0, n); }
+            throw new StatusException(response.statusCode(), errorMessage(response.statusCode(), sb.toString()));
+        }
+        return in;
+    }
+
+    public static Map<String, String> parseObject(String json) throws IOException
+    {
+        Map<String, String> values = new JsonObjectReader(new StringReader(json)).readObject();
+        return values == null ? new HashMap<>() : values;
+    }
+
+    public static List<Map<String, String>> parseArray(String json) throws IOException
+    {
+        List<Map<String, String>> list = new ArrayList<>();
+        JsonObjectReader in = new JsonObjectReader(new StringReader(json));
+        Map<String, String> values;
+        while ((values = in.readObject()) != null) list.add(values);
+        return list;
+    }
+
+    public static String encode(String value) { return URLEncoder.encode(value, StandardCharsets.UTF_8); }
+
+    private HttpRequest request(String method, String path, String body)
+    {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(baseUrl + path)).timeout(Duration.ofMinutes(5));
+        if (token != null) builder.header("Authorization", "Bearer " + token);
+        if (body != null) builder.header("Content-Type", "application/json");
+        return builder.method(method, body == null ? HttpRequest.BodyPublishers.noBody()
+                : HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8)).build();
+    }
+
+    private static String errorMessage(int status, String body)
+    {
+        try
+        {
+            String message = parseObject(body).get("error");
+            if (message != null) return message;
+        }
+        catch (IOException ignored) {}
+        return "Server answered HTTP " + status;
+    }
+}
+
+// RemoteLoginManager does the LoginManager operations through a DiaryServer instead of the database
+class RemoteLoginManager extends LoginManager {
+    private final RemoteSession session;
+
+    public RemoteLoginManager(RemoteSession session) { this.session = session; }
+
+    @Override
+    public User login(String username, String password) throws Exception {
+        String body = "{\"username\":" + DiaryFormats.jsonString(username) + ",\"password\":" + DiaryFormats.jsonString(password) + "}";
+        Map<String, String> answer;
+        try {
+            answer = RemoteSession.parseObject(session.send("POST", "/api/login", body));
+        } catch (RemoteSession.StatusException e) {
+            if (e.getStatus() == 401) return null;
+            throw e;
+        }
+        session.setToken(answer.get("token"));
+        return new User(Integer.parseInt(answer.get("id")), answer.get("username"), password);
+    }
+
+    @Override
+    public boolean register(String username, String password) throws Exception {
+        String body = "{\"username\":" + DiaryFormats.jsonString(username) + ",\"password\":" + DiaryFormats.jsonString(password) + "}";
+        return Boolean.parseBoolean(RemoteSession.parseObject(session.send("POST", "/api/register", body)).get("registered"));
+    }
+
+    @Override
+    public void changePassword(String username, String newPassword) throws Exception {     // the server changes the password of the logged in user
+        session.send("POST", "/api/password", "{\"password\":" + DiaryFormats.jsonString(newPassword) + "}");
+    }
+}
+
+// RemoteRecordManager does the RecordManager operations through a DiaryServer instead of the database, so the
+// desktop client needs no database connection (start the client with -Ddiary.server=http://host:port)
+class RemoteRecordManager extends RecordManager {
+    private final RemoteSession session;
+
+    public RemoteRecordManager(RemoteSession session) {
+        super(null);            // everything is read from the server, only the details and the schedule are kept here
+        this.session = session;
+    }
+
+    @Override
+    public List<Diary> viewRecord(int userId) throws Exception {
+        return diaries(session.send("GET", "/api/diaries", null));
+    }
+
+    @Override
+    public Diary viewRecord(int userId, int id) throws Exception {
+        try {
+            return DiaryFormats.fromApiJson(RemoteSession.parseObject(session.send("GET", "/api/diaries/" + id, null)));
+        } catch (RemoteSession.StatusException e) {
+            if (e.getStatus() == 404) return null;
+            throw e;
+        }
+    }
+
+    @Override
+    public void exportRecords(int userId, DiaryStorage.RowHandler handler) throws Exception {
+        try (Reader in = session.stream("/api/diaries/export")) {
+            JsonObjectReader json = new JsonObjectReader(in);
+            Map<String, String> values;
+            while ((values = json.readObject()) != null) handler.row(DiaryFormats.fromApiJson(values));
+        }
+    }
+
+    @Override
+    public int countRecords(int userId) throws Exception {
+        return Integer.parseInt(RemoteSession.parseObject(session.send("GET", "/api/diaries/count", null)).get("count"));
+    }
+
+    @Override
+    public List<Diary> viewRecordPage(int userId, Diary after, int pageSize) throws Exception {
+        String key = after == null ? "" : "&" + key(after);
+        return diaries(session.send("GET", "/api/diaries/page?mode=after&size=" + pageSize + key, null));
+    }
+
+    @Override
+    public List<Diary> viewRecordPageBefore(int userId, Diary before, int pageSize) throws Exception {
+        return diaries(session.send("GET", "/api/diaries/page?mode=before&size=" + pageSize + "&" + key(before), null));
+    }
+
+    @Override
+    public List<Diary> viewRecordPageAt(int userId, int offset, int pageSize) throws Exception {
+        return diaries(session.send("GET", "/api/diaries/page?mode=at&size=" + pageSize + "&offset=" + offset, null));
+    }
+
+    @Override
+    public List<Diary> viewRecordPage(int userId, DiaryQuery query, Diary after, int pageSize) throws Exception {
+        if (query.isDefault()) return viewRecordPage(userId, after, pageSize);
+        String key = after == null ? "" : "&" + queryKey(query, after);
+        return diaries(session.send("GET", "/api/diaries/query?mode=after&size=" + pageSize + params(query) + key, null));
+    }
+
+    @Override
+    public List<Diary> viewRecordPageBefore(int userId, DiaryQuery query, Diary before, int pageSize) throws Exception {
+        if (query.isDefault()) return viewRecordPageBefore(userId, before, pageSize);
+        return diaries(session.send("GET", "/api/diaries/query?mode=before&size=" + pageSize + params(query) + "&" + queryKey(query, before), null));
+    }
+
+    @Override
+    public List<Diary> viewRecordPageAt(int userId, DiaryQuery query, int offset, int pageSize) throws Exception {
+        if (query.isDefault()) return viewRecordPageAt(userId, offset, pageSize);
+        return diaries(session.send("GET", "/api/diaries/query?mode=at&size=" + pageSize + "&offset=" + offset + params(query), null));
+    }
+
+    @Override
+    public int countRecords(int userId, DiaryQuery query) throws Exception {
+        if (!query.isFiltered()) return countRecords(userId);
+        return Integer.parseInt(RemoteSession.parseObject(session.send("GET", "/api/diaries/query/count?" + params(query).substring(1), null)).get("count"));
+    }
+
+    @Override
+    public Diary addRecord(Diary d) throws Exception {
+        Diary saved = DiaryFormats.fromApiJson(RemoteSession.parseObject(session.send("POST", "/api/diaries", DiaryFormats.toApiJson(d))));
+        fireAdded(saved);
+        return saved;
+    }
+
+    @Override
+    public Map<Integer, SQLException> importRecords(List<Diary> diaries) throws Exception {
+        Map<Integer, SQLException> failed = new LinkedHashMap<>();
+        for (Map<String, String> f : RemoteSession.parseArray(session.send("POST", "/api/diaries/import", DiaryFormats.toApiJson(diaries))))
+            failed.put(Integer.parseInt(f.get("index")), new SQLException(f.get("error")));
+        if (!diaries.isEmpty()) fireReloaded(diaries.get(0).getUserId());       // the client only imports for its own user
+        return failed;
+    }
+
+    @Override
+    public void updateRecord(Diary d) throws Exception {
+        int fields = d.getDirtyFields();
+        if (fields == 0) return;
+        try {
+            session.send("PUT", "/api/diaries/" + d.getId(), DiaryFormats.toApiJson(d, fields));
+        } catch (RemoteSession.StatusException e) {
+            if (e.getStatus() == 409) throw new DiaryConflictException(e.getMessage());
+            throw e;
+        }
+        d.markSaved();
+        forgetDetails(d.getId());
+        fireUpdated(d);
+    }
+
+    @Override
+    public void deleteRecord(Diary d) throws Exception {
+        deleteRecord(d.getId());
+    }
+
+    @Override
+    public void deleteRecord(int id) throws Exception {
+        session.send("DELETE", "/api/diaries/" + id, null);
+        forgetDetails(id);
+        fireRemoved(id);
+    }
+
+    // the lists from the server have summaries too, the whole details are asked for (and cached by RecordManager)
+    @Override
+    protected String readDetails(int userId, int id, int version) throws Exception {
+        return RemoteSession.parseObject(session.send("GET", "/api/diaries/" + id + "/details?version=" + version, null)).get("details");
+    }
+
+    @Override
+    public List<Diary> viewRecordsBetween(int userId, LocalDate from, LocalDate to) throws Exception {
+        return diaries(session.send("GET", "/api/diaries/range?from=" + from + "&to=" + to, null));
     }
 
-    public boolean register(String username, String password) throws Exception {           //register()-> handle user registeration process
-        if (dbHandler.getUserByUsername(username) != null)           //handle the case if username is already used"registered" by another user
-            return false; 
-        else{
-        dbHandler.addUser(username, password);
-        return true;
-        }
+    @Override
+    public List<Diary> viewUpcomingRecords(int userId, int limit) throws Exception {
+        return diaries(session.send("GET", "/api/diaries/upcoming?limit=" + limit, null));
     }
 
-    public void changePassword(String username, String newPassword) throws Exception {    // changePassword()-> handle user changing password process 
-        dbHandler.updatePassword(username, newPassword);
+    @Override
+    public List<Diary> searchRecords(int userId, String query, int limit) throws Exception {
+        return diaries(session.send("GET", "/api/diaries/search?limit=" + limit + "&q=" + RemoteSession.encode(query), null));
     }
-}
 
+    @Override
+    public int positionOf(Diary d) throws Exception {
+        return Integer.parseInt(RemoteSession.parseObject(session.send("GET", "/api/diaries/position?" + key(d), null)).get("position"));
+    }
 
+    private static String key(Diary d) {
+        return "keyId=" + d.getId() + "&keyDate=" + d.getDate() + "&keyTime=" + DiaryFormats.formatTime(d.getTime());
+    }
 
-class RecordManager { // the relation between "RecordManager"& "DatabaseHandler" -> aggregation                      
-    private final DatabaseHandler dbHandler = new DatabaseHandler();                // creating an instance from class DatabaseHandler to do database operations on user diaries:                                                                       
-    public List<Diary> viewRecord(int userId) throws Exception {             //      1-viewRecord()-> retrive user diaries from database for logged in user
-        return dbHandler.getUserDiaries(userId);                                   
-    }                                                                              
-                                                                                    
-    public void addRecord(Diary d) throws Exception {                                //      2- addRecord()-> add a new diary record 
-        dbHandler.addDiary(d);
+    // the key row of a sorted page: the id and the values of the sort columns (a missing value means NULL)
+    private static String queryKey(DiaryQuery query, Diary d) {
+        switch (query.getSort()) {
+            case NAME: return "keyId=" + d.getId() + (d.getName() == null ? "" : "&keyName=" + RemoteSession.encode(d.getName()));
+            case ADDRESS: return "keyId=" + d.getId() + (d.getAddress() == null ? "" : "&keyAddress=" + RemoteSession.encode(d.getAddress()));
+            case DURATION: return "keyId=" + d.getId() + (d.getDuration() == null ? "" : "&keyDuration=" + RemoteSession.encode(d.getDuration()));
+            default: return key(d);
+        }
     }
 
-    public void updateRecord(Diary d) throws Exception {       //      3- updateRecord()-> edit an existing record
-        dbHandler.updateDiary(d);            
+    // the DiaryQuery as request parameters (starting with '&'), read by DiaryServer.diaryQuery()
+    private static String params(DiaryQuery query) {
+        StringBuilder sb = new StringBuilder("&sort=").append(query.getSort().name().toLowerCase(Locale.ROOT));
+        if (query.isDescending()) sb.append("&desc=true");
+        if (query.getNameContains() != null) sb.append("&name=").append(RemoteSession.encode(query.getNameContains()));
+        if (query.getAddressContains() != null) sb.append("&address=").append(RemoteSession.encode(query.getAddressContains()));
+        if (query.getFrom() != null) sb.append("&from=").append(query.getFrom());
+        if (query.getTo() != null) sb.append("&to=").append(query.getTo());
+        return sb.toString();
     }
 
-    public void deleteRecord(int id) throws Exception {                              //      4- deleteRecord()-> delete an existiing record
-        dbHandler.deleteDiary(id);
+    private static List<Diary> diaries(String json) throws IOException {
+        List<Diary> list = new ArrayList<>();
+        for (Map<String, String> values : RemoteSession.parseArray(json)) list.add(DiaryFormats.fromApiJson(values));
+        return list;
     }
 }
 
 class DiaryGUI {
-    private final LoginManager loginManager = new LoginManager();               // creating an instance from class LoginManager to be able to use login operations on user account:(register- login -change password)
-    private final RecordManager recordManager = new RecordManager();           // creating an instance from class RecordManager to be able to manage user dairies :(add diary-update diary -delete diary)
+    private final LoginManager loginManager;               // creating an instance from class LoginManager to be able to use login operations on user account:(register- login -change password)
+    private final RecordManager recordManager;           // creating an instance from class RecordManager to be able to manage user dairies :(add diary-update diary -delete diary)
+    // all database calls from the GUI go through these async versions so the window never freezes while a query runs
+    private final BackgroundExecutor executor = new BackgroundExecutor(Integer.getInteger("diary.async.threads", 4));
+    private final AsyncLoginManager asyncLogin;
+    private final AsyncRecordManager asyncRecords;
     private User currentUser;
+    static final int PAGE_SIZE = Integer.getInteger("diary.pageSize", 200);        // rows read at a time for the table
+
+    public DiaryGUI() {
+        String server = System.getProperty("diary.server");        // e.g. -Ddiary.server=http://host:8080 to use a diary server instead of MySQL
+        if (server != null) {
+            RemoteSession session = new RemoteSession(server);
+            loginManager = new RemoteLoginManager(session);
+            recordManager = new RemoteRecordManager(session);
+        } else {
+            loginManager = new LoginManager();
+            recordManager = new RecordManager();
+        }
+        asyncLogin = new AsyncLoginManager(loginManager, executor);
+        asyncRecords = new AsyncRecordManager(recordManager, executor);
+    }
 
     // --- entry page ---
     public void showLogin() {
@@ -285,6 +7764,8 @@ class DiaryGUI {
     class LoginFrame extends JFrame {
         JTextField usernameField = new JTextField(15);          
         JPasswordField passwordField = new JPasswordField(15);
+        JButton loginButton = new JButton("Login");         //login button
+        JButton regButton = new JButton("Register");       // register button
 
         public LoginFrame() {
             setTitle("Login - Diary System");
@@ -298,8 +7779,6 @@ class DiaryGUI {
             panel.add(new JLabel("Password:"));
             panel.add(passwordField);
 
-            JButton loginButton = new JButton("Login");         //login button
-            JButton regButton = new JButton("Register");       // register button
             panel.add(loginButton);
             panel.add(regButton);
 
@@ -309,6 +7788,8 @@ class DiaryGUI {
             regButton.addActionListener(e -> doRegister());
 
             setVisible(true);
+            if (!(recordManager instanceof RemoteRecordManager))
+                executor.submit(() -> { Storage.get().warmUp(); return null; });       // connecting while the user types
         }
 
         private boolean validateLoginFields(String username, String password)       // boolean function validate user credintials"username,"password":
@@ -321,38 +7802,55 @@ class DiaryGUI {
                 return true;
         }
 
+        private void setBusy(boolean busy) {        // setBusy()-> disable the buttons while a request is running so it is not sent twice
+            loginButton.setEnabled(!busy);
+            regButton.setEnabled(!busy);
+            setCursor(busy ? Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR) : Cursor.getDefaultCursor());
+        }
+
         private void doLogin() {
             String username = usernameField.getText().trim();               // getText()-> retrieve username from usernameField
             String password = new String(passwordField.getPassword());
             if (!validateLoginFields(username, password)) return;          // calling validateLoginFields to validate user credintials
-            try {
-                User u = loginManager.login(username, password);
+            setBusy(true);
+            // reading the user's first diaries already, at the same time as the password check and the welcome message;
+            // they are only shown if the login succeeds, otherwise they are thrown away
+            CompletableFuture<DiaryPage> prefetch = recordManager.canReadAhead()
+                    ? asyncRecords.prefetchFirstPage(username, PAGE_SIZE) : CompletableFuture.completedFuture(null);
+            BackgroundExecutor.onEdt(asyncLogin.login(username, password), u -> {      // the check runs in background, this part runs on the EDT when it is done
+                setBusy(false);
                 if (u != null) {
                     currentUser = u;
                     JOptionPane.showMessageDialog(this, "Welcome, " + username + "!");
                     dispose();          // --> close login frame
-                    new MainMenuFrame();
+                    new MainMenuFrame(prefetch);
                 } else {
+                    prefetch.cancel(true);
                     JOptionPane.showMessageDialog(this, "Login failed! Wrong credentials.");
                 }
-            } catch (Exception ex) {
+            }, ex -> {
+                prefetch.cancel(true);
+                setBusy(false);
                 JOptionPane.showMessageDialog(this, "Error: " + ex.getMessage());
-            }
+            });
         }
 
         private void doRegister() {
             String username = usernameField.getText().trim();
             String password = new String(passwordField.getPassword());
             if (!validateLoginFields(username, password)) return;
-            try {
-                if (loginManager.register(username, password)) {
+            setBusy(true);
+            BackgroundExecutor.onEdt(asyncLogin.register(username, password), registered -> {
+                setBusy(false);
+                if (registered) {
                     JOptionPane.showMessageDialog(this, "Registration successful! Login now.");
                 } else {
                     JOptionPane.showMessageDialog(this, "Username already exists.");
                 }
-            } catch (Exception ex) {
+            }, ex -> {
+                setBusy(false);
                 JOptionPane.showMessageDialog(this, "Error: " + ex.getMessage());
-            }
+            });
         }
     }
 
@@ -363,17 +7861,76 @@ class DiaryGUI {
         private final JTextField tfDuration = new JTextField();                             //      
         private final JTextField tfDate = new JTextField();                                //
         private final JTextField tfTime = new JTextField();                               //  
+        private int detailsFor;             // the diary whose whole details are being read into taDetails (0: none)
+        private Diary loadedDetails;        // the selected diary with its whole details, once they were read
         private final JTextArea taDetails = new JTextArea(3, 20);           //
+        private final JTextField tfSearch = new JTextField(30);                          // search box above the table
+        private final JTextField tfFilterName = new JTextField(10);                      // filters, done by the database
+        private final JTextField tfFilterAddress = new JTextField(10);
+        private final JTextField tfFilterFrom = new JTextField(8);
+        private final JTextField tfFilterTo = new JTextField(8);
+        private final JButton btnFilter = new JButton("Filter");
+        private final JButton btnClearFilter = new JButton("Clear");
+        private final javax.swing.Timer searchTimer = new javax.swing.Timer(250, e -> runSearch());   // waits until the user stops typing
+        // the list is read again shortly after RecordManager says many of the user's diaries changed (import, or the
+        // journal wrote what was saved while the database was away), once for a burst of them
+        private final javax.swing.Timer reloadTimer = new javax.swing.Timer(300, e -> loadEntries());
+        private RecordManager.Listener reloads;
+        private RecordManager.ConflictListener conflicts;
+        private CompletableFuture<List<Diary>> runningSearch;
+        // fires every 100 ms on the EDT: how late it fires is how long the EDT was blocked (QueryMetrics "edt.blocked")
+        private final javax.swing.Timer edtWatch = new javax.swing.Timer(100, e -> edtTick());
+        private long lastTick;
+        private final ReminderScheduler reminders;        // shows a notification when an entry's date and time arrive
+        private TrayIcon trayIcon;
 
         private final JTable table;
-        private final DefaultTableModel tableModel;
+        private final DiaryTableModel tableModel;
 
         private final JButton btnAdd = new JButton("Add");                              //BUTTONS
         private final JButton btnEdit = new JButton("Edit");                           //
         private final JButton btnDelete = new JButton("Delete");                      //    
         private final JButton btnLogout = new JButton("Logout");                     //
         private final JButton btnPwd = new JButton("Change Password");              //
+        private final JButton btnImport = new JButton("Import");                   //
+        private final JButton btnExport = new JButton("Export");                  //
+        private final JButton btnFree = new JButton("Free Slots");               //
+        private final JLabel statusLabel = new JLabel(" ");                         // shows progress of long operations (import/export)
+
+
+        // a desktop notification (system tray) when the system has one, otherwise a dialog that does not block the window
+        private void showReminder(Diary d) {
+            if (!isDisplayable()) return;           // logged out meanwhile
+            String text = d.getName() + " at " + DiaryFormats.formatTime(d.getTime())
+                    + (d.getAddress() == null || d.getAddress().isEmpty() ? "" : " - " + d.getAddress());
+            if (SystemTray.isSupported()) {
+                try {
+                    if (trayIcon == null) {
+                        BufferedImage image = new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB);
+                        Graphics2D g = image.createGraphics();
+                        g.setColor(new Color(33, 150, 243));
+                        g.fillOval(1, 1, 14, 14);
+                        g.dispose();
+                        trayIcon = new TrayIcon(image, "Diary reminders");
+                        trayIcon.setImageAutoSize(true);
+                        SystemTray.getSystemTray().add(trayIcon);
+                    }
+                    trayIcon.displayMessage("Diary reminder", text, TrayIcon.MessageType.INFO);
+                    return;
+                } catch (AWTException e) {
+                    trayIcon = null;                // no tray after all, use the dialog
+                }
+            }
+            JDialog dialog = new JOptionPane(text, JOptionPane.INFORMATION_MESSAGE).createDialog(this, "Diary reminder");
+            dialog.setModal(false);
+            dialog.setVisible(true);
+        }
 
+        private void edtTick() {
+            long now = System.nanoTime();
+            QueryMetrics.recordEdt("blocked", Math.max(0, now - lastTick - 100_000_000L));
+            lastTick = now;
+        }
 
         private void colorButtons() {
             btnAdd.setOpaque(true);
@@ -405,12 +7962,28 @@ class DiaryGUI {
             btnLogout.setForeground(Color.WHITE);
             btnLogout.setFocusPainted(false);
             btnLogout.setBorderPainted(false);
-        }
 
+            btnImport.setOpaque(true);
+            btnImport.setBackground(new Color(103, 58, 183));                        // BUTTON COLOR
+            btnImport.setForeground(Color.WHITE);
+            btnImport.setFocusPainted(false);
+            btnImport.setBorderPainted(false);
+
+            btnExport.setOpaque(true);
+            btnExport.setBackground(new Color(0, 150, 136));                         // BUTTON COLOR
+            btnExport.setForeground(Color.WHITE);
+            btnExport.setFocusPainted(false);
+            btnExport.setBorderPainted(false);
+
+            btnFree.setOpaque(true);
+            btnFree.setBackground(new Color(63, 81, 181));                           // BUTTON COLOR
+            btnFree.setForeground(Color.WHITE);
+            btnFree.setFocusPainted(false);
+            btnFree.setBorderPainted(false);
+        }
 
-        private List<Diary> loadedDiaries; 
 
-        public MainMenuFrame() {
+        public MainMenuFrame(CompletableFuture<DiaryPage> prefetch) {     // prefetch: the first page read during login
             setTitle("Diary Management System - User: " + currentUser.getUsername());
             setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
             setSize(900, 600);
@@ -430,34 +8003,92 @@ class DiaryGUI {
             buttonPanel.add(btnAdd);
             buttonPanel.add(btnEdit);
             buttonPanel.add(btnDelete);
+            buttonPanel.add(btnFree);
             buttonPanel.add(btnPwd);
+            buttonPanel.add(btnImport);
+            buttonPanel.add(btnExport);
             buttonPanel.add(btnLogout);
 
-            // table display added diaries
-            String[] columns = {"Task Name", "Address", "Duration", "Date", "Time", "Details"};
-            tableModel = new DefaultTableModel(columns, 0) { 
-                public boolean isCellEditable(int r, int c){            //isCellEditable(rows, columns)--> prevent editing directly from table[]
-                    return false;                                       // u must use "edit button " to edit 
-                } 
-            };
+            // table display added diaries, rows are read page by page while scrolling (page size: -Ddiary.pageSize)
+            tableModel = new DiaryTableModel(asyncRecords, currentUser.getId(), PAGE_SIZE, 5,
+                    ex -> JOptionPane.showMessageDialog(this, "Failed to load entries:\n" + ex.getMessage()));
             table = new JTable(tableModel);         // creating a new table from tableModel
             table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);        // selection mode is single to be sure that user cannot select more than 1 row
                                                                                 // which help in edit and delete operations
             JScrollPane tableScroll = new JScrollPane(table);   //adding scrollbars to the table when needed allowing users to navigate through a large number of added diaries
 
+            JPanel searchPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+            searchPanel.add(new JLabel("Search:"));
+            searchPanel.add(tfSearch);
+            searchTimer.setRepeats(false);
+            tfSearch.getDocument().addDocumentListener(new DocumentListener() {      // every key restarts the timer (debounce)
+                public void insertUpdate(DocumentEvent e) { searchTimer.restart(); }
+                public void removeUpdate(DocumentEvent e) { searchTimer.restart(); }
+                public void changedUpdate(DocumentEvent e) { searchTimer.restart(); }
+            });
+
+            JPanel filterPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+            filterPanel.add(new JLabel("Name contains:"));    filterPanel.add(tfFilterName);
+            filterPanel.add(new JLabel("Address contains:")); filterPanel.add(tfFilterAddress);
+            filterPanel.add(new JLabel("From:"));             filterPanel.add(tfFilterFrom);
+            filterPanel.add(new JLabel("To (YYYY-MM-DD):"));  filterPanel.add(tfFilterTo);
+            filterPanel.add(btnFilter);
+            filterPanel.add(btnClearFilter);
+
+            JPanel listPanel = new JPanel(new GridLayout(2, 1));
+            listPanel.add(searchPanel);
+            listPanel.add(filterPanel);
+
+            JPanel bottomPanel = new JPanel(new BorderLayout());
+            bottomPanel.add(buttonPanel, BorderLayout.NORTH);
+            bottomPanel.add(listPanel, BorderLayout.SOUTH);
+
             JPanel topPanel = new JPanel(new BorderLayout());
             topPanel.add(formPanel, BorderLayout.CENTER);
-            topPanel.add(buttonPanel, BorderLayout.SOUTH);
+            topPanel.add(bottomPanel, BorderLayout.SOUTH);
 
             setLayout(new BorderLayout(10,10));
             add(topPanel, BorderLayout.NORTH);
             add(tableScroll, BorderLayout.CENTER);
+            add(statusLabel, BorderLayout.SOUTH);
+
+            lastTick = System.nanoTime();
+            edtWatch.start();
+
+            // -Ddiary.reminder.leadSeconds: remind this long before the entry, -Ddiary.reminder.window: entries kept queued
+            reminders = new ReminderScheduler(recordManager, currentUser.getId(), Integer.getInteger("diary.reminder.window", 1000),
+                    Long.getLong("diary.reminder.leadSeconds", 0), d -> SwingUtilities.invokeLater(() -> showReminder(d)));
+            reminders.start();
+
+            int userId = currentUser.getId();
+            reloadTimer.setRepeats(false);
+            reloads = new RecordManager.Listener() {
+                public void added(Diary d) {}
+                public void updated(Diary d) {}
+                public void removed(int id) {}
+                public void reloaded(int user) { if (user == userId) SwingUtilities.invokeLater(reloadTimer::restart); }
+            };
+            conflicts = user -> { if (user == userId) SwingUtilities.invokeLater(this::showRefusedChanges); };
+            recordManager.addListener(reloads);
+            recordManager.addConflictListener(conflicts);
+            SwingUtilities.invokeLater(this::showRefusedChanges);        // refused while nobody was logged in
 
             // Button Actions
             btnAdd.addActionListener(e -> addEntry());
             btnEdit.addActionListener(e -> editEntry());
             btnDelete.addActionListener(e -> deleteEntry());
+            btnFree.addActionListener(e -> showFreeSlots());
+            btnImport.addActionListener(e -> importEntries());
+            btnExport.addActionListener(e -> exportEntries());
             btnLogout.addActionListener(e -> {
+                searchTimer.stop();
+                reloadTimer.stop();
+                recordManager.removeListener(reloads);
+                recordManager.removeConflictListener(conflicts);
+                edtWatch.stop();
+                reminders.stop();
+                if (trayIcon != null) SystemTray.getSystemTray().remove(trayIcon);
+                executor.cancelAll();           // queries still running for this user are not needed anymore
                 dispose();
                 currentUser = null;
                 showLogin();
@@ -465,48 +8096,127 @@ class DiaryGUI {
             btnPwd.addActionListener(e -> {
                 String newPwd = JOptionPane.showInputDialog(this, "Enter new password:");
                 if (newPwd != null && !newPwd.trim().isEmpty()) {
-                    try {
-                        loginManager.changePassword(currentUser.getUsername(), newPwd);
-                        JOptionPane.showMessageDialog(this, "Password changed.");
-                    } catch (Exception ex) {
-                        JOptionPane.showMessageDialog(this, "Error: "+ex.getMessage());
-                    }
+                    BackgroundExecutor.onEdt(asyncLogin.changePassword(currentUser.getUsername(), newPwd),
+                            v -> JOptionPane.showMessageDialog(this, "Password changed."),
+                            ex -> JOptionPane.showMessageDialog(this, "Error: "+ex.getMessage()));
+                }
+            });
+
+            // clicking a column header sorts by that column, clicking it again reverses the order
+            table.getTableHeader().addMouseListener(new MouseAdapter() {
+                public void mouseClicked(MouseEvent e) {
+                    int column = table.convertColumnIndexToModel(table.columnAtPoint(e.getPoint()));
+                    DiaryQuery.Sort sort = DiaryTableModel.sortOf(column);
+                    if (sort == null) return;
+                    DiaryQuery query = tableModel.getQuery();
+                    showQuery(query.withSort(sort, query.getSort() == sort && !query.isDescending()));
                 }
             });
+            btnFilter.addActionListener(e -> applyFilter());
+            btnClearFilter.addActionListener(e -> {
+                tfFilterName.setText("");
+                tfFilterAddress.setText("");
+                tfFilterFrom.setText("");
+                tfFilterTo.setText("");
+                showQuery(tableModel.getQuery().withFilters(null, null, null, null));
+            });
 
             // Table select: load into fields
             table.addMouseListener(new MouseAdapter() {
                 public void mouseClicked(MouseEvent e) {
                     int row = table.getSelectedRow();
-                    if (row >= 0 && loadedDiaries != null && row < loadedDiaries.size()) {
-                        Diary d = loadedDiaries.get(row);
+                    Diary d = row >= 0 ? tableModel.getDiaryAt(row) : null;
+                    if (d != null) {
                         tfTaskName.setText(d.getName());
                         tfAddress.setText(d.getAddress());
                         tfDuration.setText(d.getDuration());
-                        tfDate.setText(d.getDate());
-                        tfTime.setText(d.getTime());
+                        tfDate.setText(DiaryFormats.formatDate(d.getDate()));
+                        tfTime.setText(DiaryFormats.formatTime(d.getTime()));
                         taDetails.setText(d.getDetails());
+                        detailsFor = 0;
+                        taDetails.setEditable(true);
+                        if (d.isSummary()) loadDetails(d);
                     }
                 }
             });
 
-            loadEntries();
+            BackgroundExecutor.onEdt(prefetch, page -> {
+                if (!isDisplayable()) return;           // already logged out
+                if (page != null && page.belongsTo(userId)) tableModel.show(page);
+                else loadEntries();             // nothing was read ahead (diary server), or not for this user
+            }, ex -> {
+                if (isDisplayable()) loadEntries();     // the read-ahead failed, reading normally
+            });
             setVisible(true);
         }
 
-        private void loadEntries() { //   loadEntries()--> retrive added diaries from the database and displays them in table in GUI.
+        private void loadDetails(Diary d) {     // loadDetails()-> the list only has the start of long details, reading the whole text
+            taDetails.setEditable(false);           // editing a preview would save the cut text
+            detailsFor = d.getId();
+            BackgroundExecutor.onEdt(asyncRecords.viewDetails(d), text -> {
+                if (detailsFor != d.getId()) return;        // another row was selected meanwhile
+                taDetails.setText(text);
+                taDetails.setEditable(true);
+                loadedDetails = d.withDetails(text);
+            }, ex -> {
+                if (detailsFor != d.getId()) return;
+                taDetails.setEditable(true);
+                JOptionPane.showMessageDialog(this, "Failed to load the details:\n" + ex.getMessage());
+            });
+        }
+
+        private void loadEntries() { //   loadEntries()--> retrive added diaries from the database (in background) and displays them in table in GUI.
+            tableModel.reload();
+        }
+
+        private void applyFilter() {        // applyFilter()-> show only the diaries matching the filter fields
+            LocalDate from, to;
             try {
-                loadedDiaries = recordManager.viewRecord(currentUser.getId());
-                tableModel.setRowCount(0);
-                for (Diary d : loadedDiaries) {
-                    tableModel.addRow(new Object[]{
-                            d.getName(), d.getAddress(), d.getDuration(),
-                            d.getDate(), d.getTime(), d.getDetails()
-                    });
-                }
-            } catch (Exception ex) {
-                JOptionPane.showMessageDialog(this, "Failed to load entries:\n" + ex.getMessage());
+                from = tfFilterFrom.getText().trim().isEmpty() ? null : LocalDate.parse(tfFilterFrom.getText().trim());
+                to = tfFilterTo.getText().trim().isEmpty() ? null : LocalDate.parse(tfFilterTo.getText().trim());
+            } catch (DateTimeParseException ex) {
+                JOptionPane.showMessageDialog(this, "Invalid date! Use YYYY-MM-DD");
+                return;
+            }
+            showQuery(tableModel.getQuery().withFilters(tfFilterName.getText().trim(), tfFilterAddress.getText().trim(), from, to));
+        }
+
+        private void showQuery(DiaryQuery query) {      // showQuery()-> read the list again in this order / with these filters
+            if (!tfSearch.getText().isEmpty()) {
+                tfSearch.setText("");               // the search results are not sorted or filtered
+                searchTimer.stop();
+            }
+            tableModel.setQuery(query);
+            for (int i = 0; i < table.getColumnCount(); i++) {          // the header shows the sorted column
+                TableColumn column = table.getColumnModel().getColumn(i);
+                column.setHeaderValue(tableModel.getColumnName(column.getModelIndex()));
+            }
+            table.getTableHeader().repaint();
+        }
+
+        private void setBusy(boolean busy) {        // setBusy()-> disable the edit buttons while a change is being saved
+            btnAdd.setEnabled(!busy);
+            btnEdit.setEnabled(!busy);
+            btnDelete.setEnabled(!busy);
+        }
+
+        private void runSearch() {      // runSearch()-> show the diaries matching the search box, or all diaries when it is empty
+            String query = tfSearch.getText().trim();
+            if (runningSearch != null) runningSearch.cancel(true);      // an older search is not needed anymore
+            runningSearch = null;
+            if (query.isEmpty()) {
+                if (tableModel.isShowingResults()) loadEntries();
+                return;
             }
+            CompletableFuture<List<Diary>> search = asyncRecords.searchRecords(currentUser.getId(), query, 500);
+            runningSearch = search;
+            long start = System.nanoTime();
+            BackgroundExecutor.onEdt(search, results -> {
+                if (search != runningSearch) return;
+                runningSearch = null;
+                tableModel.showResults(results);
+                statusLabel.setText(String.format("%d results for \"%s\" (%.1f ms)", results.size(), query, (System.nanoTime() - start) / 1e6));
+            }, ex -> JOptionPane.showMessageDialog(this, "Search failed:\n" + ex.getMessage()));
         }
 
         private void clearForm() {      // clearForm()--> it clear text fields ,help me in operations :- adding new record
@@ -516,6 +8226,9 @@ class DiaryGUI {
             tfDate.setText("");
             tfTime.setText("");
             taDetails.setText("");
+            taDetails.setEditable(true);
+            detailsFor = 0;
+            loadedDetails = null;
         }
 
         private boolean validateEntryFields() {                 // validateEntryFields()-> verify that required fields are filled in.
@@ -523,74 +8236,771 @@ class DiaryGUI {
                 JOptionPane.showMessageDialog(this, "Task Name, Date, and Time are required.");                            //if empty dsiplay mess.
                 return false;                                                                                                      
             }
+            try {                                                   // checks that date and time are real dates/times, not just text
+                DiaryFormats.parseDate(tfDate.getText());
+                DiaryFormats.parseTime(tfTime.getText());
+            } catch (DateTimeParseException e) {
+                JOptionPane.showMessageDialog(this, "Date must be YYYY-MM-DD and Time HH:MM or HH:MM:SS.");
+                return false;
+            }
             return true;
         }
 
         private void addEntry() {
             if(!validateEntryFields()) return;
-            try {
-                Diary d = new Diary(0, // id is 0 because it is defined by database AUTO INCREMENT
-                        tfTaskName.getText(), tfDuration.getText(), tfAddress.getText(),
-                        tfDate.getText(), tfTime.getText(), taDetails.getText(), currentUser.getId());
-                recordManager.addRecord(d);
+            Diary d = new Diary(0, // id is 0 because it is defined by database AUTO INCREMENT
+                    tfTaskName.getText(), tfDuration.getText(), tfAddress.getText(),
+                    DiaryFormats.parseDate(tfDate.getText()), DiaryFormats.parseTime(tfTime.getText()), taDetails.getText(), currentUser.getId());
+            checkOverlaps(d, () -> saveNewEntry(d));
+        }
+
+        private void saveNewEntry(Diary d) {
+            setBusy(true);
+            BackgroundExecutor.onEdt(asyncRecords.addRecord(d), added -> {
+                setBusy(false);
+                if (added.getRow() >= 0) {
+                    tableModel.insertDiary(added.getRow(), added.getDiary());
+                    if (tableModel.isShowingResults()) runSearch();       // the new entry may match the search
+                } else {        // saved, but the list cannot be read now: it is read again once the database has it
+                    statusLabel.setText("The entry is saved, it shows in the list when the database can be reached again.");
+                }
                 JOptionPane.showMessageDialog(this, "Entry added!");
                 clearForm();
-                loadEntries();
-            } catch (Exception ex) {
+            }, ex -> {
+                setBusy(false);
                 JOptionPane.showMessageDialog(this, "Failed to add entry:\n" + ex.getMessage());
-            }
+            });
         }
 
         private void editEntry() {
             int row = table.getSelectedRow();       //getSelectedRow()-->>Gets the index of the currently selected row in the table.
-            if (row < 0 || loadedDiaries == null || row >= loadedDiaries.size()) {      // If row is negative--> there is no selection.  
-                JOptionPane.showMessageDialog(this, "Select a row to edit.");   //If loadedDiaries is null or row is out of bounds.there is problem in  data
+            Diary d = row >= 0 ? tableModel.getDiaryAt(row) : null;
+            if (d == null) {      // If row is negative--> there is no selection.  
+                JOptionPane.showMessageDialog(this, "Select a row to edit.");   //If the row is not loaded yet there is nothing to edit
                 return;                                                                 
             }
             if(!validateEntryFields()) return;
-            try {
-                Diary d = loadedDiaries.get(row);
-                d.setName(tfTaskName.getText());
-                d.setAddress(tfAddress.getText());
-                d.setDuration(tfDuration.getText());
-                d.setDate(tfDate.getText());
-                d.setTime(tfTime.getText());
-                d.setDetails(taDetails.getText());
-                recordManager.updateRecord(d);
+            if (d.isSummary()) {        // the row only has the start of the details, the whole text is needed to edit them
+                if (loadedDetails == null || loadedDetails.getId() != d.getId() || loadedDetails.getVersion() != d.getVersion()
+                        || !taDetails.isEditable()) {
+                    JOptionPane.showMessageDialog(this, "The details of this entry are still loading, try again in a moment.");
+                    return;
+                }
+                d = loadedDetails;
+            }
+            Diary edited = d.copy();        // the row keeps showing the old values until the database accepted the change
+            edited.setName(tfTaskName.getText());
+            edited.setAddress(tfAddress.getText());
+            edited.setDuration(tfDuration.getText());
+            edited.setDate(DiaryFormats.parseDate(tfDate.getText()));
+            edited.setTime(DiaryFormats.parseTime(tfTime.getText()));
+            edited.setDetails(taDetails.getText());
+            checkOverlaps(edited, () -> saveEditedEntry(row, edited));
+        }
+
+        private void saveEditedEntry(int row, Diary edited) {
+            setBusy(true);
+            BackgroundExecutor.onEdt(asyncRecords.updateRecord(edited), updated -> {
+                setBusy(false);
+                // row not known (the list cannot be read now): the new values are shown in place until the list is read again
+                tableModel.updateDiary(row, updated.getRow() >= 0 ? updated.getRow() : row, updated.getDiary());
                 JOptionPane.showMessageDialog(this, "Entry updated!");
                 clearForm();
-                loadEntries();
-            } catch (Exception ex) {
+            }, ex -> {
+                setBusy(false);
+                if (ex instanceof DiaryConflictException) {
+                    JOptionPane.showMessageDialog(this, "This entry was changed somewhere else meanwhile, the list is loaded again.\n"
+                            + "Select it and make your change again.");
+                    loadEntries();
+                    return;
+                }
                 JOptionPane.showMessageDialog(this, "Failed to edit entry:\n" + ex.getMessage());
+            });
+        }
+
+        // showRefusedChanges()-> tells the user about saved changes the database refused later (the entry was changed
+        // somewhere else meanwhile) and offers to save their values again; they are kept in memory until taken here
+        private void showRefusedChanges() {
+            if (!isDisplayable()) return;           // logged out meanwhile
+            for (RefusedChange r : recordManager.takeRefusedChanges(currentUser.getId())) {
+                Diary v = r.getValues();
+                int f = r.getFields();
+                StringBuilder msg = new StringBuilder("Your change of \"").append(v.getName()).append("\" could not be saved:\n"
+                        + "the entry was changed somewhere else meanwhile. Your values were:\n");
+                if ((f & Diary.NAME) != 0) msg.append("  Task Name: ").append(v.getName()).append('\n');
+                if ((f & Diary.ADDRESS) != 0) msg.append("  Address: ").append(v.getAddress()).append('\n');
+                if ((f & Diary.DURATION) != 0) msg.append("  Duration: ").append(v.getDuration()).append('\n');
+                if ((f & Diary.DATE) != 0) msg.append("  Date: ").append(DiaryFormats.formatDate(v.getDate())).append('\n');
+                if ((f & Diary.TIME) != 0) msg.append("  Time: ").append(DiaryFormats.formatTime(v.getTime())).append('\n');
+                if ((f & Diary.DETAILS) != 0) {
+                    String details = v.getDetails() == null ? "" : v.getDetails();
+                    msg.append("  Details: ").append(details.length() > 200 ? details.substring(0, 200) + "..." : details).append('\n');
+                }
+                msg.append("\nSave your values again over the other change?");
+                int answer = JOptionPane.showConfirmDialog(this, msg.toString(), "Change not saved", JOptionPane.YES_NO_OPTION,
+                        JOptionPane.WARNING_MESSAGE);
+                if (answer != JOptionPane.YES_OPTION) continue;
+                BackgroundExecutor.onEdt(asyncRecords.reapplyRefused(r), saved -> {
+                    statusLabel.setText("Your change of \"" + saved.getName() + "\" is saved again.");
+                    loadEntries();
+                }, ex -> {
+                    if (ex instanceof DiaryConflictException) {
+                        JOptionPane.showMessageDialog(this, "The entry was changed again meanwhile, make your change again.");
+                        loadEntries();
+                        return;
+                    }
+                    JOptionPane.showMessageDialog(this, "Failed to save the change again:\n" + ex.getMessage());
+                });
+            }
+        }
+
+        // checkOverlaps()-> asks before saving an entry at the same time as other entries of the user, save runs when it is fine
+        private void checkOverlaps(Diary d, Runnable save) {
+            setBusy(true);
+            BackgroundExecutor.onEdt(asyncRecords.findOverlaps(d), overlaps -> {
+                setBusy(false);
+                if (overlaps.isEmpty() || confirmOverlaps(overlaps)) save.run();
+            }, ex -> {
+                setBusy(false);
+                save.run();         // the check could not be made, the entry is saved like before
+            });
+        }
+
+        private boolean confirmOverlaps(List<Diary> overlaps) {
+            StringBuilder msg = new StringBuilder("This entry overlaps " + overlaps.size() + (overlaps.size() == 1 ? " entry:" : " entries:") + "\n");
+            for (int i = 0; i < overlaps.size() && i < 10; i++) {
+                Diary o = overlaps.get(i);
+                msg.append("  ").append(o.getName()).append("  ").append(DiaryFormats.formatDate(o.getDate())).append(' ')
+                        .append(DiaryFormats.formatTime(o.getTime()));
+                if (o.getDuration() != null && !o.getDuration().trim().isEmpty()) msg.append(" (").append(o.getDuration().trim()).append(')');
+                msg.append('\n');
+            }
+            if (overlaps.size() > 10) msg.append("  ... and ").append(overlaps.size() - 10).append(" more\n");
+            msg.append("\nSave anyway?");
+            return JOptionPane.showConfirmDialog(this, msg.toString(), "Overlapping entries", JOptionPane.YES_NO_OPTION,
+                    JOptionPane.WARNING_MESSAGE) == JOptionPane.YES_OPTION;
+        }
+
+        // showFreeSlots()-> the free times on the form's date (today when empty) at least as long as the form's duration (30 min when empty)
+        private void showFreeSlots() {
+            LocalDate date;
+            try {
+                date = tfDate.getText().trim().isEmpty() ? LocalDate.now() : DiaryFormats.parseDate(tfDate.getText());
+            } catch (DateTimeParseException e) {
+                JOptionPane.showMessageDialog(this, "Date must be YYYY-MM-DD.");
+                return;
             }
+            Duration length = tfDuration.getText().trim().isEmpty() ? Duration.ofMinutes(30) : DiaryFormats.parseDuration(tfDuration.getText());
+            if (length == null) {
+                JOptionPane.showMessageDialog(this, "Duration must be a length like 45 min, 1h30, 1:30 or 2 days.");
+                return;
+            }
+            btnFree.setEnabled(false);
+            BackgroundExecutor.onEdt(asyncRecords.findFreeSlots(currentUser.getId(), date.atStartOfDay(), date.plusDays(1).atStartOfDay(), length), slots -> {
+                btnFree.setEnabled(true);
+                StringBuilder msg = new StringBuilder("Free on " + DiaryFormats.formatDate(date) + " for " + DiaryFormats.formatDuration(length) + " or more:\n");
+                for (TimeSlot slot : slots) msg.append("  ").append(DiaryFormats.formatTime(slot.getStart().toLocalTime())).append(" - ")
+                        .append(slot.getEnd().toLocalDate().equals(date) ? DiaryFormats.formatTime(slot.getEnd().toLocalTime()) : "24:00")
+                        .append("  (").append(DiaryFormats.formatDuration(slot.getLength())).append(")\n");
+                if (slots.isEmpty()) msg.append("  nothing, the day is full\n");
+                JOptionPane.showMessageDialog(this, msg.toString(), "Free Slots", JOptionPane.INFORMATION_MESSAGE);
+            }, ex -> {
+                btnFree.setEnabled(true);
+                JOptionPane.showMessageDialog(this, "Failed to find free slots:\n" + ex.getMessage());
+            });
+        }
+
+        private void importEntries() {      // importEntries()-> add all diaries from a CSV or JSON file (exported from another calendar)
+            JFileChooser chooser = new JFileChooser();
+            if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+            Path file = chooser.getSelectedFile().toPath();
+            int userId = currentUser.getId();
+            BulkImporter importer = new BulkImporter(recordManager, Integer.getInteger("diary.import.batchSize", 1000));
+            btnImport.setEnabled(false);
+            statusLabel.setText("Importing " + file.getFileName() + "...");
+            CompletableFuture<ImportReport> task = executor.submit(() -> importer.importFile(file, userId,
+                    (read, imported, failed) -> SwingUtilities.invokeLater(() ->
+                            statusLabel.setText("Importing " + file.getFileName() + ": " + imported + " imported, " + failed + " failed"))));
+            BackgroundExecutor.onEdt(task, report -> {
+                btnImport.setEnabled(true);
+                statusLabel.setText(String.format("Imported %d entries (%.0f rows/sec)", report.getRowsImported(), report.getRowsPerSecond()));
+                JOptionPane.showMessageDialog(this, report.toString());
+                loadEntries();
+            }, ex -> {
+                btnImport.setEnabled(true);
+                statusLabel.setText(" ");
+                JOptionPane.showMessageDialog(this, "Import failed:\n" + ex.getMessage());
+            });
+        }
+
+        private void exportEntries() {      // exportEntries()-> save all diaries to a file: .csv or .json, add .gz to compress
+            JFileChooser chooser = new JFileChooser();
+            chooser.setSelectedFile(new java.io.File(currentUser.getUsername() + "-diary.csv"));
+            if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+            Path file = chooser.getSelectedFile().toPath();
+            int userId = currentUser.getId();
+            DiaryExporter exporter = new DiaryExporter(recordManager);
+            btnExport.setEnabled(false);
+            statusLabel.setText("Exporting to " + file.getFileName() + "...");
+            BackgroundExecutor.onEdt(executor.submit(() -> exporter.exportFile(file, userId)), report -> {
+                btnExport.setEnabled(true);
+                statusLabel.setText(report.toString());
+            }, ex -> {
+                btnExport.setEnabled(true);
+                statusLabel.setText(" ");
+                JOptionPane.showMessageDialog(this, "Export failed:\n" + ex.getMessage());
+            });
         }
 
         private void deleteEntry() {
             int row = table.getSelectedRow();
-            if (row < 0 || loadedDiaries == null || row >= loadedDiaries.size()) {
+            Diary d = row >= 0 ? tableModel.getDiaryAt(row) : null;
+            if (d == null) {
                 JOptionPane.showMessageDialog(this, "Select a row to delete.");
                 return;
             }
-            try {
-                Diary d = loadedDiaries.get(row);
-                recordManager.deleteRecord(d.getId());
+            setBusy(true);
+            BackgroundExecutor.onEdt(asyncRecords.deleteRecord(d), v -> {
+                setBusy(false);
+                tableModel.removeRow(row);
                 JOptionPane.showMessageDialog(this, "Entry deleted!");
                 clearForm();
-                loadEntries();
-            } catch (Exception ex) {
+            }, ex -> {
+                setBusy(false);
                 JOptionPane.showMessageDialog(this, "Failed to delete entry:\n" + ex.getMessage());
+            });
+        }
+    }
+
+
+}
+
+
+
+// DiaryBenchmark measures the data access and table loading paths: java Main --benchmark [results file]
+// By default it runs on a fresh local store (MappedLogStorage in a temporary folder), so no MySQL is needed and runs can
+// be compared with each other. -Dbench.storage=mysql measures the storage the program is configured for instead
+// (DatabaseHandler, the ConnectionPool and the SQL, with -Ddiary.journal / -Ddiary.shards if given): the users of the
+// run get a unique prefix and are deleted with their diaries at the end, and every JDBC benchmark does 100x fewer
+// operations (sizes default to 100,10000). Every benchmark is warmed up first, then timed over a few iterations; the time
+// and the bytes allocated per operation are printed (allocation needs a HotSpot JVM, otherwise it shows as -1).
+// A baseline run is kept in benchmarks/baseline.txt, compare against it before and after a change.
+class DiaryBenchmark
+{
+    // one benchmarked operation; the returned value is kept so the JIT cannot drop the work
+    private interface Op { Object run(int i) throws Exception; }
+
+    private static final int WARMUP_ITERATIONS = Integer.getInteger("bench.warmup", 3);
+    private static final int ITERATIONS = Integer.getInteger("bench.iterations", 5);
+    private static final boolean MYSQL = System.getProperty("bench.storage", "local").equalsIgnoreCase("mysql");
+    private static final int[] SIZES = parseSizes(System.getProperty("bench.sizes", MYSQL ? "100,10000" : "100,10000,1000000"));
+    // the users of this run, so a MySQL run does not collide with the data already there (or with an earlier run)
+    private static final String PREFIX = MYSQL ? "bench" + Long.toString(System.currentTimeMillis(), 36) + "_" : "";
+    private static final LocalDate DAY = LocalDate.of(2026, 1, 1);
+
+    private static volatile int sink;
+    private final StringBuilder results = new StringBuilder();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    public static void run(String[] args) throws Exception
+    {
+        if (MYSQL)
+        {
+            runMysql(args);
+            return;
+        }
+        Path dir = Files.createTempDirectory("diary-bench");
+        System.setProperty("diary.storage", "local");            // must happen before anything asks Storage.get()
+        System.setProperty("diary.storage.path", dir.resolve("diary.log").toString());
+        try
+        {
+            DiaryBenchmark bench = new DiaryBenchmark();
+            bench.runAll();
+            if (args.length > 0) Files.write(Paths.get(args[0]), bench.results.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        finally
+        {
+            ((MappedLogStorage) Storage.get()).close();
+            try (Stream<Path> files = Files.list(dir)) { for (Path p : (Iterable<Path>) files::iterator) Files.deleteIfExists(p); }
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    private static void runMysql(String[] args) throws Exception
+    {
+        if (System.getProperty("diary.storage", "mysql").equalsIgnoreCase("local"))
+            throw new IllegalArgumentException("-Dbench.storage=mysql cannot be used with -Ddiary.storage=local");
+        DiaryBenchmark bench = new DiaryBenchmark();
+        Exception failure = null;
+        try
+        {
+            bench.runAll();
+            if (args.length > 0) Files.write(Paths.get(args[0]), bench.results.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        catch (Exception e) { failure = e; }
+        try { deleteRun(); }
+        catch (Exception e)         // the first failure is the one to show
+        {
+            if (failure == null) failure = e;
+            else failure.addSuppressed(e);
+        }
+        finally
+        {
+            if (Storage.get() instanceof JournaledStorage) ((JournaledStorage) Storage.get()).close();
+            DBConnection.shutdown();
+        }
+        if (failure != null) throw failure;
+    }
+
+    // removing the users of a MySQL run and their diaries
+    private static void deleteRun() throws Exception
+    {
+        DiaryStorage storage = Storage.get();
+        for (int size : SIZES)
+        {
+            User user = storage.getUserByUsername(PREFIX + "bench" + size);
+            if (user == null) continue;
+            for (Diary d : storage.getUserDiaries(user.getId())) storage.deleteUserDiary(user.getId(), d.getId());
+        }
+        if (storage instanceof JournaledStorage) ((JournaledStorage) storage).sync(null);     // the deletes reach the database before the users go
+        try (Connection conn = DBConnection.getConnection())
+        {
+            if (Shards.isSharded())
+                try (PreparedStatement ps = conn.prepareStatement(
+                        "DELETE FROM user_shard WHERE user_id IN (SELECT id FROM user WHERE username LIKE ?)"))
+                {
+                    ps.setString(1, PREFIX + "%");
+                    ps.executeUpdate();
+                }
+            try (PreparedStatement ps = conn.prepareStatement("DELETE FROM user WHERE username LIKE ?"))
+            {
+                ps.setString(1, PREFIX + "%");
+                ps.executeUpdate();
             }
         }
     }
 
+    // operations per iteration: a JDBC round trip is about 100x slower than the local store
+    private static int ops(int local) { return MYSQL ? Math.max(10, local / 100) : local; }
+
+    private void runAll() throws Exception
+    {
+        DiaryStorage storage = Storage.get();
+        line(String.format("# %s %s, %d cpus, max heap %d MB, storage %s", System.getProperty("java.vm.name"), System.getProperty("java.version"),
+                Runtime.getRuntime().availableProcessors(), Runtime.getRuntime().maxMemory() >> 20, storage.getClass().getSimpleName()
+                        + (Shards.isSharded() ? " (sharded)" : "")));
+        line(String.format("%-40s %14s %12s %14s", "benchmark", "us/op", "+-", "bytes/op"));
+
+        // users: one per list size, plus many others so the username lookup is not on a tiny map
+        for (int i = 0; i < 1000; i++) storage.addUser(PREFIX + "user" + i, "password" + i);
+        int[] userIds = new int[SIZES.length];
+        for (int s = 0; s < SIZES.length; s++)
+        {
+            storage.addUser(PREFIX + "bench" + SIZES[s], "password");
+            userIds[s] = storage.getUserByUsername(PREFIX + "bench" + SIZES[s]).getId();
+            for (int from = 0; from < SIZES[s]; from += 10_000)
+                storage.addDiaries(diaries(userIds[s], from, Math.min(10_000, SIZES[s] - from)));
+        }
+
+        measure("getUserByUsername", ops(100_000), i -> storage.getUserByUsername(PREFIX + "user" + (i % 1000)));
+        for (int s = 0; s < SIZES.length; s++)
+        {
+            int userId = userIds[s];
+            measure("getUserDiaries[" + SIZES[s] + "]", Math.max(2, ops(1_000_000) / SIZES[s]), i -> storage.getUserDiaries(userId));
+        }
+
+        int writer = userIds[0];
+        measure("addDiary", ops(10_000), i -> storage.addDiary(diary(writer, i)));
+        List<Diary> batch = diaries(writer, 0, 1000);
+        measure("addDiaries[1000] (per row)", MYSQL ? 2 : 10, 1000, i -> storage.addDiaries(batch));
+
+        List<Diary> rows = storage.getUserDiaries(writer);
+        measure("updateDiary", ops(10_000), i -> {
+            Diary d = rows.get(i % rows.size());
+            d.setDetails("updated " + i);
+            storage.updateDiary(d);
+            return d;
+        });
+        // deleting the rows written by the add benchmarks, iterations * ops must not exceed them
+        int deletes = Math.min(ops(10_000), rows.size() / (WARMUP_ITERATIONS + ITERATIONS));
+        int[] next = {0};
+        measure("deleteDiary", deletes, i -> {
+            storage.deleteDiary(rows.get(next[0]++).getId());
+            return null;
+        });
+
+        // the table: showing a page the way MainMenuFrame does, then reading every cell like the JTable does when painting
+        int listUser = userIds[Math.min(1, SIZES.length - 1)];
+        List<Diary> page = storage.getUserDiariesAfter(listUser, null, DiaryGUI.PAGE_SIZE);
+        int total = storage.countUserDiaries(listUser);
+        DiaryTableModel model = new DiaryTableModel(null, listUser, DiaryGUI.PAGE_SIZE, 5, e -> {});
+        measure("table show+paint[" + page.size() + " rows]", 1000, i -> {
+            model.show(new DiaryPage(total, page));
+            return paint(model, page.size());
+        });
+        List<Diary> all = storage.getUserDiaries(listUser);
+        measure("table showResults+paint[" + all.size() + " rows]", 20, i -> {
+            model.showResults(all);
+            return paint(model, all.size());
+        });
+
+        // the same page through RecordManager: the first call fills the cache, then every page is served from it
+        RecordManager records = new RecordManager();
+        measure("RecordManager.viewRecordPage (cached)", 10_000, i -> records.viewRecordPage(listUser, null, DiaryGUI.PAGE_SIZE));
+    }
+
+    private static int paint(DiaryTableModel model, int rows)
+    {
+        int h = 0;
+        for (int r = 0; r < rows; r++)
+            for (int c = 0; c < model.getColumnCount(); c++)
+                h += Objects.hashCode(model.getValueAt(r, c));
+        return h;
+    }
+
+    private void measure(String name, int ops, Op op) throws Exception { measure(name, ops, 1, op); }
+
+    // running `ops` operations per iteration; rowsPerOp > 1 reports the time per row of a batch operation
+    private void measure(String name, int ops, int rowsPerOp, Op op) throws Exception
+    {
+        int counter = 0;
+        for (int w = 0; w < WARMUP_ITERATIONS; w++)
+            for (int i = 0; i < ops; i++) sink += Objects.hashCode(op.run(counter++));
+        double[] micros = new double[ITERATIONS];
+        long allocated = 0;
+        for (int it = 0; it < ITERATIONS; it++)
+        {
+            long bytes = allocatedBytes();
+            long start = System.nanoTime();
+            for (int i = 0; i < ops; i++) sink += Objects.hashCode(op.run(counter++));
+            micros[it] = (System.nanoTime() - start) / 1000.0 / ops / rowsPerOp;
+            allocated += allocatedBytes() - bytes;
+        }
+        double mean = 0, variance = 0;
+        for (double m : micros) mean += m / ITERATIONS;
+        for (double m : micros) variance += (m - mean) * (m - mean) / Math.max(1, ITERATIONS - 1);
+        long bytesPerOp = allocatedBytes() < 0 ? -1 : allocated / ((long) ITERATIONS * ops * rowsPerOp);
+        line(String.format(Locale.ROOT, "%-40s %14.3f %12.3f %14d", name, mean, Math.sqrt(variance), bytesPerOp));
+    }
+
+    private long allocatedBytes()
+    {
+        if (threads instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return -1;
+    }
+
+    private void line(String s)
+    {
+        System.out.println(s);
+        results.append(s).append('\n');
+    }
+
+    private static List<Diary> diaries(int userId, int from, int count)
+    {
+        List<Diary> list = new ArrayList<>(count);
+        for (int i = from; i < from + count; i++) list.add(diary(userId, i));
+        return list;
+    }
+
+    private static Diary diary(int userId, int i)
+    {
+        return new Diary(0, "Task " + i, "1h", "Street " + (i % 500), DAY.plusDays(i % 3650),
+                LocalTime.of(i % 24, i % 60), "Details of task " + i + " with some more words to read", userId);
+    }
 
+    private static int[] parseSizes(String value)
+    {
+        String[] parts = value.split(",");
+        int[] sizes = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) sizes[i] = Integer.parseInt(parts[i].trim());
+        return sizes;
+    }
 }
 
+// DiaryLoadTest simulates many diary users at once, to find out how much traffic a setup carries:
+//   java -cp <classes> DiaryLoadTest [users] [ramp-up seconds] [steady seconds] [results file]      (default 1000 10 60)
+// Every simulated user has its own (virtual) thread: it registers, logs in, adds -Dload.diaries (default 20) diaries,
+// then repeats operations picked at random by weight, -Dload.mix (default view:50,add:15,edit:20,delete:5,login:8,register:2),
+// waiting a random think time between them (exponential, mean -Dload.thinkMs, default 1000). The users start evenly
+// spread over the ramp-up; only the steady phase, when all of them run, is measured. It goes through LoginManager and
+// RecordManager like the GUI, on the backend the program is configured for (MySQL, -Ddiary.storage=local, -Ddiary.journal,
+// -Ddiary.shards, or a diary server with -Ddiary.server=http://host:port and one session per user).
+// The report has per operation the calls, calls per second, errors and the p50/p95/p99/max latency in milliseconds,
+// then the database calls behind them (QueryMetrics) when the database was used directly.
+class DiaryLoadTest
+{
+    private static final String[] OPERATIONS = {"register", "login", "view", "add", "edit", "delete"};
+
+    // the numbers of one operation during the steady phase
+    private static class Stats
+    {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+        volatile String firstError;
+    }
+
+    private final int users;
+    private final long rampUpNanos, steadyNanos;
+    private final long thinkMillis = Long.getLong("load.thinkMs", 1000);
+    private final int diariesPerUser = Integer.getInteger("load.diaries", 20);
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);     // usernames of this run are new
+    private final String[] mix;                 // one operation name per unit of weight
+    private final Map<String, Stats> stats = new LinkedHashMap<>();
+    private final String server = System.getProperty("diary.server");
+    private final LoginManager sharedLogins;    // one for all users, like the GUI or the server use them
+    private final RecordManager sharedRecords;
+    private final AtomicInteger started = new AtomicInteger(), failedToStart = new AtomicInteger();
+    private final AtomicInteger registrations = new AtomicInteger();
+    private volatile boolean measuring, running = true;
+
+    DiaryLoadTest(int users, int rampUpSeconds, int steadySeconds, String mix)
+    {
+        this.users = users;
+        this.rampUpNanos = TimeUnit.SECONDS.toNanos(rampUpSeconds);
+        this.steadyNanos = TimeUnit.SECONDS.toNanos(steadySeconds);
+        this.mix = parseMix(mix);
+        for (String op : OPERATIONS) stats.put(op, new Stats());
+        sharedLogins = server == null ? new LoginManager() : null;
+        sharedRecords = server == null ? new RecordManager() : null;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int users = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int rampUp = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        int steady = args.length > 2 ? Integer.parseInt(args[2]) : 60;
+        DiaryLoadTest test = new DiaryLoadTest(users, rampUp, steady,
+                System.getProperty("load.mix", "view:50,add:15,edit:20,delete:5,login:8,register:2"));
+        String report = test.run();
+        System.out.print(report);
+        if (args.length > 3) Files.write(Paths.get(args[3]), report.getBytes(StandardCharsets.UTF_8));
+        System.exit(0);         // the storage's pools and threads are not needed anymore
+    }
+
+    String run() throws InterruptedException
+    {
+        System.out.printf("%d users, ramp-up %d s, steady %d s, think time %d ms, backend %s%n", users,
+                TimeUnit.NANOSECONDS.toSeconds(rampUpNanos), TimeUnit.NANOSECONDS.toSeconds(steadyNanos), thinkMillis, backend());
+        ExecutorService threads = VirtualThreads.newExecutor("diary-load", users);
+        long start = System.nanoTime();
+        for (int i = 0; i < users; i++)
+        {
+            long startAt = start + (users == 1 ? 0 : rampUpNanos * i / users);
+            int n = i;
+            threads.execute(() -> {
+                try
+                {
+                    sleepUntil(startAt);
+                    user(n);
+                }
+                catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+            });
+        }
+        sleepUntil(start + rampUpNanos);
+        System.out.printf("ramp-up done: %d users running, %d could not start%n", started.get() - failedToStart.get(), failedToStart.get());
+        for (Stats s : stats.values()) s.latency.reset();       // only the steady phase counts
+        QueryMetrics.reset();
+        measuring = true;
+        long steadyStart = System.nanoTime();
+        sleepUntil(steadyStart + steadyNanos);
+        measuring = false;
+        double seconds = (System.nanoTime() - steadyStart) / 1e9;
+        running = false;
+        threads.shutdownNow();          // wakes the users from their think time
+        threads.awaitTermination(30, TimeUnit.SECONDS);
+        return report(seconds);
+    }
+
+    private String backend()
+    {
+        if (server != null) return "diary server " + server;
+        String storage = Storage.get().getClass().getSimpleName();
+        return Shards.isSharded() && !(Storage.get() instanceof MappedLogStorage) ? storage + ", " + Shards.all().size() + " shards" : storage;
+    }
+
+    // one simulated user, from registering until the test ends
+    private void user(int n) throws InterruptedException
+    {
+        started.incrementAndGet();
+        LoginManager logins = sharedLogins;
+        RecordManager records = sharedRecords;
+        if (server != null)             // every user is a client of its own, with its own session
+        {
+            RemoteSession session = new RemoteSession(server);
+            logins = new RemoteLoginManager(session);
+            records = new RemoteRecordManager(session);
+        }
+        String username = "load-" + runId + "-" + n, password = "pw" + n;
+        User user;
+        List<Diary> known = new ArrayList<>();          // the user's diaries as the last view and own writes left them
+        try
+        {
+            logins.register(username, password);
+            user = logins.login(username, password);
+            if (user == null) throw new IllegalStateException("login of the new user " + username + " failed");
+            List<Diary> seed = new ArrayList<>();
+            for (int i = 0; i < diariesPerUser; i++) seed.add(diary(user.getId(), i));
+            if (!seed.isEmpty()) records.importRecords(seed);
+            known.addAll(records.viewRecordPage(user.getId(), null, DiaryGUI.PAGE_SIZE));
+        }
+        catch (Exception e)
+        {
+            failedToStart.incrementAndGet();
+            System.err.println("User " + username + " could not start: " + e.getMessage());
+            return;
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int counter = diariesPerUser;
+        while (running)
+        {
+            Thread.sleep((long) (-thinkMillis * Math.log(1 - random.nextDouble())));
+            if (!running) break;
+            String op = mix[random.nextInt(mix.length)];
+            if ((op.equals("edit") || op.equals("delete")) && known.isEmpty()) op = "add";
+            long t = System.nanoTime();
+            try
+            {
+                switch (op)
+                {
+                    case "register":        // a new user signs up
+                        logins.register("load-" + runId + "-new" + registrations.incrementAndGet(), password);
+                        break;
+                    case "login":
+                        if (logins.login(username, password) == null) throw new IllegalStateException("wrong credentials");
+                        break;
+                    case "view":            // what the table shows first: the row count and the first page
+                        records.countRecords(user.getId());
+                        List<Diary> page = records.viewRecordPage(user.getId(), null, DiaryGUI.PAGE_SIZE);
+                        known.clear();
+                        known.addAll(page);
+                        break;
+                    case "add":
+                        known.add(records.addRecord(diary(user.getId(), counter++)));
+                        break;
+                    case "edit":
+                    {
+                        int i = random.nextInt(known.size());
+                        Diary d = known.get(i).copy();
+                        d.setName("Task " + counter++);
+                        d.setTime(LocalTime.of(random.nextInt(24), random.nextInt(60)));
+                        records.updateRecord(d);
+                        known.set(i, d);
+                        break;
+                    }
+                    case "delete":
+                        records.deleteRecord(known.remove(random.nextInt(known.size())));
+                        break;
+                    default:
+                        throw new IllegalStateException("unknown operation " + op);
+                }
+                if (measuring) stats.get(op).latency.record(System.nanoTime() - t);
+            }
+            catch (Exception e)
+            {
+                if (!running) break;
+                if (measuring)
+                {
+                    Stats s = stats.get(op);
+                    s.errors.increment();
+                    if (s.firstError == null) s.firstError = e.getClass().getSimpleName() + ": " + e.getMessage();
+                }
+                if (e instanceof DiaryConflictException) known.clear();        // the next view reads them again
+            }
+        }
+    }
+
+    private String report(double seconds)
+    {
+        StringBuilder sb = new StringBuilder(String.format(Locale.ROOT, "steady phase: %.1f s, %d users%n", seconds, started.get() - failedToStart.get()));
+        sb.append(String.format("%-10s %10s %10s %8s %9s %9s %9s %9s%n", "operation", "calls", "calls/s", "errors", "p50", "p95", "p99", "max"));
+        long total = 0;
+        for (Map.Entry<String, Stats> e : stats.entrySet())
+        {
+            LatencyHistogram h = e.getValue().latency;
+            long calls = h.getCount();
+            total += calls;
+            sb.append(String.format(Locale.ROOT, "%-10s %10d %10.1f %8d %9.3f %9.3f %9.3f %9.3f%n", e.getKey(), calls, calls / seconds,
+                    e.getValue().errors.sum(), h.percentile(0.5) / 1e6, h.percentile(0.95) / 1e6, h.percentile(0.99) / 1e6, h.getMax() / 1e6));
+        }
+        sb.append(String.format(Locale.ROOT, "%-10s %10d %10.1f%n", "total", total, total / seconds));
+        for (Map.Entry<String, Stats> e : stats.entrySet())
+            if (e.getValue().firstError != null)
+                sb.append("first ").append(e.getKey()).append(" error: ").append(e.getValue().firstError).append('\n');
+        if (server == null && (Storage.get() instanceof DatabaseHandler || Storage.get() instanceof JournaledStorage))
+            sb.append('\n').append(QueryMetrics.report());
+        return sb.toString();
+    }
+
+    private static void sleepUntil(long nanoTime) throws InterruptedException
+    {
+        long wait;
+        while ((wait = nanoTime - System.nanoTime()) > 0)
+            TimeUnit.NANOSECONDS.sleep(wait);
+    }
+
+    // "view:50,add:10" -> 50 times "view" and 10 times "add", so a random index picks them by weight
+    private static String[] parseMix(String value)
+    {
+        List<String> list = new ArrayList<>();
+        for (String part : value.split(","))
+        {
+            String[] kv = part.trim().split(":");
+            if (!Arrays.asList(OPERATIONS).contains(kv[0]))
+                throw new IllegalArgumentException("Unknown operation " + kv[0] + " in -Dload.mix, the operations are " + Arrays.toString(OPERATIONS));
+            int weight = kv.length > 1 ? Integer.parseInt(kv[1].trim()) : 1;
+            for (int i = 0; i < weight; i++) list.add(kv[0]);
+        }
+        if (list.isEmpty()) throw new IllegalArgumentException("-Dload.mix has no operations");
+        return list.toArray(new String[0]);
+    }
 
+    private static Diary diary(int userId, int i)
+    {
+        return new Diary(0, "Task " + i, "1h", "Street " + (i % 500), LocalDate.now().plusDays(i % 365),
+                LocalTime.of(i % 24, i % 60), "Details of task " + i + " with some more words to read", userId);
+    }
+}
 
 public class Main
 {
-    public static void main(String[] args) {
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--benchmark")) {   // java Main --benchmark [results file], see DiaryBenchmark
+            DiaryBenchmark.run(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--server")) {      // headless service mode: java Main --server [port]
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+            DiaryServer server = new DiaryServer(port, new LoginManager(), new RecordManager());
+            server.start();
+            Storage.get().warmUp();
+            System.out.println("Diary server listening on port " + server.getPort());
+            if (Boolean.getBoolean("diary.shard.rebalance")) {      // moving users to the shards the ring gives, while serving
+                Thread rebalancer = new Thread(() -> {
+                    try { System.out.println("Rebalanced " + new ShardRebalancer().rebalance(System.out::println) + " users"); }
+                    catch (SQLException e) { System.err.println("Rebalancing failed: " + e.getMessage()); }
+                }, "diary-rebalancer");
+                rebalancer.setDaemon(true);
+                rebalancer.start();
+            }
+            return;
+        }
+        if (args.length > 0 && args[0].equals("--rebalance")) {   // java Main --rebalance [username shard], see ShardRebalancer
+            ShardRebalancer rebalancer = new ShardRebalancer();
+            if (args.length < 3) {
+                System.out.println("Moved " + rebalancer.rebalance(System.out::println) + " users");
+            } else {
+                User user = Storage.get().getUserByUsername(args[1]);
+                Shards.Shard shard = Shards.byName(args[2]);
+                if (user == null || shard == null) {
+                    System.err.println(user == null ? "No user " + args[1] : "No shard " + args[2] + ", the shards are " + Shards.all());
+                    System.exit(1);
+                }
+                System.out.println("Moved " + rebalancer.move(user.getId(), shard) + " diaries of " + args[1] + " to " + shard);
+            }
+            DBConnection.shutdown();
+            return;
+        }
         // Set Look and Feel (optional)
         try { UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName()); }
         catch(Exception ignored){}
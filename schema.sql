@@ -0,0 +1,67 @@
+-- database used by the Diary Management System (see DBConnection.URL)
+CREATE DATABASE IF NOT EXISTS DiarySystem;
+USE DiarySystem;
+
+CREATE TABLE IF NOT EXISTS user (
+    id       INT AUTO_INCREMENT PRIMARY KEY,
+    username VARCHAR(100) NOT NULL UNIQUE,
+    password VARCHAR(255) NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS diary (
+    id       INT AUTO_INCREMENT PRIMARY KEY,
+    name     VARCHAR(255) NOT NULL,
+    duration VARCHAR(50),
+    address  VARCHAR(255),
+    date     DATE NOT NULL,
+    time     TIME NOT NULL,
+    details  TEXT,                              -- the text, or only its start when it is in details_z
+    details_z MEDIUMBLOB,                       -- long details compressed (see DetailsCodec), NULL when details is all of it
+    user_id  INT NOT NULL,
+    version  INT NOT NULL DEFAULT 0,            -- +1 on every update, an update must name the version it read
+    FOREIGN KEY (user_id) REFERENCES user(id)
+);
+
+-- the diary table is always read in (date, time, id) order for one user: page by page (keyset paging) and by date
+-- range; InnoDB adds the primary key (id) to the end of every secondary index
+CREATE INDEX idx_diary_user_date_time ON diary (user_id, date, time);
+
+-- the table can also be sorted by name, address or duration (keyset paging on (column, id), see DiaryQuery); one
+-- index per sort column so that every page is an index range scan. Name/address filters are LIKE '%..%' and are
+-- checked on the rows of the user's range of these indexes
+CREATE INDEX idx_diary_user_name ON diary (user_id, name);
+CREATE INDEX idx_diary_user_address ON diary (user_id, address);
+CREATE INDEX idx_diary_user_duration ON diary (user_id, duration);
+
+-- the shard every user's diaries are on, when the diaries are spread over several databases (-Ddiary.shards, see
+-- Shards); written when a user registers and when ShardRebalancer moves them. Users without a row are on shard 0
+CREATE TABLE IF NOT EXISTS user_shard (
+    user_id INT PRIMARY KEY,
+    shard   VARCHAR(50) NOT NULL
+);
+
+-- the ids the database gave to diaries added while it could not be reached (-Ddiary.journal, see JournaledStorage),
+-- by journal and temporary id, written with the diary so a journal replayed after a crash does not add it twice
+CREATE TABLE IF NOT EXISTS diary_journal (
+    client  BIGINT NOT NULL,
+    temp_id INT NOT NULL,
+    id      INT NOT NULL,
+    version INT NOT NULL,
+    PRIMARY KEY (client, temp_id)
+);
+
+-- upgrading a database created when date and time were stored as text (values must already be YYYY-MM-DD / HH:MM:SS):
+--   DROP INDEX idx_diary_user_date_time ON diary;
+--   ALTER TABLE diary MODIFY date DATE NOT NULL, MODIFY time TIME NOT NULL;
+--   CREATE INDEX idx_diary_user_date_time ON diary (user_id, date, time);
+
+-- upgrading a database created before diaries had a version (optimistic locking of updates):
+--   ALTER TABLE diary ADD COLUMN version INT NOT NULL DEFAULT 0;
+
+-- upgrading a database created before the table could be sorted by other columns:
+--   CREATE INDEX idx_diary_user_name ON diary (user_id, name);
+--   CREATE INDEX idx_diary_user_address ON diary (user_id, address);
+--   CREATE INDEX idx_diary_user_duration ON diary (user_id, duration);
+
+-- upgrading a database created before long details were compressed (old rows stay plain text and are still read):
+--   ALTER TABLE diary ADD COLUMN details_z MEDIUMBLOB AFTER details;
@@ -0,0 +1,31 @@
+-- a diary shard (-Ddiary.shard.<i>.url, see Shards): only the diary table. The users and user_shard stay in the
+-- directory database (schema.sql), so there is no foreign key to user here
+CREATE DATABASE IF NOT EXISTS DiaryShard;
+USE DiaryShard;
+
+CREATE TABLE IF NOT EXISTS diary (
+    id       INT AUTO_INCREMENT PRIMARY KEY,    -- unique over all shards (auto_increment_increment/offset per shard)
+    name     VARCHAR(255) NOT NULL,
+    duration VARCHAR(50),
+    address  VARCHAR(255),
+    date     DATE NOT NULL,
+    time     TIME NOT NULL,
+    details  TEXT,
+    details_z MEDIUMBLOB,
+    user_id  INT NOT NULL,
+    version  INT NOT NULL DEFAULT 0
+);
+
+CREATE INDEX idx_diary_user_date_time ON diary (user_id, date, time);
+CREATE INDEX idx_diary_user_name ON diary (user_id, name);
+CREATE INDEX idx_diary_user_address ON diary (user_id, address);
+CREATE INDEX idx_diary_user_duration ON diary (user_id, duration);
+
+-- see schema.sql, the journaled diaries are inserted on their user's shard
+CREATE TABLE IF NOT EXISTS diary_journal (
+    client  BIGINT NOT NULL,
+    temp_id INT NOT NULL,
+    id      INT NOT NULL,
+    version INT NOT NULL,
+    PRIMARY KEY (client, temp_id)
+);